@@ -2,19 +2,26 @@ package org.javawebstack.httpclient;
 
 import org.javawebstack.abstractdata.AbstractMapper;
 import org.javawebstack.abstractdata.NamingPolicy;
+import org.javawebstack.httpclient.cache.HTTPCache;
 import org.javawebstack.httpclient.implementation.IHTTPRequestImplementation;
 import org.javawebstack.httpclient.implementation.JavaNetHTTPRequestImplementation;
 import org.javawebstack.httpclient.interceptor.RequestInterceptor;
+import org.javawebstack.httpclient.nio.NIOEventLoopGroup;
 import org.javawebstack.httpclient.websocket.WebSocket;
 import org.javawebstack.httpclient.websocket.WebSocketHandler;
+import org.javawebstack.httpclient.websocket.WebSocketOptions;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.HttpCookie;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
-public class HTTPClient {
+public class HTTPClient implements Closeable {
 
     private AbstractMapper abstractMapper = new AbstractMapper()
             .setNamingPolicy(NamingPolicy.SNAKE_CASE);
@@ -22,7 +29,7 @@ public class HTTPClient {
     private String baseUrl;
     private Map<String, String[]> defaultHeaders = new HashMap<>();
     private Map<String, String> defaultQuery = new HashMap<>();
-    private List<HttpCookie> defaultCookies = new ArrayList<>();
+    private List<HttpCookie> defaultCookies = new CopyOnWriteArrayList<>();
 
     private Supplier<? extends IHTTPRequestImplementation> httpImplementation = JavaNetHTTPRequestImplementation::new;
 
@@ -35,6 +42,30 @@ public class HTTPClient {
 
     private boolean followRedirects = false;
 
+    private boolean decompression = true;
+    private volatile Map<String, HTTPContentDecoder> contentDecoders = defaultContentDecoders();
+    private volatile String acceptEncoding = String.join(", ", contentDecoders.keySet());
+    private String requestCompression;
+    private HTTPContentEncoder requestEncoder;
+    private long requestCompressionThreshold = 1024;
+    private HTTPCache cache;
+    private HTTPRequestCoalescer coalescer;
+    private HTTPRetryPolicy retryPolicy;
+
+    private WebSocketOptions webSocketOptions = new WebSocketOptions();
+    private boolean webSocketEventLoop;
+
+    private int maxConnections = 100;
+    private int maxConnectionsPerRoute = 20;
+    private long connectionIdleTimeout = 30000;
+    private HTTPConnectionPool connectionPool;
+    private final Map<Class<?>, Closeable> sharedResources = new HashMap<>();
+
+    private int asyncThreads = 64;
+    private ExecutorService executor;
+    private boolean ownsExecutor;
+    private boolean virtualThreads;
+
     public HTTPClient(String baseUrl) {
         this.baseUrl = baseUrl;
     }
@@ -107,13 +138,13 @@ public class HTTPClient {
         return this;
     }
 
-    public HTTPClient cookie(HttpCookie cookie) {
+    public synchronized HTTPClient cookie(HttpCookie cookie) {
         removeCookie(cookie.getName());
         defaultCookies.add(cookie);
         return this;
     }
 
-    public HTTPClient removeCookie(String name) {
+    public synchronized HTTPClient removeCookie(String name) {
         for(HttpCookie cookie : new HashSet<>(defaultCookies)) {
             if(cookie.getName().equalsIgnoreCase(name))
                 defaultCookies.remove(cookie);
@@ -180,14 +211,49 @@ public class HTTPClient {
     }
 
     public WebSocket webSocket(String path, WebSocketHandler handler, Map<String, String> additionalHeaders) throws IOException {
-        HTTPClientSocket socket = new HTTPClientSocket(getBaseUrl() + ((path.startsWith("/") || path.startsWith("http://") || path.startsWith("https://")) ? "" : "/") + path, !isSSLVerification());
+        String url = getBaseUrl() + ((path.startsWith("/") || path.startsWith("http://") || path.startsWith("https://")) ? "" : "/") + path;
+        if(webSocketEventLoop)
+            return WebSocket.open(sharedResource(NIOEventLoopGroup.class, NIOEventLoopGroup::new), url, !isSSLVerification(), timeout, additionalHeaders, handler, webSocketOptions, getExecutor());
+        HTTPClientSocket socket = new HTTPClientSocket(url, !isSSLVerification());
         if(additionalHeaders != null)
             additionalHeaders.forEach(socket::setRequestHeader);
-        WebSocket webSocket = new WebSocket(socket, handler);
-        new Thread(webSocket).start();
+        WebSocket webSocket = new WebSocket(socket, handler, webSocketOptions, getExecutor());
+        if(!virtualThreads || !startVirtualThread(webSocket))
+            new Thread(webSocket).start();
         return webSocket;
     }
 
+    private static boolean startVirtualThread(Runnable task) {
+        try {
+            Thread.class.getMethod("startVirtualThread", Runnable.class).invoke(null, task);
+            return true;
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs WebSocket connections on the shared NIO event loops instead of a thread per connection. The handlers are
+     * called on the executor of the client, in order for each connection.
+     */
+    public HTTPClient webSocketEventLoop(boolean webSocketEventLoop) {
+        this.webSocketEventLoop = webSocketEventLoop;
+        return this;
+    }
+
+    public boolean isWebSocketEventLoop() {
+        return webSocketEventLoop;
+    }
+
+    public HTTPClient webSocketOptions(WebSocketOptions webSocketOptions) {
+        this.webSocketOptions = webSocketOptions;
+        return this;
+    }
+
+    public WebSocketOptions getWebSocketOptions() {
+        return webSocketOptions;
+    }
+
     public HTTPRequest get(String path) {
         return request("GET", path);
     }
@@ -238,4 +304,282 @@ public class HTTPClient {
         return this;
     }
 
+    /**
+     * Retries failed requests according to the policy, null disables retries. A policy with a budget can be shared by
+     * multiple clients to limit their retries together.
+     */
+    public HTTPClient retryPolicy(HTTPRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public HTTPRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Lets identical GET and HEAD requests that are executed at the same time share a single execution, every request
+     * gets its own copy of the response. Streamed requests and requests with a body are never coalesced. Disabled by
+     * default.
+     */
+    public synchronized HTTPClient coalesceRequests(boolean coalesceRequests) {
+        if(coalesceRequests != (coalescer != null))
+            coalescer = coalesceRequests ? new HTTPRequestCoalescer() : null;
+        return this;
+    }
+
+    public boolean isCoalescingRequests() {
+        return coalescer != null;
+    }
+
+    /**
+     * Returns the amount of requests that have been answered by sharing the execution of another request.
+     */
+    public long getCoalescedRequests() {
+        HTTPRequestCoalescer coalescer = this.coalescer;
+        return coalescer != null ? coalescer.getCoalesced() : 0;
+    }
+
+    HTTPRequestCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * Sends the requests through the response cache, null disables it. A cache can be shared by multiple clients.
+     */
+    public HTTPClient cache(HTTPCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    public HTTPCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Sends an Accept-Encoding header with the registered content codings and decodes compressed responses, unless the
+     * request sets its own Accept-Encoding header. Enabled by default.
+     */
+    public HTTPClient decompression(boolean decompression) {
+        this.decompression = decompression;
+        return this;
+    }
+
+    public boolean isDecompression() {
+        return decompression;
+    }
+
+    /**
+     * Registers a decoder for a content coding, null removes it. gzip and deflate are registered by default, br and
+     * zstd if a supported library is on the classpath.
+     */
+    public synchronized HTTPClient contentDecoder(String coding, HTTPContentDecoder decoder) {
+        Map<String, HTTPContentDecoder> decoders = new LinkedHashMap<>(contentDecoders);
+        if(decoder != null) {
+            decoders.put(coding.toLowerCase(Locale.ROOT), decoder);
+        } else {
+            decoders.remove(coding.toLowerCase(Locale.ROOT));
+        }
+        contentDecoders = Collections.unmodifiableMap(decoders);
+        acceptEncoding = String.join(", ", decoders.keySet());
+        return this;
+    }
+
+    public Map<String, HTTPContentDecoder> getContentDecoders() {
+        return contentDecoders;
+    }
+
+    /**
+     * Returns the value of the Accept-Encoding header sent when decompression is enabled.
+     */
+    public String getAcceptEncoding() {
+        return acceptEncoding;
+    }
+
+    /**
+     * Compresses request bodies with the content coding (gzip, deflate or zstd if zstd-jni is on the classpath), null
+     * disables it. Only bodies above the threshold are compressed, see requestCompressionThreshold. Disabled by
+     * default, as not every server accepts compressed requests.
+     */
+    public HTTPClient requestCompression(String coding) {
+        if(coding == null)
+            return requestCompression(null, null);
+        HTTPContentEncoder encoder = HTTPContentEncoder.forCoding(coding);
+        if(encoder == null)
+            throw new IllegalArgumentException("Unsupported content coding: " + coding);
+        return requestCompression(coding, encoder);
+    }
+
+    public HTTPClient requestCompression(String coding, HTTPContentEncoder encoder) {
+        this.requestCompression = coding != null ? coding.toLowerCase(Locale.ROOT) : null;
+        this.requestEncoder = coding != null ? encoder : null;
+        return this;
+    }
+
+    public String getRequestCompression() {
+        return requestCompression;
+    }
+
+    public HTTPContentEncoder getRequestEncoder() {
+        return requestEncoder;
+    }
+
+    /**
+     * Sets the size in bytes above which request bodies are compressed. Bodies of unknown length are always compressed.
+     */
+    public HTTPClient requestCompressionThreshold(long requestCompressionThreshold) {
+        this.requestCompressionThreshold = requestCompressionThreshold;
+        return this;
+    }
+
+    public long getRequestCompressionThreshold() {
+        return requestCompressionThreshold;
+    }
+
+    private static Map<String, HTTPContentDecoder> defaultContentDecoders() {
+        Map<String, HTTPContentDecoder> decoders = new LinkedHashMap<>();
+        decoders.put("gzip", HTTPContentDecoder.GZIP);
+        decoders.put("deflate", HTTPContentDecoder.DEFLATE);
+        HTTPContentDecoder brotli = HTTPContentDecoder.brotli();
+        if(brotli != null)
+            decoders.put("br", brotli);
+        HTTPContentDecoder zstd = HTTPContentDecoder.zstd();
+        if(zstd != null)
+            decoders.put("zstd", zstd);
+        return Collections.unmodifiableMap(decoders);
+    }
+
+    public synchronized HTTPClient maxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        if(connectionPool != null)
+            connectionPool.setMaxConnections(maxConnections);
+        return this;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public synchronized HTTPClient maxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        if(connectionPool != null)
+            connectionPool.setMaxConnectionsPerRoute(maxConnectionsPerRoute);
+        return this;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public synchronized HTTPClient connectionIdleTimeout(long connectionIdleTimeout) {
+        this.connectionIdleTimeout = connectionIdleTimeout;
+        if(connectionPool != null)
+            connectionPool.setIdleTimeout(connectionIdleTimeout);
+        return this;
+    }
+
+    public long getConnectionIdleTimeout() {
+        return connectionIdleTimeout;
+    }
+
+    public synchronized HTTPConnectionPool getConnectionPool() {
+        if(connectionPool == null) {
+            connectionPool = new HTTPConnectionPool()
+                    .setMaxConnections(maxConnections)
+                    .setMaxConnectionsPerRoute(maxConnectionsPerRoute)
+                    .setIdleTimeout(connectionIdleTimeout);
+        }
+        return connectionPool;
+    }
+
+    /**
+     * Sets the executor used by the async request methods. The executor is not shut down when the client is closed.
+     */
+    public synchronized HTTPClient executor(ExecutorService executor) {
+        if(ownsExecutor)
+            this.executor.shutdown();
+        this.executor = executor;
+        this.ownsExecutor = false;
+        this.virtualThreads = false;
+        return this;
+    }
+
+    /**
+     * Sets the maximum amount of threads of the default executor used by the async request methods.
+     */
+    public synchronized HTTPClient asyncThreads(int asyncThreads) {
+        this.asyncThreads = asyncThreads;
+        if(ownsExecutor && executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            if(asyncThreads > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(asyncThreads);
+                pool.setCorePoolSize(asyncThreads);
+            } else {
+                pool.setCorePoolSize(asyncThreads);
+                pool.setMaximumPoolSize(asyncThreads);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Runs async requests and the receive loops of WebSockets on virtual threads if the jvm supports them (java 21+),
+     * otherwise the default pool is kept.
+     */
+    public synchronized HTTPClient virtualThreads() {
+        try {
+            ExecutorService virtualExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            executor(virtualExecutor);
+            ownsExecutor = true;
+            virtualThreads = true;
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ignored) {}
+        return this;
+    }
+
+    public synchronized ExecutorService getExecutor() {
+        if(executor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(asyncThreads, asyncThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "http-client-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+            ownsExecutor = true;
+        }
+        return executor;
+    }
+
+    /**
+     * Returns a resource that is shared between all requests of this client (e.g. the underlying client of an http
+     * implementation). The resource is created on first use and closed together with the client.
+     */
+    public synchronized <T extends Closeable> T sharedResource(Class<T> type, Supplier<T> factory) {
+        return type.cast(sharedResources.computeIfAbsent(type, t -> factory.get()));
+    }
+
+    /**
+     * Closes all pooled connections, shared resources and the default async executor. The client can still be used
+     * afterwards, they will be recreated as needed.
+     */
+    public synchronized void close() {
+        if(connectionPool != null) {
+            connectionPool.close();
+            connectionPool = null;
+        }
+        for(Closeable resource : sharedResources.values()) {
+            try {
+                resource.close();
+            } catch (IOException ignored) {}
+        }
+        sharedResources.clear();
+        if(ownsExecutor) {
+            executor.shutdown();
+            executor = null;
+            ownsExecutor = false;
+            virtualThreads = false;
+        }
+    }
+
 }
@@ -1,11 +1,17 @@
 package org.javawebstack.httpclient;
 
 import javax.net.ssl.*;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
@@ -14,30 +20,60 @@ import java.util.*;
 
 public class HTTPClientSocket {
 
+    private static final int CHUNK_SIZE = 8192;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int READ_BUFFER_SIZE = 16384;
+    private static final int TRANSFER_BUFFER_SIZE = 131072;
+    private static final ThreadLocal<ByteBuffer> TRANSFER_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE));
+
     private final Socket socket;
-    private final InputStream inputStream;
+    private final SocketChannel channel;
+    private final SocketReader inputStream;
     private InputStream internalInputStream;
     private final OutputStream outputStream;
-    private final String requestPath;
+    private String requestPath;
     private String requestMethod = "GET";
     private final String host;
+    private final String route;
     private final Map<String, List<String>> requestHeaders = new HashMap<>();
+    private final HTTPRequestHeadEncoder headEncoder = new HTTPRequestHeadEncoder();
     private int responseStatus;
     private String responseStatusMessage;
     private final Map<String, List<String>> responseHeaders = new HashMap<>();
+    private final HTTPHeaderParser headerParser = new HTTPHeaderParser(responseHeaders);
     private boolean headersSent;
     private boolean headersReceived;
+    private boolean keepAlive;
+    private boolean bodyFinished;
+    private int requests;
 
     public HTTPClientSocket(String url, boolean insecure) throws IOException {
-        String[] urlSplit = url.split("/", 4);
-        if(urlSplit.length < 3)
-            throw new RuntimeException("Invalid HTTP or WebSocket URL: " + url);
-        boolean ssl = urlSplit[0].equals("https:") || urlSplit[0].equals("wss:");
+        this(url, insecure, 0);
+    }
+
+    public HTTPClientSocket(String url, boolean insecure, int timeout) throws IOException {
+        this(url, insecure, timeout, false);
+    }
+
+    /**
+     * @param useChannel whether a plain connection should be backed by a SocketChannel, so file bodies can be moved
+     *                   between the connection and the file without copying them through the heap. On Java 8 the
+     *                   streams of such a socket block each other, so it shouldn't be read and written concurrently.
+     */
+    public HTTPClientSocket(String url, boolean insecure, int timeout, boolean useChannel) throws IOException {
+        String[] urlSplit = splitUrl(url);
+        boolean ssl = isSecure(urlSplit);
         this.host = urlSplit[2];
+        this.route = route(url, insecure);
         String[] hostSplit = urlSplit[2].split(":");
         String host = hostSplit[0];
         int port = hostSplit.length > 1 ? Integer.parseInt(hostSplit[1]) : (ssl ? 443 : 80);
-        requestPath = "/" + (urlSplit.length > 3 ? urlSplit[3] : "");
+        requestPath = requestPath(urlSplit);
+        Socket plain = useChannel && !ssl ? SocketChannel.open().socket() : new Socket();
+        plain.connect(new InetSocketAddress(host, port), timeout);
+        plain.setSoTimeout(timeout);
         if(ssl) {
             SSLSocketFactory factory;
             if(insecure) {
@@ -62,20 +98,153 @@ public class HTTPClientSocket {
             } else {
                 factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
             }
-            socket = factory.createSocket(host, port);
+            socket = factory.createSocket(plain, host, port, true);
             ((SSLSocket) socket).startHandshake();
+            channel = null;
         } else {
-            socket = new Socket(host, port);
+            socket = plain;
+            channel = plain.getChannel();
         }
         outputStream = socket.getOutputStream();
-        inputStream = socket.getInputStream();
+        inputStream = new SocketReader(socket.getInputStream());
+    }
+
+    private static String[] splitUrl(String url) {
+        String[] urlSplit = url.split("/", 4);
+        if(urlSplit.length < 3)
+            throw new RuntimeException("Invalid HTTP or WebSocket URL: " + url);
+        return urlSplit;
+    }
+
+    private static boolean isSecure(String[] urlSplit) {
+        return urlSplit[0].equals("https:") || urlSplit[0].equals("wss:");
+    }
+
+    private static String requestPath(String[] urlSplit) {
+        return "/" + (urlSplit.length > 3 ? urlSplit[3] : "");
+    }
+
+    /**
+     * Returns the key of the connection route (scheme, host and port) for the given url.
+     * Sockets can only be reused for requests with the same route.
+     */
+    public static String route(String url, boolean insecure) {
+        String[] urlSplit = splitUrl(url);
+        boolean ssl = isSecure(urlSplit);
+        String hostPort = urlSplit[2].toLowerCase(Locale.ROOT);
+        if(!hostPort.contains(":"))
+            hostPort += ssl ? ":443" : ":80";
+        return (ssl ? "https://" : "http://") + hostPort + (ssl && insecure ? " (insecure)" : "");
+    }
+
+    public String getRoute() {
+        return route;
+    }
+
+    /**
+     * Resets the request and response state so the connection can be used for another request on the same route.
+     */
+    public HTTPClientSocket reset(String url) {
+        if(!route.equals(route(url, route.endsWith(" (insecure)"))))
+            throw new IllegalArgumentException("The url " + url + " doesn't match the route " + route);
+        requestPath = requestPath(splitUrl(url));
+        requestMethod = "GET";
+        requestHeaders.clear();
+        headerParser.reset();
+        responseStatus = 0;
+        responseStatusMessage = null;
+        internalInputStream = null;
+        headersSent = false;
+        headersReceived = false;
+        keepAlive = false;
+        bodyFinished = false;
+        return this;
+    }
+
+    public void setTimeout(int timeout) throws IOException {
+        socket.setSoTimeout(timeout);
+    }
+
+    /**
+     * Checks whether an idle connection has been closed by the peer or received unexpected data.
+     * The check blocks for at most one millisecond.
+     */
+    public boolean isStale() {
+        if(socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown())
+            return true;
+        try {
+            if(inputStream.available() > 0)
+                return true;
+            int timeout = socket.getSoTimeout();
+            try {
+                socket.setSoTimeout(1);
+                inputStream.read();
+                return true;
+            } catch (SocketTimeoutException ignored) {
+                return false;
+            } finally {
+                socket.setSoTimeout(timeout);
+            }
+        } catch (IOException ignored) {
+            return true;
+        }
+    }
+
+    /**
+     * Returns true when a previous request has already been sent over this connection.
+     */
+    public boolean isReused() {
+        return requests > 1;
+    }
+
+    /**
+     * Returns true when any part of the current response has been received.
+     */
+    public boolean hasReceivedResponse() {
+        return headerParser.hasReceivedData();
+    }
+
+    /**
+     * Returns true when the response was completely read and the connection can be used for another request.
+     */
+    public boolean isReusable() {
+        return headersReceived && keepAlive && bodyFinished && !socket.isClosed();
+    }
+
+    /**
+     * Reads and discards the rest of the response body as long as it doesn't exceed the given amount of bytes.
+     * Returns whether the connection can be reused afterwards.
+     */
+    public boolean drain(long limit) {
+        if(!headersReceived || !keepAlive || socket.isClosed())
+            return false;
+        try {
+            byte[] buffer = new byte[8192];
+            long drained = 0;
+            while (!bodyFinished && drained <= limit) {
+                int r = internalInputStream.read(buffer, 0, (int) Math.min(buffer.length, limit - drained + 1));
+                if(r == -1)
+                    break;
+                drained += r;
+            }
+        } catch (IOException ignored) {
+            return false;
+        }
+        return isReusable();
     }
 
     public InputStream getInputStream() {
         return new HTTPInputStream();
     }
 
+    /**
+     * Returns a stream for the request body. The body is sent chunked if the transfer-encoding request header has
+     * been set to chunked, the stream then has to be closed to finish the request.
+     */
     public OutputStream getOutputStream() {
+        List<String> transferEncoding = requestHeaders.get("transfer-encoding");
+        if(transferEncoding != null && transferEncoding.size() > 0 && transferEncoding.get(transferEncoding.size() - 1).toLowerCase(Locale.ROOT).endsWith("chunked"))
+            return new ChunkedHTTPOutputStream();
         return new HTTPOutputStream();
     }
 
@@ -126,20 +295,43 @@ public class HTTPClientSocket {
     }
 
     private void writeHeaders() throws IOException {
-        if(headersSent)
+        writeHeaders(null, 0, 0);
+    }
+
+    /**
+     * Writes the head together with the first part of the body. Small bodies are copied behind the head so both go
+     * out in a single write, larger ones are sent with a gathering write on plain connections.
+     */
+    private void writeHeaders(byte[] b, int off, int len) throws IOException {
+        if(headersSent) {
+            if(len > 0)
+                outputStream.write(b, off, len);
             return;
+        }
         headersSent = true;
-        StringBuilder sb = new StringBuilder(requestMethod.toUpperCase(Locale.ROOT))
-                .append(" ")
-                .append(requestPath)
-                .append(" HTTP/1.1\nHost: ")
-                .append(host)
-                .append("\r\nHost: ")
-                .append(host);
-        sb.append("\r\n");
-        requestHeaders.forEach((k, values) -> values.forEach(v -> sb.append(k).append(": ").append(v).append("\r\n")));
-        sb.append("\r\n");
-        outputStream.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        requests++;
+        headEncoder.begin(requestMethod, requestPath, host).headers(requestHeaders).end();
+        if(len <= HTTPRequestHeadEncoder.MAX_COALESCED_BODY) {
+            if(len > 0)
+                headEncoder.body(b, off, len);
+            outputStream.write(headEncoder.array(), 0, headEncoder.size());
+        } else if(channel != null) {
+            ByteBuffer[] buffers = { ByteBuffer.wrap(headEncoder.array(), 0, headEncoder.size()), ByteBuffer.wrap(b, off, len) };
+            synchronized (channel.blockingLock()) {
+                while (buffers[1].hasRemaining())
+                    channel.write(buffers);
+            }
+        } else {
+            outputStream.write(headEncoder.array(), 0, headEncoder.size());
+            outputStream.write(b, off, len);
+        }
+    }
+
+    /**
+     * Encodes the request line and headers of a HTTP/1.1 request.
+     */
+    public static byte[] encodeRequestHead(String method, String path, String host, Map<String, List<String>> headers) {
+        return new HTTPRequestHeadEncoder().begin(method, path, host).headers(headers).end().toByteArray();
     }
 
     private void readHeaders() throws IOException {
@@ -148,55 +340,36 @@ public class HTTPClientSocket {
         if(!headersSent)
             writeHeaders();
         headersReceived = true;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        int lb = -1;
-        while (true) {
-            int b = inputStream.read();
-            if(b == -1) {
-                socket.close();
-                throw new IOException("Unexpected end of stream");
+        try {
+            while (!headerParser.isComplete()) {
+                if(!inputStream.feed(headerParser))
+                    throw new IOException("Unexpected end of stream");
             }
-            if(b == '\r' && lb == '\n') {
-                b = inputStream.read();
-                break;
-            }
-            baos.write(b);
-            lb = b;
-        }
-        String[] lines = new String(baos.toByteArray(), StandardCharsets.UTF_8).split("\\r?\\n");
-        if(lines.length < 2) {
+        } catch (IOException ex) {
             socket.close();
-            throw new IOException("Invalid http response");
+            throw ex;
         }
-        String[] first = lines[0].split(" ", 3);
-        if(first.length != 3 || !first[0].startsWith("HTTP/")) {
-            socket.close();
-            throw new IOException("Invalid http response");
-        }
-        responseStatus = Integer.parseInt(first[1]);
-        responseStatusMessage = first[2];
-        for(int i=1; i<lines.length; i++) {
-            if(lines[i].length() == 0)
-                continue;
-            String[] hspl = lines[i].split(": ", 2);
-            if(hspl.length != 2)
-                throw new IOException("Invalid http request");
-            List<String> values = responseHeaders.computeIfAbsent(hspl[0].toLowerCase(Locale.ROOT), h -> new ArrayList<>());
-            values.add(hspl[1]);
-        }
-        if(getResponseHeader("transfer-encoding") != null) {
-            switch (getResponseHeader("transfer-encoding")) {
-                case "chunked":
-                    internalInputStream = new ChunkedHTTPInputStream();
-                    break;
-                default:
-                    internalInputStream = new StandardHTTPInputStream();
-                    break;
-            }
-        } else if(getResponseHeader("upgrade") != null) {
-            internalInputStream = inputStream;
-        } else {
-            internalInputStream = new StandardHTTPInputStream();
+        responseStatus = headerParser.getStatus();
+        responseStatusMessage = headerParser.getStatusMessage();
+        HTTPResponseDecoder.Framing framing = HTTPResponseDecoder.framing(requestMethod, responseStatus, responseHeaders);
+        keepAlive = HTTPResponseDecoder.keepAlive(headerParser.getVersion(), framing, responseHeaders, requestHeaders);
+        switch (framing) {
+            case CHUNKED:
+                internalInputStream = new ChunkedHTTPInputStream();
+                break;
+            case UPGRADE:
+                internalInputStream = inputStream;
+                break;
+            case NONE:
+                bodyFinished = true;
+                internalInputStream = new EmptyHTTPInputStream();
+                break;
+            case LENGTH:
+                internalInputStream = new StandardHTTPInputStream();
+                break;
+            default:
+                internalInputStream = new UntilCloseHTTPInputStream();
+                break;
         }
     }
 
@@ -208,49 +381,224 @@ public class HTTPClientSocket {
         return socket.isClosed();
     }
 
+    private int safeRead() throws IOException {
+        int b = inputStream.read();
+        if(b == -1) {
+            keepAlive = false;
+            throw new IOException("Unexpected end of stream");
+        }
+        return b;
+    }
+
+    private int safeRead(byte[] b, int off, int len) throws IOException {
+        int r = inputStream.read(b, off, len);
+        if(r == -1) {
+            keepAlive = false;
+            throw new IOException("Unexpected end of stream");
+        }
+        return r;
+    }
+
+    private class EmptyHTTPInputStream extends InputStream {
+        public int read() {
+            return -1;
+        }
+        public int read(byte[] b, int off, int len) {
+            return len == 0 ? 0 : -1;
+        }
+    }
+
     private class StandardHTTPInputStream extends InputStream {
-        int len;
-        int c = 0;
-        StandardHTTPInputStream() throws IOException {
-            String cl = getResponseHeader("content-length");
-            len = cl == null ? 0 : Integer.parseInt(cl);
+        long len;
+        long c = 0;
+        StandardHTTPInputStream() {
+            len = Math.max(0, headerParser.getContentLength());
+            if(len == 0)
+                bodyFinished = true;
         }
         public int read() throws IOException {
             if(c >= len)
                 return -1;
+            int b = safeRead();
             c++;
-            return inputStream.read();
+            if(c >= len)
+                bodyFinished = true;
+            return b;
+        }
+        public int read(byte[] b, int off, int length) throws IOException {
+            if(length == 0)
+                return 0;
+            if(c >= len)
+                return -1;
+            int r = safeRead(b, off, (int) Math.min(length, len - c));
+            c += r;
+            if(c >= len)
+                bodyFinished = true;
+            return r;
+        }
+        public int available() throws IOException {
+            return (int) Math.min(len - c, inputStream.available());
+        }
+        long transferTo(FileChannel file, long position) throws IOException {
+            long received = receive(file, position, len - c);
+            c += received;
+            if(c < len) {
+                keepAlive = false;
+                throw new IOException("Unexpected end of stream");
+            }
+            bodyFinished = true;
+            return received;
+        }
+    }
+
+    private class UntilCloseHTTPInputStream extends InputStream {
+        public int read() throws IOException {
+            if(bodyFinished)
+                return -1;
+            int b = inputStream.read();
+            if(b == -1)
+                bodyFinished = true;
+            return b;
+        }
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0)
+                return 0;
+            if(bodyFinished)
+                return -1;
+            int r = inputStream.read(b, off, len);
+            if(r == -1)
+                bodyFinished = true;
+            return r;
+        }
+        public int available() throws IOException {
+            return bodyFinished ? 0 : inputStream.available();
+        }
+        long transferTo(FileChannel file, long position) throws IOException {
+            long received = bodyFinished ? 0 : receive(file, position, Long.MAX_VALUE);
+            bodyFinished = true;
+            return received;
         }
     }
 
     private class ChunkedHTTPInputStream extends InputStream {
-        int remChunk = -1;
+        long remChunk = -1;
         boolean finished;
         public int read() throws IOException {
-            if(finished)
+            if(!nextChunk())
+                return -1;
+            remChunk--;
+            return safeRead();
+        }
+        /**
+         * Copies at most up to the end of the current chunk, so a call never blocks for the next chunk header.
+         */
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0)
+                return 0;
+            if(!nextChunk())
                 return -1;
-            if(remChunk < 1) {
-                if(remChunk == 0) {
-                    inputStream.read();
-                    inputStream.read();
+            int r = safeRead(b, off, (int) Math.min(len, remChunk));
+            remChunk -= r;
+            return r;
+        }
+        public int available() {
+            return finished || remChunk < 1 ? 0 : (int) Math.min(remChunk, inputStream.buffered());
+        }
+        private boolean nextChunk() throws IOException {
+            if(finished)
+                return false;
+            if(remChunk > 0)
+                return true;
+            if(remChunk == 0) {
+                safeRead();
+                safeRead();
+            }
+            String line = readLine();
+            int extension = line.indexOf(';');
+            if(extension != -1)
+                line = line.substring(0, extension);
+            try {
+                remChunk = Long.parseLong(line.trim(), 16);
+            } catch (NumberFormatException ex) {
+                keepAlive = false;
+                throw new IOException("Invalid chunk size");
+            }
+            if(remChunk == 0) {
+                while (readLine().length() > 0) {
+                    // skip trailers
                 }
-                int b;
-                StringBuilder hex = new StringBuilder();
-                while ((b = inputStream.read()) != '\r')
-                    hex.append((char) b);
-                remChunk = Integer.parseInt(hex.toString(), 16);
-                if(remChunk == 0) {
-                    finished = true;
-                    return -1;
+                finished = true;
+                bodyFinished = true;
+                return false;
+            }
+            return true;
+        }
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int b;
+            while ((b = safeRead()) != '\n') {
+                if(b != '\r')
+                    sb.append((char) b);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Reads up to limit bytes from the channel into the file. The channel is switched to non-blocking mode for the
+     * transfer, so the read timeout can be applied through a selector.
+     * @return the amount of bytes received, which is less than the limit if the peer closed the connection
+     */
+    private long receive(FileChannel file, long position, long limit) throws IOException {
+        long received = inputStream.transferBuffered(file, position, limit);
+        position += received;
+        ByteBuffer buffer = TRANSFER_BUFFER.get();
+        int timeout = socket.getSoTimeout();
+        synchronized (channel.blockingLock()) {
+            channel.configureBlocking(false);
+            try (Selector selector = Selector.open()) {
+                channel.register(selector, SelectionKey.OP_READ);
+                while (received < limit) {
+                    buffer.clear();
+                    if(limit - received < buffer.capacity())
+                        buffer.limit((int) (limit - received));
+                    int r = channel.read(buffer);
+                    if(r == -1)
+                        break;
+                    if(r == 0) {
+                        if(selector.select(timeout) == 0)
+                            throw new SocketTimeoutException("Read timed out");
+                        selector.selectedKeys().clear();
+                        continue;
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                        position += file.write(buffer, position);
+                    received += r;
                 }
-                inputStream.read();
+            } catch (IOException e) {
+                keepAlive = false;
+                throw e;
+            } finally {
+                // closing the selector has deregistered the channel, so it can be switched back
+                channel.configureBlocking(true);
             }
-            remChunk--;
-            return inputStream.read();
         }
+        return received;
     }
 
-    private class HTTPInputStream extends InputStream {
+    private class HTTPInputStream extends InputStream implements FileTransferSource {
+        public long transferTo(FileChannel file, long position) throws IOException {
+            if(!headersReceived)
+                readHeaders();
+            if(channel == null)
+                return -1;
+            if(internalInputStream instanceof StandardHTTPInputStream)
+                return ((StandardHTTPInputStream) internalInputStream).transferTo(file, position);
+            if(internalInputStream instanceof UntilCloseHTTPInputStream)
+                return ((UntilCloseHTTPInputStream) internalInputStream).transferTo(file, position);
+            return -1;
+        }
         public int available() throws IOException {
             if(!headersReceived)
                 readHeaders();
@@ -261,21 +609,216 @@ public class HTTPClientSocket {
                 readHeaders();
             return internalInputStream.read();
         }
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(!headersReceived)
+                readHeaders();
+            return internalInputStream.read(b, off, len);
+        }
     }
 
-    private class HTTPOutputStream extends OutputStream {
+    /**
+     * Buffers the input of the socket, so neither the header parser nor the body streams cause a system call per
+     * byte. Reads that are larger than the buffer bypass it.
+     */
+    private static final class SocketReader extends InputStream {
+        private final InputStream in;
+        private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+        private int pos;
+        private int limit;
+        SocketReader(InputStream in) {
+            this.in = in;
+        }
+        public int read() throws IOException {
+            if(pos == limit && fill() == -1)
+                return -1;
+            return buffer[pos++] & 0xFF;
+        }
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0)
+                return 0;
+            if(pos == limit) {
+                if(len >= buffer.length)
+                    return in.read(b, off, len);
+                if(fill() == -1)
+                    return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buffer, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        public int available() throws IOException {
+            return (limit - pos) + in.available();
+        }
+        int buffered() {
+            return limit - pos;
+        }
+        /**
+         * Passes the buffered bytes to the header parser, the buffer is filled first if it's empty.
+         * @return false if the end of the stream has been reached
+         */
+        boolean feed(HTTPHeaderParser parser) throws IOException {
+            if(pos == limit && fill() == -1)
+                return false;
+            pos += parser.parse(buffer, pos, limit - pos);
+            return true;
+        }
+        /**
+         * Writes at most max of the buffered bytes to the file before the rest of the body is read from the channel.
+         */
+        long transferBuffered(FileChannel file, long position, long max) throws IOException {
+            int n = (int) Math.min(max, limit - pos);
+            ByteBuffer data = ByteBuffer.wrap(buffer, pos, n);
+            while (data.hasRemaining())
+                position += file.write(data, position);
+            pos += n;
+            return n;
+        }
+        private int fill() throws IOException {
+            pos = 0;
+            limit = 0;
+            int r = in.read(buffer, 0, buffer.length);
+            if(r > 0)
+                limit = r;
+            return r;
+        }
+    }
+
+    private class HTTPOutputStream extends OutputStream implements FileTransferTarget {
+        public long transferFrom(FileChannel file, long position, long count) throws IOException {
+            if(channel == null)
+                return -1;
+            if(!headersSent)
+                writeHeaders();
+            long sent = 0;
+            synchronized (channel.blockingLock()) {
+                while (sent < count) {
+                    long n = file.transferTo(position + sent, count - sent, channel);
+                    if(n == 0 && position + sent >= file.size())
+                        throw new IOException("Unexpected end of file");
+                    sent += n;
+                }
+            }
+            return sent;
+        }
         public void flush() throws IOException {
             writeHeaders();
-            super.flush();
+            outputStream.flush();
         }
         public void write(int i) throws IOException {
             if(!headersSent)
                 writeHeaders();
             outputStream.write(i);
         }
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeHeaders(b, off, len);
+        }
         public void close() throws IOException {
-            close();
+            flush();
         }
     }
 
+    /**
+     * Writes the body in chunks of at most CHUNK_SIZE bytes. Closing the stream writes the last chunk but leaves the
+     * connection open for the response.
+     */
+    private class ChunkedHTTPOutputStream extends OutputStream {
+        final byte[] buffer = new byte[CHUNK_SIZE];
+        byte[] frame;
+        int count;
+        boolean closed;
+        public void write(int i) throws IOException {
+            if(count == buffer.length)
+                writeChunk(buffer, 0, count);
+            buffer[count++] = (byte) i;
+        }
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(closed)
+                throw new IOException("Stream closed");
+            if(len >= buffer.length) {
+                writeChunk(buffer, 0, count);
+                writeChunk(b, off, len);
+                return;
+            }
+            if(count + len > buffer.length)
+                writeChunk(buffer, 0, count);
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+        private void writeChunk(byte[] b, int off, int len) throws IOException {
+            writeChunk(b, off, len, false);
+        }
+        /**
+         * Chunks up to CHUNK_SIZE are framed in a single array, so they leave in one write together with the head
+         * for the first and the last chunk for the final one.
+         */
+        private void writeChunk(byte[] b, int off, int len, boolean last) throws IOException {
+            if(b == buffer)
+                count = 0;
+            if(len == 0) {
+                if(last) {
+                    writeHeaders(LAST_CHUNK, 0, LAST_CHUNK.length);
+                } else if(!headersSent) {
+                    writeHeaders();
+                }
+                return;
+            }
+            if(len > CHUNK_SIZE) {
+                byte[] size = (Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+                writeHeaders(size, 0, size.length);
+                outputStream.write(b, off, len);
+                outputStream.write(CRLF);
+                return;
+            }
+            if(frame == null)
+                frame = new byte[CHUNK_SIZE + 8 + LAST_CHUNK.length];
+            int n = 0;
+            for(int shift = (31 - Integer.numberOfLeadingZeros(len)) & ~3; shift >= 0; shift -= 4)
+                frame[n++] = HEX[(len >>> shift) & 0xF];
+            frame[n++] = '\r';
+            frame[n++] = '\n';
+            System.arraycopy(b, off, frame, n, len);
+            n += len;
+            frame[n++] = '\r';
+            frame[n++] = '\n';
+            if(last) {
+                System.arraycopy(LAST_CHUNK, 0, frame, n, LAST_CHUNK.length);
+                n += LAST_CHUNK.length;
+            }
+            writeHeaders(frame, 0, n);
+        }
+        public void flush() throws IOException {
+            writeChunk(buffer, 0, count);
+            outputStream.flush();
+        }
+        public void close() throws IOException {
+            if(closed)
+                return;
+            closed = true;
+            writeChunk(buffer, 0, count, true);
+            outputStream.flush();
+        }
+    }
+
+    /**
+     * Implemented by request body streams that can send a file region without copying it through the heap.
+     */
+    interface FileTransferTarget {
+        /**
+         * @return the amount of bytes sent or -1 if the connection doesn't support it, nothing has been sent then
+         */
+        long transferFrom(FileChannel file, long position, long count) throws IOException;
+    }
+
+    /**
+     * Implemented by response body streams that can write the body to a file without copying it through the heap.
+     */
+    interface FileTransferSource {
+        /**
+         * Writes the rest of the body to the file starting at the given position.
+         * @return the amount of bytes written or -1 if the connection doesn't support it, nothing has been read then
+         */
+        long transferTo(FileChannel file, long position) throws IOException;
+    }
+
 }
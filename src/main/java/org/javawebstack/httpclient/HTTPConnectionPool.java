@@ -0,0 +1,235 @@
+package org.javawebstack.httpclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Keeps HTTP/1.1 keep-alive connections open between requests. Connections are grouped by their route
+ * (scheme, host and port) and limited per route and in total. Idle connections are evicted after the idle timeout
+ * and checked for staleness before they are handed out again.
+ */
+public class HTTPConnectionPool implements Closeable {
+
+    private static final long VALIDATE_AFTER_INACTIVITY = 1000;
+
+    private final Map<String, Deque<IdleConnection>> idleConnections = new HashMap<>();
+    private final Map<String, Integer> routeConnections = new HashMap<>();
+    private int totalConnections;
+    private int maxConnections = 100;
+    private int maxConnectionsPerRoute = 20;
+    private long idleTimeout = 30000;
+    private long maxDrainBytes = 65536;
+    private boolean closed;
+
+    public synchronized HTTPConnectionPool setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        notifyAll();
+        return this;
+    }
+
+    public synchronized int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public synchronized HTTPConnectionPool setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        notifyAll();
+        return this;
+    }
+
+    public synchronized int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public synchronized HTTPConnectionPool setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    public synchronized long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets how many bytes of an unread response body will be drained to return a connection to the pool.
+     * Connections with larger remaining bodies are closed instead.
+     */
+    public synchronized HTTPConnectionPool setMaxDrainBytes(long maxDrainBytes) {
+        this.maxDrainBytes = maxDrainBytes;
+        return this;
+    }
+
+    public synchronized int getIdleConnections() {
+        return idleConnections.values().stream().mapToInt(Deque::size).sum();
+    }
+
+    public synchronized int getTotalConnections() {
+        return totalConnections;
+    }
+
+    /**
+     * Leases a connection for the route of the given url. An idle connection is reused if available, otherwise a new
+     * one is opened as long as the limits allow it. If the pool is exhausted the call waits up to the given timeout
+     * (0 waits forever) for a connection to be released.
+     */
+    public HTTPClientSocket acquire(String url, boolean insecure, int timeout) throws IOException {
+        String route = HTTPClientSocket.route(url, insecure);
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        while (true) {
+            IdleConnection idle = null;
+            synchronized (this) {
+                while (true) {
+                    if(closed)
+                        throw new IOException("Connection pool has been closed");
+                    evictExpired();
+                    Deque<IdleConnection> idleRoute = idleConnections.get(route);
+                    if(idleRoute != null && idleRoute.size() > 0) {
+                        idle = idleRoute.pollFirst();
+                        break;
+                    }
+                    int perRoute = routeConnections.getOrDefault(route, 0);
+                    if(perRoute < maxConnectionsPerRoute) {
+                        if(totalConnections >= maxConnections)
+                            evictOldest();
+                        if(totalConnections < maxConnections) {
+                            routeConnections.put(route, perRoute + 1);
+                            totalConnections++;
+                            break;
+                        }
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if(remaining <= 0)
+                        throw new IOException("Timeout waiting for a connection to " + route);
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for a connection to " + route);
+                    }
+                }
+            }
+            if(idle == null) {
+                try {
+                    HTTPClientSocket socket = new HTTPClientSocket(url, insecure, timeout, true);
+                    return socket.reset(url);
+                } catch (IOException | RuntimeException e) {
+                    free(route);
+                    throw e;
+                }
+            }
+            if(System.currentTimeMillis() - idle.since < VALIDATE_AFTER_INACTIVITY || !idle.socket.isStale()) {
+                idle.socket.setTimeout(timeout);
+                return idle.socket.reset(url);
+            }
+            discard(idle.socket);
+        }
+    }
+
+    /**
+     * Returns a leased connection. The remaining response body is drained and the connection is kept for reuse if
+     * the response was properly framed, otherwise it gets closed.
+     */
+    public void release(HTTPClientSocket socket) {
+        long drainLimit;
+        synchronized (this) {
+            drainLimit = maxDrainBytes;
+        }
+        if(!socket.drain(drainLimit)) {
+            discard(socket);
+            return;
+        }
+        synchronized (this) {
+            if(!closed) {
+                idleConnections.computeIfAbsent(socket.getRoute(), r -> new ArrayDeque<>()).addFirst(new IdleConnection(socket));
+                notifyAll();
+                return;
+            }
+        }
+        discard(socket);
+    }
+
+    /**
+     * Closes a leased connection and frees its slot in the pool.
+     */
+    public void discard(HTTPClientSocket socket) {
+        closeQuietly(socket);
+        free(socket.getRoute());
+    }
+
+    /**
+     * Closes all idle connections that exceeded the idle timeout.
+     */
+    public synchronized void closeExpired() {
+        evictExpired();
+    }
+
+    public void close() {
+        List<IdleConnection> connections = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            idleConnections.values().forEach(connections::addAll);
+            idleConnections.clear();
+            notifyAll();
+        }
+        for(IdleConnection idle : connections)
+            discard(idle.socket);
+    }
+
+    private synchronized void free(String route) {
+        int perRoute = routeConnections.getOrDefault(route, 0) - 1;
+        if(perRoute > 0) {
+            routeConnections.put(route, perRoute);
+        } else {
+            routeConnections.remove(route);
+        }
+        totalConnections--;
+        notifyAll();
+    }
+
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        for(Iterator<Deque<IdleConnection>> it = idleConnections.values().iterator(); it.hasNext(); ) {
+            Deque<IdleConnection> idleRoute = it.next();
+            while (idleRoute.size() > 0 && now - idleRoute.peekLast().since > idleTimeout) {
+                IdleConnection idle = idleRoute.pollLast();
+                closeQuietly(idle.socket);
+                free(idle.socket.getRoute());
+            }
+            if(idleRoute.size() == 0)
+                it.remove();
+        }
+    }
+
+    private void evictOldest() {
+        IdleConnection oldest = null;
+        for(Deque<IdleConnection> idleRoute : idleConnections.values()) {
+            IdleConnection candidate = idleRoute.peekLast();
+            if(candidate != null && (oldest == null || candidate.since < oldest.since))
+                oldest = candidate;
+        }
+        if(oldest == null)
+            return;
+        Deque<IdleConnection> idleRoute = idleConnections.get(oldest.socket.getRoute());
+        idleRoute.pollLast();
+        if(idleRoute.size() == 0)
+            idleConnections.remove(oldest.socket.getRoute());
+        closeQuietly(oldest.socket);
+        free(oldest.socket.getRoute());
+    }
+
+    private static void closeQuietly(HTTPClientSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    private static class IdleConnection {
+        final HTTPClientSocket socket;
+        final long since = System.currentTimeMillis();
+        IdleConnection(HTTPClientSocket socket) {
+            this.socket = socket;
+        }
+    }
+
+}
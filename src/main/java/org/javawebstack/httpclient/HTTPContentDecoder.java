@@ -0,0 +1,87 @@
+package org.javawebstack.httpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.lang.reflect.Constructor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes a response body of a content coding (Content-Encoding), see HTTPClient.contentDecoder.
+ */
+public interface HTTPContentDecoder {
+
+    HTTPContentDecoder GZIP = in -> new GZIPInputStream(in, 8192);
+
+    /**
+     * The deflate coding is meant to be zlib wrapped, but some servers send raw deflate data. The header decides which
+     * one it is.
+     */
+    HTTPContentDecoder DEFLATE = in -> {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] header = new byte[2];
+        int n = 0;
+        while (n < 2) {
+            int r = pushback.read(header, n, 2 - n);
+            if(r == -1)
+                break;
+            n += r;
+        }
+        pushback.unread(header, 0, n);
+        boolean zlib = n == 2 && (header[0] & 0x0F) == 8 && (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+        Inflater inflater = new Inflater(!zlib);
+        return new InflaterInputStream(pushback, inflater, 8192) {
+            private boolean closed;
+            public void close() throws IOException {
+                if(closed)
+                    return;
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    };
+
+    InputStream decode(InputStream in) throws IOException;
+
+    /**
+     * Returns a br decoder if Brotli4j or the org.brotli decoder is on the classpath, otherwise null.
+     */
+    static HTTPContentDecoder brotli() {
+        try {
+            Class.forName("com.aayushatharva.brotli4j.Brotli4jLoader").getMethod("ensureAvailability").invoke(null);
+            HTTPContentDecoder decoder = reflective("com.aayushatharva.brotli4j.decoder.BrotliInputStream");
+            if(decoder != null)
+                return decoder;
+        } catch (ReflectiveOperationException | LinkageError ignored) {}
+        return reflective("org.brotli.dec.BrotliInputStream");
+    }
+
+    /**
+     * Returns a zstd decoder if zstd-jni is on the classpath, otherwise null.
+     */
+    static HTTPContentDecoder zstd() {
+        return reflective("com.github.luben.zstd.ZstdInputStream");
+    }
+
+    static HTTPContentDecoder reflective(String className) {
+        try {
+            Constructor<?> constructor = Class.forName(className).getConstructor(InputStream.class);
+            return in -> {
+                try {
+                    return (InputStream) constructor.newInstance(in);
+                } catch (ReflectiveOperationException ex) {
+                    throw new IOException(ex.getCause() != null ? ex.getCause() : ex);
+                }
+            };
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+
+}
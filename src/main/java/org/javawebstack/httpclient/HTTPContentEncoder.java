@@ -0,0 +1,77 @@
+package org.javawebstack.httpclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes a request body with a content coding (Content-Encoding), see HTTPClient.requestCompression. Closing the
+ * returned stream has to finish the coding.
+ */
+public interface HTTPContentEncoder {
+
+    HTTPContentEncoder GZIP = out -> new GZIPOutputStream(out, 8192);
+
+    HTTPContentEncoder DEFLATE = out -> {
+        Deflater deflater = new Deflater();
+        return new DeflaterOutputStream(out, deflater, 8192) {
+            private boolean closed;
+            public void close() throws IOException {
+                if(closed)
+                    return;
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    };
+
+    OutputStream encode(OutputStream out) throws IOException;
+
+    /**
+     * Returns the encoder of a content coding or null if it isn't supported. gzip and deflate are built in, zstd needs
+     * zstd-jni on the classpath.
+     */
+    static HTTPContentEncoder forCoding(String coding) {
+        switch (coding.toLowerCase(Locale.ROOT)) {
+            case "gzip":
+                return GZIP;
+            case "deflate":
+                return DEFLATE;
+            case "zstd":
+                return zstd();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns a zstd encoder if zstd-jni is on the classpath, otherwise null.
+     */
+    static HTTPContentEncoder zstd() {
+        return reflective("com.github.luben.zstd.ZstdOutputStream");
+    }
+
+    static HTTPContentEncoder reflective(String className) {
+        try {
+            Constructor<?> constructor = Class.forName(className).getConstructor(OutputStream.class);
+            return out -> {
+                try {
+                    return (OutputStream) constructor.newInstance(out);
+                } catch (ReflectiveOperationException ex) {
+                    throw new IOException(ex.getCause() != null ? ex.getCause() : ex);
+                }
+            };
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+
+}
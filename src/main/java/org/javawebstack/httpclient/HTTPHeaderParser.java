@@ -0,0 +1,320 @@
+package org.javawebstack.httpclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Incremental parser for the status line and headers of a HTTP/1.1 response. Lines are parsed in place when they are
+ * completely contained in the input, only lines that are split between reads are copied. Common header names and
+ * values are mapped to shared constants and the status and Content-Length are parsed without intermediate Strings.
+ */
+final class HTTPHeaderParser {
+
+    static final int MAX_LINE_LENGTH = 65536;
+    static final int MAX_HEADER_COUNT = 256;
+
+    private static final String[] KNOWN_NAMES = {
+            "accept-ranges", "access-control-allow-credentials", "access-control-allow-headers",
+            "access-control-allow-methods", "access-control-allow-origin", "access-control-expose-headers", "age",
+            "allow", "alt-svc", "cache-control", "connection", "content-disposition", "content-encoding",
+            "content-language", "content-length", "content-location", "content-range", "content-security-policy",
+            "content-type", "date", "etag", "expires", "keep-alive", "last-modified", "link", "location", "pragma",
+            "proxy-authenticate", "referrer-policy", "retry-after", "sec-websocket-accept", "sec-websocket-extensions",
+            "sec-websocket-protocol", "server", "set-cookie", "set-cookie2", "strict-transport-security", "trailer",
+            "transfer-encoding", "upgrade", "vary", "via", "warning", "www-authenticate", "x-content-type-options",
+            "x-frame-options", "x-powered-by", "x-request-id", "x-xss-protection"
+    };
+    private static final String[] KNOWN_VALUES = {
+            "0", "bytes", "chunked", "close", "gzip", "br", "deflate", "identity", "keep-alive", "Keep-Alive", "no-cache",
+            "nosniff", "OK", "Upgrade", "upgrade", "websocket", "Accept-Encoding", "application/json",
+            "application/json; charset=utf-8", "text/html", "text/html; charset=utf-8", "text/html; charset=UTF-8",
+            "text/plain", "text/plain; charset=utf-8", "text/plain; charset=UTF-8", "*"
+    };
+    private static final String[] NAME_TABLE = new String[256];
+    private static final String[] VALUE_TABLE = new String[256];
+    private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_0 = "HTTP/1.0".getBytes(StandardCharsets.US_ASCII);
+
+    static {
+        for(String name : KNOWN_NAMES)
+            insert(NAME_TABLE, name, true);
+        for(String value : KNOWN_VALUES)
+            insert(VALUE_TABLE, value, false);
+    }
+
+    private final Map<String, List<String>> headers;
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private boolean statusParsed;
+    private boolean complete;
+    private boolean receivedData;
+    private int headerCount;
+    private String version;
+    private int status;
+    private String statusMessage;
+    private long contentLength = -1;
+
+    HTTPHeaderParser(Map<String, List<String>> headers) {
+        this.headers = headers;
+    }
+
+    void reset() {
+        headers.clear();
+        lineLength = 0;
+        statusParsed = false;
+        complete = false;
+        receivedData = false;
+        headerCount = 0;
+        version = null;
+        status = 0;
+        statusMessage = null;
+        contentLength = -1;
+    }
+
+    /**
+     * Consumes bytes until the empty line that ends the header block has been parsed. Bytes after it are left alone.
+     * @return the amount of bytes consumed
+     */
+    int parse(byte[] b, int off, int len) throws IOException {
+        int i = off;
+        int end = off + len;
+        if(len > 0)
+            receivedData = true;
+        while (i < end && !complete) {
+            int lf = i;
+            while (lf < end && b[lf] != '\n')
+                lf++;
+            if(lf == end) {
+                append(b, i, end - i);
+                return end - off;
+            }
+            if(lineLength == 0) {
+                if(lf - i > MAX_LINE_LENGTH)
+                    throw new IOException("Header line too long");
+                parseLine(b, i, lf);
+            } else {
+                append(b, i, lf - i);
+                parseLine(line, 0, lineLength);
+                lineLength = 0;
+            }
+            i = lf + 1;
+        }
+        return i - off;
+    }
+
+    /**
+     * Consumes bytes from the buffer like parse(byte[], int, int) and advances its position.
+     */
+    int parse(ByteBuffer buffer) throws IOException {
+        int consumed;
+        if(buffer.hasArray()) {
+            consumed = parse(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            consumed = parse(bytes, 0, bytes.length);
+        }
+        buffer.position(buffer.position() + consumed);
+        return consumed;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    boolean hasReceivedData() {
+        return receivedData;
+    }
+
+    String getVersion() {
+        return version;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    String getStatusMessage() {
+        return statusMessage;
+    }
+
+    /**
+     * Returns the value of the Content-Length header or -1 if there is none.
+     */
+    long getContentLength() {
+        return contentLength;
+    }
+
+    Map<String, List<String>> getHeaders() {
+        return headers;
+    }
+
+    private void append(byte[] b, int off, int len) throws IOException {
+        if(lineLength + len > MAX_LINE_LENGTH)
+            throw new IOException("Header line too long");
+        if(lineLength + len > line.length)
+            line = Arrays.copyOf(line, Math.min(MAX_LINE_LENGTH, Math.max(line.length * 2, lineLength + len)));
+        System.arraycopy(b, off, line, lineLength, len);
+        lineLength += len;
+    }
+
+    private void parseLine(byte[] b, int start, int end) throws IOException {
+        if(end > start && b[end - 1] == '\r')
+            end--;
+        if(!statusParsed) {
+            parseStatusLine(b, start, end);
+            statusParsed = true;
+            return;
+        }
+        if(end == start) {
+            complete = true;
+            return;
+        }
+        if(++headerCount > MAX_HEADER_COUNT)
+            throw new IOException("Too many headers");
+        int colon = start;
+        while (colon < end && b[colon] != ':')
+            colon++;
+        int nameEnd = colon;
+        while (nameEnd > start && isWhitespace(b[nameEnd - 1]))
+            nameEnd--;
+        if(colon == end || nameEnd == start || isWhitespace(b[start]))
+            throw new IOException("Invalid http response");
+        int valueStart = colon + 1;
+        while (valueStart < end && isWhitespace(b[valueStart]))
+            valueStart++;
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(b[valueEnd - 1]))
+            valueEnd--;
+        String name = lookup(NAME_TABLE, b, start, nameEnd, true);
+        if(name == null)
+            name = new String(b, start, nameEnd - start, StandardCharsets.ISO_8859_1).toLowerCase(Locale.ROOT);
+        String value = lookup(VALUE_TABLE, b, valueStart, valueEnd, false);
+        if(value == null)
+            value = new String(b, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+        // known names are the constants of the table, so they can be compared by reference
+        if(name == "content-length")
+            parseContentLength(b, valueStart, valueEnd);
+        List<String> values = headers.get(name);
+        if(values == null) {
+            values = new ArrayList<>(2);
+            headers.put(name, values);
+        }
+        values.add(value);
+    }
+
+    private void parseStatusLine(byte[] b, int start, int end) throws IOException {
+        int versionEnd = start;
+        while (versionEnd < end && b[versionEnd] != ' ')
+            versionEnd++;
+        if(versionEnd - start < 5 || b[start] != 'H' || b[start + 1] != 'T' || b[start + 2] != 'T' || b[start + 3] != 'P' || b[start + 4] != '/')
+            throw new IOException("Invalid http response");
+        if(equals(b, start, versionEnd, HTTP_1_1)) {
+            version = "HTTP/1.1";
+        } else if(equals(b, start, versionEnd, HTTP_1_0)) {
+            version = "HTTP/1.0";
+        } else {
+            version = new String(b, start, versionEnd - start, StandardCharsets.US_ASCII);
+        }
+        int i = versionEnd + 1;
+        if(i + 3 > end)
+            throw new IOException("Invalid http response");
+        int code = 0;
+        for(int j=i; j<i+3; j++) {
+            if(b[j] < '0' || b[j] > '9')
+                throw new IOException("Invalid http response");
+            code = code * 10 + (b[j] - '0');
+        }
+        i += 3;
+        if(i < end && b[i] != ' ')
+            throw new IOException("Invalid http response");
+        status = code;
+        i++;
+        if(i >= end) {
+            statusMessage = "";
+            return;
+        }
+        statusMessage = lookup(VALUE_TABLE, b, i, end, false);
+        if(statusMessage == null)
+            statusMessage = new String(b, i, end - i, StandardCharsets.UTF_8);
+    }
+
+    private void parseContentLength(byte[] b, int start, int end) throws IOException {
+        if(start == end)
+            throw new IOException("Invalid content length");
+        long length = 0;
+        for(int i=start; i<end; i++) {
+            if(b[i] < '0' || b[i] > '9' || length > (Long.MAX_VALUE - 9) / 10)
+                throw new IOException("Invalid content length");
+            length = length * 10 + (b[i] - '0');
+        }
+        if(contentLength != -1 && contentLength != length)
+            throw new IOException("Conflicting content lengths");
+        contentLength = length;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static boolean equals(byte[] b, int start, int end, byte[] expected) {
+        if(end - start != expected.length)
+            return false;
+        for(int i=0; i<expected.length; i++) {
+            if(b[start + i] != expected[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int hash(byte[] b, int start, int end, boolean ignoreCase) {
+        int h = end - start;
+        for(int i=start; i<end; i++)
+            h = h * 31 + (ignoreCase ? toLower(b[i]) : b[i]);
+        return h ^ (h >>> 16);
+    }
+
+    private static int toLower(int b) {
+        return b >= 'A' && b <= 'Z' ? b + 32 : b;
+    }
+
+    private static void insert(String[] table, String value, boolean ignoreCase) {
+        byte[] b = value.getBytes(StandardCharsets.US_ASCII);
+        int slot = hash(b, 0, b.length, ignoreCase) & (table.length - 1);
+        while (table[slot] != null)
+            slot = (slot + 1) & (table.length - 1);
+        table[slot] = value;
+    }
+
+    /**
+     * Returns the constant for the bytes or null if there is none. Names are matched case-insensitively.
+     */
+    private static String lookup(String[] table, byte[] b, int start, int end, boolean ignoreCase) {
+        if(end - start > 64)
+            return null;
+        int slot = hash(b, start, end, ignoreCase) & (table.length - 1);
+        String candidate;
+        while ((candidate = table[slot]) != null) {
+            if(matches(candidate, b, start, end, ignoreCase))
+                return candidate;
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return null;
+    }
+
+    private static boolean matches(String candidate, byte[] b, int start, int end, boolean ignoreCase) {
+        if(candidate.length() != end - start)
+            return false;
+        for(int i=0; i<candidate.length(); i++) {
+            int c = b[start + i];
+            if(ignoreCase)
+                c = toLower(c);
+            if(candidate.charAt(i) != c)
+                return false;
+        }
+        return true;
+    }
+
+}
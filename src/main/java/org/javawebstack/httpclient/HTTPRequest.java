@@ -4,30 +4,42 @@ import org.javawebstack.abstractdata.AbstractElement;
 import org.javawebstack.abstractdata.util.QueryString;
 import org.javawebstack.httpclient.implementation.IHTTPRequestImplementation;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 public class HTTPRequest {
 
+    private static final int DOWNLOAD_BUFFER_SIZE = 131072;
+
     private final HTTPClient client;
     private final String path;
     private final String method;
     private final QueryString query = new QueryString();
     private final Map<String, String[]> requestHeaders = new HashMap<>();
-    private byte[] requestBody;
+    private HTTPRequestBody requestBody;
     private Map<String, String[]> responseHeaders = new HashMap<>();
     private final List<HttpCookie> requestCookies = new ArrayList<>();
     private final List<HttpCookie> responseCookies = new ArrayList<>();
     private byte[] responseBody;
+    private boolean streamed;
     private int status;
     private String statusMessage;
-    private boolean executed;
+    private CompletableFuture<HTTPRequest> execution;
 
     private boolean followRedirects;
+    private boolean decodeResponse;
+    private boolean requestCompressionSet;
+    private String requestCompression;
+    private HTTPContentEncoder requestEncoder;
 
     public HTTPRequest(HTTPClient client, String method, String path) {
         this.client = client;
@@ -78,14 +90,67 @@ public class HTTPRequest {
     }
 
     public HTTPRequest body(byte[] body) {
+        return body(body == null ? null : HTTPRequestBody.of(body));
+    }
+
+    public HTTPRequest body(HTTPRequestBody body) {
         this.requestBody = body;
         return this;
     }
 
+    /**
+     * Streams the body from the given stream. The request can't be sent more than once.
+     */
+    public HTTPRequest body(InputStream body) {
+        return body(HTTPRequestBody.of(body));
+    }
+
+    /**
+     * Streams the body from a new stream of the supplier every time the request is sent.
+     */
+    public HTTPRequest body(Supplier<InputStream> body) {
+        return body(HTTPRequestBody.of(body));
+    }
+
+    /**
+     * Streams the body from the file. Plain http connections of the SimpleHTTPRequestImplementation send it without
+     * copying it through the heap.
+     */
+    public HTTPRequest bodyFile(Path file) {
+        return body(HTTPRequestBody.of(file));
+    }
+
+    /**
+     * Streams the body produced by the writer.
+     */
+    public HTTPRequest bodyWriter(HTTPRequestBody.Writer writer) {
+        return body(HTTPRequestBody.writer(writer));
+    }
+
     public HTTPRequest body(String body) {
         return body(body.getBytes(StandardCharsets.UTF_8));
     }
 
+    /**
+     * Overrides the request compression of the client for this request, null sends the body uncompressed. The
+     * threshold of the client still applies.
+     */
+    public HTTPRequest requestCompression(String coding) {
+        if(coding == null)
+            return requestCompression(null, null);
+        HTTPContentEncoder encoder = HTTPContentEncoder.forCoding(coding);
+        if(encoder == null)
+            throw new IllegalArgumentException("Unsupported content coding: " + coding);
+        return requestCompression(coding, encoder);
+    }
+
+    public HTTPRequest requestCompression(String coding, HTTPContentEncoder encoder) {
+        this.requestCompressionSet = true;
+        this.requestCompression = coding != null ? coding.toLowerCase(Locale.ROOT) : null;
+        this.requestEncoder = coding != null ? encoder : null;
+        return this;
+    }
+
     public HTTPRequest contentType(String contentType) {
         return header("Content-Type", contentType);
     }
@@ -152,6 +217,8 @@ public class HTTPRequest {
 
     public byte[] bytes() {
         execute();
+        if(streamed)
+            throw new IllegalStateException("The response body has been streamed");
         return responseBody;
     }
 
@@ -159,6 +226,110 @@ public class HTTPRequest {
         return new String(bytes(), StandardCharsets.UTF_8);
     }
 
+    /**
+     * Executes the request without blocking the calling thread. Interceptors and cookies are handled on the executor of
+     * the client just like in execute(), the transport itself is run through the implementation's executeAsync.
+     */
+    public CompletableFuture<HTTPRequest> executeAsync() {
+        CompletableFuture<HTTPRequest> future;
+        synchronized (this) {
+            if(execution != null)
+                return execution;
+            future = execution = new CompletableFuture<>();
+        }
+        Executor executor = client.getExecutor();
+        CompletableFuture.supplyAsync(this::prepare, executor)
+                .thenCompose(requestImplementation -> requestImplementation.executeAsync(executor).thenApplyAsync(status -> {
+                    this.status = status;
+                    complete(requestImplementation, true);
+                    return this;
+                }, executor))
+                .whenComplete((request, error) -> {
+                    if(error != null) {
+                        future.completeExceptionally(error);
+                    } else {
+                        future.complete(request);
+                    }
+                });
+        return future;
+    }
+
+    public CompletableFuture<Integer> statusAsync() {
+        return executeAsync().thenApply(HTTPRequest::status);
+    }
+
+    public CompletableFuture<String> stringAsync() {
+        return executeAsync().thenApply(HTTPRequest::string);
+    }
+
+    public <T> CompletableFuture<T> objectAsync(Class<T> type) {
+        return executeAsync().thenApply(r -> r.object(type));
+    }
+
+    /**
+     * Executes the request and returns the live response body instead of buffering it. The connection is released
+     * when the returned stream is closed. Status, headers and cookies are available as usual (the after interceptor
+     * runs before the body is read), bytes() and string() can't be used afterwards.
+     */
+    public InputStream stream() {
+        CompletableFuture<HTTPRequest> running;
+        synchronized (this) {
+            running = execution;
+            if(running == null)
+                execution = new CompletableFuture<>();
+        }
+        if(running != null) {
+            running.join();
+            if(streamed)
+                throw new IllegalStateException("The response body has already been streamed");
+            // the body is missing if reading it failed
+            return new ByteArrayInputStream(responseBody != null ? responseBody : new byte[0]);
+        }
+        try {
+            IHTTPRequestImplementation requestImplementation = prepare();
+            requestImplementation.setStreamResponse(true);
+            status = requestImplementation.execute();
+            InputStream stream = complete(requestImplementation, false);
+            execution.complete(this);
+            return stream;
+        } catch (RuntimeException ex) {
+            execution.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Executes the request and passes the live response body to the consumer. The stream is closed afterwards.
+     */
+    public HTTPRequest stream(StreamConsumer consumer) throws IOException {
+        try (InputStream stream = stream()) {
+            consumer.accept(stream);
+        }
+        return this;
+    }
+
+    /**
+     * Executes the request and writes the response body to the file. Plain http connections of the
+     * SimpleHTTPRequestImplementation move the body from the socket to the file without copying it through the heap,
+     * otherwise it's copied through a large buffer.
+     */
+    public HTTPRequest downloadTo(Path file) throws IOException {
+        try (InputStream stream = stream(); FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            InputStream source = stream instanceof ResponseStream ? ((ResponseStream) stream).source() : stream;
+            if(source instanceof HTTPClientSocket.FileTransferSource && ((HTTPClientSocket.FileTransferSource) source).transferTo(channel, 0) != -1)
+                return this;
+            byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+            long position = 0;
+            int r;
+            while ((r = stream.read(buffer)) != -1) {
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, r);
+                while (data.hasRemaining())
+                    position += channel.write(data, position);
+            }
+        }
+        return this;
+    }
+
     public String redirect() {
         return header("Location");
     }
@@ -167,7 +338,7 @@ public class HTTPRequest {
         if(type == null)
             return null;
         if(type.equals(byte[].class))
-            return (T) responseBody;
+            return (T) bytes();
         if(type.equals(String.class))
             return (T) string();
         return client.getAbstractMapper().fromAbstract(data(), type);
@@ -201,10 +372,27 @@ public class HTTPRequest {
     }
 
     public HTTPRequest execute() {
-        if (executed)
-            return this;
-        executed = true;
+        CompletableFuture<HTTPRequest> running;
+        synchronized (this) {
+            running = execution;
+            if(running == null)
+                execution = new CompletableFuture<>();
+        }
+        if(running != null)
+            return running.join();
+        try {
+            IHTTPRequestImplementation requestImplementation = prepare();
+            status = requestImplementation.execute();
+            complete(requestImplementation, true);
+            execution.complete(this);
+        } catch (RuntimeException ex) {
+            execution.completeExceptionally(ex);
+            throw ex;
+        }
+        return this;
+    }
 
+    private IHTTPRequestImplementation prepare() {
         if (client.getBeforeInterceptor() != null)
             client.getBeforeInterceptor().intercept(this);
 
@@ -226,21 +414,60 @@ public class HTTPRequest {
             }
         }
 
-        IHTTPRequestImplementation requestImplementation = client.getHttpImplementation().get();
+        // the added headers and the encoded body only apply to this execution, the request itself stays as it is
+        Map<String, String[]> headers = requestHeaders;
+        // a request with its own Accept-Encoding header gets the body as it has been sent
+        decodeResponse = client.isDecompression() && !requestHeaders.containsKey("accept-encoding") && !client.getContentDecoders().isEmpty();
+        if(decodeResponse) {
+            headers = new HashMap<>(requestHeaders);
+            headers.put("accept-encoding", new String[]{ client.getAcceptEncoding() });
+        }
+
+        HTTPRequestBody body = requestBody;
+        String coding = requestCompressionSet ? requestCompression : client.getRequestCompression();
+        HTTPContentEncoder encoder = requestCompressionSet ? requestEncoder : client.getRequestEncoder();
+        if(body != null && encoder != null && !requestHeaders.containsKey("content-encoding") && (body.length() < 0 || body.length() > client.getRequestCompressionThreshold())) {
+            if(headers == requestHeaders)
+                headers = new HashMap<>(requestHeaders);
+            headers.put("content-encoding", new String[]{ coding });
+            body = HTTPRequestBody.encoded(body, encoder);
+        }
+
+        HTTPRetryPolicy retryPolicy = client.getRetryPolicy();
+        IHTTPRequestImplementation requestImplementation = retryPolicy != null ? retryPolicy.wrap(client.getHttpImplementation()) : client.getHttpImplementation().get();
+        // requests that miss the cache at the same time are coalesced below it
+        HTTPRequestCoalescer coalescer = client.getCoalescer();
+        if(coalescer != null)
+            requestImplementation = coalescer.wrap(requestImplementation);
+        if(client.getCache() != null)
+            requestImplementation = client.getCache().wrap(requestImplementation);
+        requestImplementation.setClient(client);
         requestImplementation.setUrl(buildUrl());
         requestImplementation.setMethod(method);
         requestImplementation.setTimeout(client.getTimeout());
         requestImplementation.setFollowRedirects(followRedirects);
-        requestImplementation.setRequestHeaders(requestHeaders);
+        requestImplementation.setRequestHeaders(headers);
         requestImplementation.setSslVerification(client.isSSLVerification());
-        requestImplementation.setRequestBody(requestBody);
-        status = requestImplementation.execute();
+        requestImplementation.setRequestBody(body);
+        return requestImplementation;
+    }
+
+    private InputStream complete(IHTTPRequestImplementation requestImplementation, boolean buffer) {
         statusMessage = requestImplementation.getResponseStatusMessage();
         responseHeaders = requestImplementation.getResponseHeaders();
-        try {
-            responseBody = readAll(requestImplementation.getResponseStream());
+        InputStream body = requestImplementation.getResponseStream();
+        if(decodeResponse)
+            body = decode(body);
+        InputStream stream = null;
+        if(buffer) {
+            try {
+                responseBody = readAll(body);
+            } catch (IOException ignored) {}
             requestImplementation.close();
-        } catch (IOException ignored) {}
+        } else {
+            streamed = true;
+            stream = new ResponseStream(requestImplementation, body);
+        }
 
         for(String value : headers("set-cookie"))
             responseCookies.addAll(HttpCookie.parse("set-cookie: "+value));
@@ -251,7 +478,34 @@ public class HTTPRequest {
 
         if (client.getAfterInterceptor() != null)
             client.getAfterInterceptor().intercept(this);
-        return this;
+        return stream;
+    }
+
+    /**
+     * Wraps the body into the decoders of its content codings. The Content-Encoding and Content-Length headers are
+     * removed as they don't apply to the decoded body. Bodies with an unknown coding are left as they are.
+     */
+    private InputStream decode(InputStream body) {
+        if(body == null)
+            return null;
+        List<HTTPContentDecoder> decoders = new ArrayList<>();
+        for(String value : headers("content-encoding")) {
+            for(String coding : value.split(",")) {
+                coding = coding.trim().toLowerCase(Locale.ROOT);
+                if(coding.isEmpty() || coding.equals("identity"))
+                    continue;
+                HTTPContentDecoder decoder = client.getContentDecoders().get(coding);
+                if(decoder == null)
+                    return body;
+                decoders.add(0, decoder);
+            }
+        }
+        if(decoders.isEmpty())
+            return body;
+        responseHeaders = new HashMap<>(responseHeaders);
+        responseHeaders.remove("content-encoding");
+        responseHeaders.remove("content-length");
+        return new DecodingStream(body, decoders);
     }
 
     private String buildUrl() {
@@ -262,7 +516,7 @@ public class HTTPRequest {
         if(is == null)
             return new byte[0];
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] data = new byte[1024];
+        byte[] data = new byte[16384];
         int r = 0;
         while (r != -1){
             r = is.read(data);
@@ -285,4 +539,80 @@ public class HTTPRequest {
     public String toString(){
         return string();
     }
+
+    public interface StreamConsumer {
+        void accept(InputStream stream) throws IOException;
+    }
+
+    private static class ResponseStream extends FilterInputStream {
+        private final IHTTPRequestImplementation requestImplementation;
+        private boolean closed;
+        ResponseStream(IHTTPRequestImplementation requestImplementation, InputStream body) {
+            super(body);
+            this.requestImplementation = requestImplementation;
+        }
+        InputStream source() {
+            return in;
+        }
+        public int read() throws IOException {
+            return in == null ? -1 : in.read();
+        }
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in == null ? -1 : in.read(b, off, len);
+        }
+        public int available() throws IOException {
+            return in == null ? 0 : in.available();
+        }
+        public void close() throws IOException {
+            if(closed)
+                return;
+            closed = true;
+            try {
+                if(in != null)
+                    in.close();
+            } finally {
+                requestImplementation.close();
+            }
+        }
+    }
+
+    /**
+     * Creates the decoders on the first read, so empty bodies (e.g. of HEAD requests or 304 responses) don't fail.
+     */
+    private static class DecodingStream extends InputStream {
+        private final PushbackInputStream raw;
+        private final List<HTTPContentDecoder> decoders;
+        private InputStream in;
+        DecodingStream(InputStream raw, List<HTTPContentDecoder> decoders) {
+            this.raw = new PushbackInputStream(raw, 1);
+            this.decoders = decoders;
+        }
+        private InputStream in() throws IOException {
+            if(in == null) {
+                int b = raw.read();
+                if(b == -1) {
+                    in = raw;
+                } else {
+                    raw.unread(b);
+                    InputStream stream = raw;
+                    for(HTTPContentDecoder decoder : decoders)
+                        stream = decoder.decode(stream);
+                    in = stream;
+                }
+            }
+            return in;
+        }
+        public int read() throws IOException {
+            return in().read();
+        }
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in().read(b, off, len);
+        }
+        public int available() throws IOException {
+            return in == null ? 0 : in.available();
+        }
+        public void close() throws IOException {
+            (in != null ? in : raw).close();
+        }
+    }
 }
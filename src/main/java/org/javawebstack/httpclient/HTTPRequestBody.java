@@ -0,0 +1,402 @@
+package org.javawebstack.httpclient;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.function.Supplier;
+
+/**
+ * The body of a request. Only bodies created from a byte array are held in memory, all others are streamed by the
+ * implementations. Streamed bodies are sent with a Content-Length header when their length is known and with
+ * chunked transfer encoding otherwise.
+ */
+public abstract class HTTPRequestBody {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int FILE_BUFFER_SIZE = 131072;
+
+    /**
+     * Returns the length of the body in bytes or -1 if it's unknown.
+     */
+    public abstract long length();
+
+    /**
+     * Returns whether the body can be sent more than once, e.g. when a request needs to be retried.
+     */
+    public abstract boolean isRepeatable();
+
+    /**
+     * Writes the body to the stream. The stream isn't closed.
+     */
+    public abstract void writeTo(OutputStream stream) throws IOException;
+
+    /**
+     * Opens the body as a stream for implementations that pull the data instead of writing it.
+     */
+    public abstract InputStream open() throws IOException;
+
+    /**
+     * Returns the backing array of bodies that are held in memory or null for streamed bodies.
+     */
+    public byte[] getBytes() {
+        return null;
+    }
+
+    public byte[] toByteArray() throws IOException {
+        byte[] bytes = getBytes();
+        if(bytes != null)
+            return bytes;
+        long length = length();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(length > 0 && length < Integer.MAX_VALUE ? (int) length : 1024);
+        writeTo(baos);
+        return baos.toByteArray();
+    }
+
+    public static HTTPRequestBody of(byte[] bytes) {
+        return new ByteArrayBody(bytes);
+    }
+
+    /**
+     * Creates a body from a stream which can only be sent once. The stream is closed after it has been read.
+     */
+    public static HTTPRequestBody of(InputStream stream) {
+        return of(stream, -1);
+    }
+
+    public static HTTPRequestBody of(InputStream stream, long length) {
+        return new StreamBody(stream, length);
+    }
+
+    /**
+     * Creates a repeatable body which opens a new stream from the supplier every time it's sent.
+     */
+    public static HTTPRequestBody of(Supplier<InputStream> supplier) {
+        return of(supplier, -1);
+    }
+
+    public static HTTPRequestBody of(Supplier<InputStream> supplier, long length) {
+        return new SupplierBody(supplier, length);
+    }
+
+    public static HTTPRequestBody of(Path path) {
+        return new FileBody(path);
+    }
+
+    /**
+     * Creates a repeatable body which is produced by the writer every time it's sent.
+     */
+    public static HTTPRequestBody writer(Writer writer) {
+        return writer(writer, -1);
+    }
+
+    public static HTTPRequestBody writer(Writer writer, long length) {
+        return new WriterBody(writer, length);
+    }
+
+    /**
+     * Creates a body which is encoded with the content coding while it's written, the result is never held in memory
+     * as a whole. Its length is unknown, so it's sent with chunked transfer encoding. The Content-Encoding header has
+     * to be set separately.
+     */
+    public static HTTPRequestBody encoded(HTTPRequestBody body, HTTPContentEncoder encoder) {
+        return new EncodedBody(body, encoder);
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int r;
+        while ((r = in.read(buffer)) != -1)
+            out.write(buffer, 0, r);
+    }
+
+    public interface Writer {
+        void write(OutputStream stream) throws IOException;
+    }
+
+    private static class ByteArrayBody extends HTTPRequestBody {
+        private final byte[] bytes;
+        ByteArrayBody(byte[] bytes) {
+            this.bytes = bytes;
+        }
+        public long length() {
+            return bytes.length;
+        }
+        public boolean isRepeatable() {
+            return true;
+        }
+        public void writeTo(OutputStream stream) throws IOException {
+            stream.write(bytes);
+        }
+        public InputStream open() {
+            return new ByteArrayInputStream(bytes);
+        }
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+
+    private static class StreamBody extends HTTPRequestBody {
+        private final long length;
+        private InputStream stream;
+        StreamBody(InputStream stream, long length) {
+            this.stream = stream;
+            this.length = length;
+        }
+        public long length() {
+            return length;
+        }
+        public boolean isRepeatable() {
+            return false;
+        }
+        public void writeTo(OutputStream stream) throws IOException {
+            try (InputStream in = open()) {
+                copy(in, stream);
+            }
+        }
+        public synchronized InputStream open() throws IOException {
+            if(stream == null)
+                throw new IOException("The body stream has already been consumed");
+            InputStream in = stream;
+            stream = null;
+            return in;
+        }
+    }
+
+    private static class SupplierBody extends HTTPRequestBody {
+        private final Supplier<InputStream> supplier;
+        private final long length;
+        SupplierBody(Supplier<InputStream> supplier, long length) {
+            this.supplier = supplier;
+            this.length = length;
+        }
+        public long length() {
+            return length;
+        }
+        public boolean isRepeatable() {
+            return true;
+        }
+        public void writeTo(OutputStream stream) throws IOException {
+            try (InputStream in = open()) {
+                copy(in, stream);
+            }
+        }
+        public InputStream open() throws IOException {
+            InputStream in = supplier.get();
+            if(in == null)
+                throw new IOException("The body supplier returned no stream");
+            return in;
+        }
+    }
+
+    private static class FileBody extends HTTPRequestBody {
+        private final Path path;
+        FileBody(Path path) {
+            this.path = path;
+        }
+        public long length() {
+            try {
+                return Files.size(path);
+            } catch (IOException ignored) {
+                return -1;
+            }
+        }
+        public boolean isRepeatable() {
+            return true;
+        }
+        /**
+         * Plain connections of HTTPClientSocket send the file directly from the page cache (sendfile), other streams
+         * get it through a large buffer.
+         */
+        public void writeTo(OutputStream stream) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if(stream instanceof HTTPClientSocket.FileTransferTarget && ((HTTPClientSocket.FileTransferTarget) stream).transferFrom(channel, 0, size) != -1)
+                    return;
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(FILE_BUFFER_SIZE, size)));
+                while (channel.read(buffer) != -1) {
+                    stream.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+            }
+        }
+        public InputStream open() throws IOException {
+            return Files.newInputStream(path);
+        }
+    }
+
+    private static class WriterBody extends HTTPRequestBody {
+        private final Writer writer;
+        private final long length;
+        WriterBody(Writer writer, long length) {
+            this.writer = writer;
+            this.length = length;
+        }
+        public long length() {
+            return length;
+        }
+        public boolean isRepeatable() {
+            return true;
+        }
+        public void writeTo(OutputStream stream) throws IOException {
+            writer.write(new FilterOutputStream(stream) {
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+        }
+        /**
+         * Runs the writer on its own thread and hands the data over through a bounded pipe.
+         */
+        public InputStream open() {
+            WriterPipe pipe = new WriterPipe();
+            Thread thread = new Thread(() -> {
+                try {
+                    writeTo(pipe.output);
+                    pipe.finish(null);
+                } catch (IOException | RuntimeException e) {
+                    pipe.finish(e instanceof IOException ? (IOException) e : new IOException(e));
+                }
+            }, "http-client-body-writer");
+            thread.setDaemon(true);
+            thread.start();
+            return pipe;
+        }
+    }
+
+    private static class EncodedBody extends HTTPRequestBody {
+        private final HTTPRequestBody body;
+        private final HTTPContentEncoder encoder;
+        EncodedBody(HTTPRequestBody body, HTTPContentEncoder encoder) {
+            this.body = body;
+            this.encoder = encoder;
+        }
+        public long length() {
+            return -1;
+        }
+        public boolean isRepeatable() {
+            return body.isRepeatable();
+        }
+        public void writeTo(OutputStream stream) throws IOException {
+            // closing the encoder finishes the coding, but the stream of the request has to stay open
+            try (OutputStream out = encoder.encode(new FilterOutputStream(stream) {
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+                public void close() throws IOException {
+                    flush();
+                }
+            })) {
+                body.writeTo(out);
+            }
+        }
+        public InputStream open() {
+            return new WriterBody(this::writeTo, -1).open();
+        }
+    }
+
+    private static class WriterPipe extends InputStream {
+
+        private static final int CAPACITY = 65536;
+
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private int offset;
+        private int buffered;
+        private boolean finished;
+        private boolean closed;
+        private IOException error;
+
+        final OutputStream output = new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int n = Math.min(len, BUFFER_SIZE);
+                    byte[] chunk = new byte[n];
+                    System.arraycopy(b, off, chunk, 0, n);
+                    push(chunk);
+                    off += n;
+                    len -= n;
+                }
+            }
+        };
+
+        private synchronized void push(byte[] chunk) throws IOException {
+            while (!closed && buffered >= CAPACITY) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if(closed)
+                throw new IOException("Stream closed");
+            chunks.add(chunk);
+            buffered += chunk.length;
+            notifyAll();
+        }
+
+        synchronized void finish(IOException error) {
+            finished = true;
+            this.error = error;
+            notifyAll();
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0)
+                return 0;
+            while (chunks.isEmpty()) {
+                if(closed)
+                    throw new IOException("Stream closed");
+                if(finished) {
+                    if(error != null)
+                        throw error;
+                    return -1;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            byte[] chunk = chunks.peek();
+            int n = Math.min(len, chunk.length - offset);
+            System.arraycopy(chunk, offset, b, off, n);
+            offset += n;
+            if(offset == chunk.length) {
+                chunks.poll();
+                offset = 0;
+            }
+            buffered -= n;
+            notifyAll();
+            return n;
+        }
+
+        public synchronized int available() {
+            return buffered;
+        }
+
+        public synchronized void close() {
+            closed = true;
+            chunks.clear();
+            buffered = 0;
+            notifyAll();
+        }
+
+    }
+
+}
@@ -0,0 +1,238 @@
+package org.javawebstack.httpclient;
+
+import org.javawebstack.httpclient.implementation.IHTTPRequestImplementation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets identical GET and HEAD requests that run at the same time share a single execution. The first request (the
+ * leader) is sent, the others wait for it and each get their own copy of its status, headers and body. Requests are
+ * identical if method, url, headers, redirect handling and ssl verification match. Requests with a body and streamed
+ * requests are never coalesced, as the shared response has to be buffered.
+ */
+final class HTTPRequestCoalescer {
+
+    private final Map<String, CompletableFuture<Response>> flights = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    IHTTPRequestImplementation wrap(IHTTPRequestImplementation implementation) {
+        return new CoalescingHTTPRequestImplementation(implementation);
+    }
+
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    private static final class Response {
+        final int status;
+        final String statusMessage;
+        final Map<String, String[]> headers;
+        final byte[] body;
+        final IOException error;
+        Response(int status, String statusMessage, Map<String, String[]> headers, byte[] body, IOException error) {
+            this.status = status;
+            this.statusMessage = statusMessage;
+            this.headers = headers;
+            this.body = body;
+            this.error = error;
+        }
+    }
+
+    private final class CoalescingHTTPRequestImplementation implements IHTTPRequestImplementation {
+
+        private final IHTTPRequestImplementation delegate;
+        private String method;
+        private String url;
+        private boolean sslVerification;
+        private boolean followRedirects;
+        private Map<String, String[]> requestHeaders = Collections.emptyMap();
+        private boolean hasBody;
+        private boolean streamResponse;
+        private Response response;
+        private InputStream responseStream;
+
+        CoalescingHTTPRequestImplementation(IHTTPRequestImplementation delegate) {
+            this.delegate = delegate;
+        }
+
+        public void setClient(HTTPClient client) {
+            delegate.setClient(client);
+        }
+
+        public void setMethod(String method) {
+            this.method = method;
+            delegate.setMethod(method);
+        }
+
+        public void setUrl(String url) {
+            this.url = url;
+            delegate.setUrl(url);
+        }
+
+        public void setSslVerification(boolean sslVerification) {
+            this.sslVerification = sslVerification;
+            delegate.setSslVerification(sslVerification);
+        }
+
+        public void setFollowRedirects(boolean followRedirects) {
+            this.followRedirects = followRedirects;
+            delegate.setFollowRedirects(followRedirects);
+        }
+
+        public void setTimeout(int timeout) {
+            delegate.setTimeout(timeout);
+        }
+
+        public void setRequestHeaders(Map<String, String[]> requestHeaders) {
+            this.requestHeaders = requestHeaders;
+            delegate.setRequestHeaders(requestHeaders);
+        }
+
+        public void setRequestBody(byte[] requestBody) {
+            hasBody = requestBody != null;
+            delegate.setRequestBody(requestBody);
+        }
+
+        public void setRequestBody(HTTPRequestBody requestBody) {
+            hasBody = requestBody != null;
+            delegate.setRequestBody(requestBody);
+        }
+
+        public void setStreamResponse(boolean streamResponse) {
+            this.streamResponse = streamResponse;
+            delegate.setStreamResponse(streamResponse);
+        }
+
+        public Map<String, String[]> getResponseHeaders() {
+            return response != null ? new HashMap<>(response.headers) : delegate.getResponseHeaders();
+        }
+
+        public InputStream getResponseStream() {
+            if(response == null)
+                return delegate.getResponseStream();
+            if(responseStream == null) {
+                responseStream = response.error == null ? new ByteArrayInputStream(response.body) : new InputStream() {
+                    public int read() throws IOException {
+                        throw response.error;
+                    }
+                };
+            }
+            return responseStream;
+        }
+
+        public int getResponseStatus() {
+            return response != null ? response.status : delegate.getResponseStatus();
+        }
+
+        public String getResponseStatusMessage() {
+            return response != null ? response.statusMessage : delegate.getResponseStatusMessage();
+        }
+
+        public int execute() {
+            if(!coalescable())
+                return delegate.execute();
+            String key = key();
+            CompletableFuture<Response> flight = new CompletableFuture<>();
+            CompletableFuture<Response> running = flights.putIfAbsent(key, flight);
+            if(running != null) {
+                coalesced.incrementAndGet();
+                try {
+                    response = running.join();
+                } catch (CompletionException ex) {
+                    throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+                }
+                return response.status;
+            }
+            try {
+                lead(key, flight, delegate.execute());
+            } catch (RuntimeException ex) {
+                flights.remove(key, flight);
+                flight.completeExceptionally(ex);
+                throw ex;
+            }
+            return response.status;
+        }
+
+        public CompletableFuture<Integer> executeAsync(Executor executor) {
+            if(!coalescable())
+                return delegate.executeAsync(executor);
+            String key = key();
+            CompletableFuture<Response> flight = new CompletableFuture<>();
+            CompletableFuture<Response> running = flights.putIfAbsent(key, flight);
+            if(running != null) {
+                coalesced.incrementAndGet();
+                return running.thenApply(r -> {
+                    response = r;
+                    return r.status;
+                });
+            }
+            // the body is buffered on the executor, as non-blocking implementations complete on their io threads
+            return delegate.executeAsync(executor).thenApplyAsync(status -> {
+                lead(key, flight, status);
+                return status;
+            }, executor).whenComplete((status, error) -> {
+                if(error != null) {
+                    flights.remove(key, flight);
+                    flight.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                }
+            });
+        }
+
+        public void close() {
+            if(response == null)
+                delegate.close();
+        }
+
+        /**
+         * Buffers the response of the leader, releases its connection and hands the response to the waiting requests.
+         */
+        private void lead(String key, CompletableFuture<Response> flight, int status) {
+            byte[] body = null;
+            IOException error = null;
+            try (InputStream in = delegate.getResponseStream()) {
+                body = in == null ? new byte[0] : readAll(in);
+            } catch (IOException ex) {
+                error = ex;
+            }
+            Map<String, String[]> headers = delegate.getResponseHeaders();
+            response = new Response(status, delegate.getResponseStatusMessage(), headers != null ? headers : Collections.emptyMap(), body, error);
+            delegate.close();
+            flights.remove(key, flight);
+            flight.complete(response);
+        }
+
+        private boolean coalescable() {
+            return !hasBody && !streamResponse && (method.equals("GET") || method.equals("HEAD"));
+        }
+
+        private String key() {
+            StringBuilder sb = new StringBuilder(method).append(' ').append(url).append('\n').append(followRedirects).append(',').append(sslVerification);
+            for(String name : new TreeSet<>(requestHeaders.keySet())) {
+                sb.append('\n').append(name).append(':');
+                for(String value : requestHeaders.get(name))
+                    sb.append(value).append('\0');
+            }
+            return sb.toString();
+        }
+
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16384];
+        int r;
+        while ((r = in.read(buffer)) != -1)
+            baos.write(buffer, 0, r);
+        return baos.toByteArray();
+    }
+
+}
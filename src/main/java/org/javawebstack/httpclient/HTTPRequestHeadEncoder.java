@@ -0,0 +1,190 @@
+package org.javawebstack.httpclient;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes the request line and headers of a HTTP/1.1 request into a reusable byte buffer. Names of common headers
+ * are pre-encoded and every encoder remembers the host line and the header lines it has encoded before, so the
+ * default headers of a client are only encoded once per connection. An encoder is not thread-safe.
+ */
+public final class HTTPRequestHeadEncoder {
+
+    /**
+     * Bodies up to this size are sent together with the head in a single write.
+     */
+    public static final int MAX_COALESCED_BODY = 16384;
+
+    private static final int INITIAL_SIZE = 512;
+    private static final int MAX_RETAINED_SIZE = 65536;
+    private static final int MAX_CACHED_LINES = 64;
+    private static final int MAX_CACHED_LINE_LENGTH = 1024;
+    private static final byte[] HTTP_1_1 = " HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HOST = "Host: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SEPARATOR = { ':', ' ' };
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final Map<String, byte[]> KNOWN_NAMES = new HashMap<>();
+
+    static {
+        for(String name : new String[] {
+                "accept", "accept-charset", "accept-encoding", "accept-language", "authorization", "cache-control",
+                "connection", "content-encoding", "content-length", "content-type", "cookie", "expect", "if-match",
+                "if-modified-since", "if-none-match", "if-unmodified-since", "origin", "pragma", "range", "referer",
+                "sec-websocket-extensions", "sec-websocket-key", "sec-websocket-protocol", "sec-websocket-version",
+                "te", "transfer-encoding", "upgrade", "user-agent", "x-request-id"
+        })
+            KNOWN_NAMES.put(name, (name + ": ").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private byte[] buffer;
+    private int size;
+    private String host;
+    private byte[] hostLine;
+    private final Map<String, CachedLine> lines = new HashMap<>();
+
+    public HTTPRequestHeadEncoder() {
+        this(INITIAL_SIZE);
+    }
+
+    private HTTPRequestHeadEncoder(int initialSize) {
+        buffer = new byte[initialSize];
+    }
+
+    /**
+     * Starts a new head with the request line and the Host header.
+     */
+    public HTTPRequestHeadEncoder begin(String method, String path, String host) {
+        if(buffer.length > MAX_RETAINED_SIZE)
+            buffer = new byte[INITIAL_SIZE];
+        size = 0;
+        ensure(method.length() + path.length() + HTTP_1_1.length + 1);
+        for(int i=0; i<method.length(); i++) {
+            char c = method.charAt(i);
+            buffer[size++] = (byte) (c >= 'a' && c <= 'z' ? c - 32 : c);
+        }
+        buffer[size++] = ' ';
+        writeString(path);
+        write(HTTP_1_1);
+        if(!host.equals(this.host)) {
+            HTTPRequestHeadEncoder line = new HTTPRequestHeadEncoder(host.length() + 8);
+            line.write(HOST);
+            line.writeString(host);
+            line.write(CRLF);
+            this.host = host;
+            this.hostLine = line.toByteArray();
+        }
+        write(hostLine);
+        return this;
+    }
+
+    /**
+     * Adds a header, the name is expected to be lower case.
+     */
+    public HTTPRequestHeadEncoder header(String name, String value) {
+        CachedLine cached = lines.get(name);
+        if(cached != null && (cached.value == value || cached.value.equals(value))) {
+            write(cached.bytes);
+            return this;
+        }
+        int start = size;
+        byte[] known = KNOWN_NAMES.get(name);
+        if(known != null) {
+            write(known);
+        } else {
+            writeString(name);
+            write(SEPARATOR);
+        }
+        writeString(value);
+        write(CRLF);
+        if(size - start <= MAX_CACHED_LINE_LENGTH) {
+            if(cached == null && lines.size() >= MAX_CACHED_LINES)
+                lines.clear();
+            byte[] bytes = new byte[size - start];
+            System.arraycopy(buffer, start, bytes, 0, bytes.length);
+            lines.put(name, new CachedLine(value, bytes));
+        }
+        return this;
+    }
+
+    public HTTPRequestHeadEncoder headers(Map<String, List<String>> headers) {
+        for(Map.Entry<String, List<String>> e : headers.entrySet()) {
+            for(String value : e.getValue())
+                header(e.getKey(), value);
+        }
+        return this;
+    }
+
+    /**
+     * Ends the head with the empty line.
+     */
+    public HTTPRequestHeadEncoder end() {
+        write(CRLF);
+        return this;
+    }
+
+    /**
+     * Appends (a part of) the body after the head so both can be sent with a single write.
+     */
+    public HTTPRequestHeadEncoder body(byte[] b, int off, int len) {
+        ensure(len);
+        System.arraycopy(b, off, buffer, size, len);
+        size += len;
+        return this;
+    }
+
+    /**
+     * Returns the internal buffer, it's only valid until the next call to begin.
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[size];
+        System.arraycopy(buffer, 0, bytes, 0, size);
+        return bytes;
+    }
+
+    private void write(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    private void writeString(String s) {
+        int length = s.length();
+        ensure(length);
+        for(int i=0; i<length; i++) {
+            char c = s.charAt(i);
+            if(c >= 0x80) {
+                write(s.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer[size++] = (byte) c;
+        }
+    }
+
+    private void ensure(int additional) {
+        if(size + additional <= buffer.length)
+            return;
+        byte[] grown = new byte[Math.max(buffer.length * 2, size + additional)];
+        System.arraycopy(buffer, 0, grown, 0, size);
+        buffer = grown;
+    }
+
+    private static final class CachedLine {
+        final String value;
+        final byte[] bytes;
+        CachedLine(String value, byte[] bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+}
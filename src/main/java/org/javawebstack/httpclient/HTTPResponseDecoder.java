@@ -0,0 +1,257 @@
+package org.javawebstack.httpclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Incremental HTTP/1.1 response decoder for non-blocking transports. Bytes can be fed in arbitrary pieces, the body
+ * is passed to the body handler as it arrives. The framing rules are the same ones HTTPClientSocket applies.
+ */
+public class HTTPResponseDecoder {
+
+    private static final int MAX_LINE_LENGTH = 65536;
+
+    public enum Framing {
+        NONE,
+        LENGTH,
+        CHUNKED,
+        UPGRADE,
+        UNTIL_CLOSE
+    }
+
+    private enum State {
+        HEADERS,
+        BODY,
+        CHUNK_SIZE,
+        CHUNK_DATA,
+        CHUNK_END,
+        TRAILERS,
+        DONE
+    }
+
+    private final String requestMethod;
+    private final Map<String, List<String>> requestHeaders;
+    private final BodyHandler bodyHandler;
+    private State state = State.HEADERS;
+    private final HTTPHeaderParser headerParser = new HTTPHeaderParser(new HashMap<>());
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private Framing framing;
+    private boolean keepAlive;
+    private long remaining;
+
+    public HTTPResponseDecoder(String requestMethod, Map<String, List<String>> requestHeaders, BodyHandler bodyHandler) {
+        this.requestMethod = requestMethod;
+        this.requestHeaders = requestHeaders;
+        this.bodyHandler = bodyHandler;
+    }
+
+    /**
+     * Consumes bytes from the buffer until the response is complete or the buffer is empty. Bytes following the end of
+     * the response (e.g. after an upgrade) are left in the buffer.
+     * @return whether the response is complete
+     */
+    public boolean decode(ByteBuffer buffer) throws IOException {
+        while (state != State.DONE && buffer.hasRemaining()) {
+            switch (state) {
+                case HEADERS:
+                    headerParser.parse(buffer);
+                    if(headerParser.isComplete())
+                        onHeadersComplete();
+                    break;
+                case BODY:
+                case CHUNK_DATA:
+                    int length = buffer.remaining();
+                    if(framing != Framing.UNTIL_CLOSE && remaining < length)
+                        length = (int) remaining;
+                    if(length > 0) {
+                        ByteBuffer slice = buffer.duplicate();
+                        slice.limit(slice.position() + length);
+                        buffer.position(buffer.position() + length);
+                        bodyHandler.onBody(slice);
+                        remaining -= length;
+                    }
+                    if(framing != Framing.UNTIL_CLOSE && remaining == 0)
+                        state = state == State.BODY ? State.DONE : State.CHUNK_END;
+                    break;
+                case CHUNK_SIZE:
+                    if(readLine(buffer)) {
+                        String size = lineString();
+                        int extension = size.indexOf(';');
+                        if(extension != -1)
+                            size = size.substring(0, extension);
+                        try {
+                            remaining = Long.parseLong(size.trim(), 16);
+                        } catch (NumberFormatException ex) {
+                            throw new IOException("Invalid chunk size");
+                        }
+                        state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                    }
+                    break;
+                case CHUNK_END:
+                    if(readLine(buffer)) {
+                        if(lineLength != 0)
+                            throw new IOException("Invalid chunk end");
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+                case TRAILERS:
+                    if(readLine(buffer)) {
+                        if(lineLength == 0)
+                            state = State.DONE;
+                        lineLength = 0;
+                    }
+                    break;
+            }
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * Signals that the connection has been closed by the peer.
+     * @return whether the response is complete
+     */
+    public boolean endOfInput() throws IOException {
+        if(state == State.BODY && framing == Framing.UNTIL_CLOSE) {
+            state = State.DONE;
+            return true;
+        }
+        if(state != State.DONE)
+            throw new IOException("Unexpected end of stream");
+        return true;
+    }
+
+    public boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    public boolean isHeadersComplete() {
+        return framing != null;
+    }
+
+    public boolean hasReceivedData() {
+        return headerParser.hasReceivedData();
+    }
+
+    public String getVersion() {
+        return headerParser.getVersion();
+    }
+
+    public int getStatus() {
+        return headerParser.getStatus();
+    }
+
+    public String getStatusMessage() {
+        return headerParser.getStatusMessage();
+    }
+
+    public Map<String, List<String>> getHeaders() {
+        return headerParser.getHeaders();
+    }
+
+    public Framing getFraming() {
+        return framing;
+    }
+
+    /**
+     * Returns whether the connection can be used for another request after this response.
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    private void onHeadersComplete() throws IOException {
+        framing = framing(requestMethod, getStatus(), getHeaders());
+        keepAlive = keepAlive(getVersion(), framing, getHeaders(), requestHeaders);
+        switch (framing) {
+            case NONE:
+            case UPGRADE:
+                state = State.DONE;
+                break;
+            case CHUNKED:
+                state = State.CHUNK_SIZE;
+                break;
+            case LENGTH:
+                remaining = Math.max(0, headerParser.getContentLength());
+                state = remaining == 0 ? State.DONE : State.BODY;
+                break;
+            default:
+                state = State.BODY;
+                break;
+        }
+    }
+
+    private boolean readLine(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if(b == '\n') {
+                if(lineLength > 0 && line[lineLength - 1] == '\r')
+                    lineLength--;
+                return true;
+            }
+            if(lineLength == line.length) {
+                if(line.length >= MAX_LINE_LENGTH)
+                    throw new IOException("Header line too long");
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[lineLength++] = b;
+        }
+        return false;
+    }
+
+    private String lineString() {
+        String s = new String(line, 0, lineLength, StandardCharsets.UTF_8);
+        lineLength = 0;
+        return s;
+    }
+
+    /**
+     * Determines how the body of a response is delimited (RFC 9112 section 6.3). A transfer coding that doesn't end
+     * with chunked is read until the connection is closed.
+     */
+    public static Framing framing(String requestMethod, int status, Map<String, List<String>> responseHeaders) {
+        if(status == 101)
+            return Framing.UPGRADE;
+        if("HEAD".equalsIgnoreCase(requestMethod) || status == 204 || status == 304 || (status >= 100 && status < 200))
+            return Framing.NONE;
+        List<String> transferEncoding = responseHeaders.get("transfer-encoding");
+        if(transferEncoding != null && transferEncoding.size() > 0)
+            return transferEncoding.get(transferEncoding.size() - 1).toLowerCase(Locale.ROOT).trim().endsWith("chunked") ? Framing.CHUNKED : Framing.UNTIL_CLOSE;
+        if(responseHeaders.containsKey("content-length"))
+            return Framing.LENGTH;
+        return Framing.UNTIL_CLOSE;
+    }
+
+    /**
+     * Determines whether the connection can be reused after the response has been read.
+     */
+    public static boolean keepAlive(String version, Framing framing, Map<String, List<String>> responseHeaders, Map<String, List<String>> requestHeaders) {
+        if(framing == Framing.UPGRADE || framing == Framing.UNTIL_CLOSE)
+            return false;
+        if(hasToken(requestHeaders.get("connection"), "close"))
+            return false;
+        List<String> connection = responseHeaders.get("connection");
+        if("HTTP/1.0".equals(version))
+            return hasToken(connection, "keep-alive");
+        return !hasToken(connection, "close");
+    }
+
+    private static boolean hasToken(List<String> values, String token) {
+        if(values == null)
+            return false;
+        for(String value : values) {
+            for(String t : value.split(",")) {
+                if(t.trim().equalsIgnoreCase(token))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    public interface BodyHandler {
+        void onBody(ByteBuffer data) throws IOException;
+    }
+
+}
@@ -0,0 +1,82 @@
+package org.javawebstack.httpclient;
+
+/**
+ * Limits retries to a share of the requests, so that retrying can't multiply the load on a server that is already
+ * failing. The budget is counted over a sliding window of WINDOW seconds, a minimum amount of retries per second is
+ * always allowed so that clients with little traffic can still retry.
+ */
+public class HTTPRetryBudget {
+
+    private static final int WINDOW = 10;
+
+    private final double ratio;
+    private final int minRetriesPerSecond;
+    private final long[] requests = new long[WINDOW];
+    private final long[] retries = new long[WINDOW];
+    private long second = Long.MIN_VALUE;
+    private long exhausted;
+
+    /**
+     * @param ratio the maximum amount of retries per request, e.g. 0.1 for 10%
+     * @param minRetriesPerSecond the amount of retries per second that is allowed regardless of the ratio
+     */
+    public HTTPRetryBudget(double ratio, int minRetriesPerSecond) {
+        this.ratio = ratio;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+    }
+
+    synchronized void onRequest() {
+        advance();
+        requests[(int) Math.floorMod(second, (long) WINDOW)]++;
+    }
+
+    /**
+     * Withdraws a retry from the budget, returns false if the budget is exhausted.
+     */
+    synchronized boolean tryRetry() {
+        advance();
+        long totalRequests = 0;
+        long totalRetries = 0;
+        for(int i = 0; i < WINDOW; i++) {
+            totalRequests += requests[i];
+            totalRetries += retries[i];
+        }
+        if(totalRetries >= (long) minRetriesPerSecond * WINDOW + (long) (totalRequests * ratio)) {
+            exhausted++;
+            return false;
+        }
+        retries[(int) Math.floorMod(second, (long) WINDOW)]++;
+        return true;
+    }
+
+    /**
+     * Returns the amount of retries that have been denied because the budget was exhausted.
+     */
+    public synchronized long getExhausted() {
+        return exhausted;
+    }
+
+    public double getRatio() {
+        return ratio;
+    }
+
+    public int getMinRetriesPerSecond() {
+        return minRetriesPerSecond;
+    }
+
+    long currentSecond() {
+        return Math.floorDiv(System.nanoTime(), 1000000000L);
+    }
+
+    private void advance() {
+        long now = currentSecond();
+        if(second == Long.MIN_VALUE)
+            second = now;
+        for(long s = second + 1; s <= now && s <= second + WINDOW; s++) {
+            requests[(int) Math.floorMod(s, (long) WINDOW)] = 0;
+            retries[(int) Math.floorMod(s, (long) WINDOW)] = 0;
+        }
+        second = Math.max(second, now);
+    }
+
+}
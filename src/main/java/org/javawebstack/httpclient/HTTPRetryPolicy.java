@@ -0,0 +1,397 @@
+package org.javawebstack.httpclient;
+
+import org.javawebstack.httpclient.implementation.IHTTPRequestImplementation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Decides which failed requests are sent again and when. A request is retried if it failed with a retryable exception
+ * (status -1) or answered with a retryable status, as long as its method is idempotent (or it has an Idempotency-Key
+ * header) and its body can be sent again. Connection failures are retried for every method, as the request hasn't
+ * been sent.
+ * <p>
+ * The delay grows exponentially with full jitter, i.e. it's a random time between 0 and min(maxDelay, baseDelay *
+ * 2^retry). A Retry-After header of the response takes precedence, the retry is given up if it asks for more than
+ * maxRetryAfter. An optional budget limits the retries to a share of the requests.
+ */
+public class HTTPRetryPolicy {
+
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE"));
+    private static ScheduledThreadPoolExecutor timer;
+
+    private int maxRetries = 3;
+    private Set<Integer> retryStatuses = new HashSet<>(Arrays.asList(429, 502, 503, 504));
+    private List<Class<? extends Throwable>> retryExceptions = Collections.singletonList(IOException.class);
+    private boolean retryNonIdempotent;
+    private long baseDelay = 100;
+    private long maxDelay = 10000;
+    private long maxRetryAfter = 30000;
+    private HTTPRetryBudget budget;
+    private final AtomicLong retries = new AtomicLong();
+
+    public HTTPRetryPolicy maxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets the response statuses that are retried. Defaults to 429, 502, 503 and 504.
+     */
+    public HTTPRetryPolicy retryStatuses(Integer... statuses) {
+        this.retryStatuses = new HashSet<>(Arrays.asList(statuses));
+        return this;
+    }
+
+    public Set<Integer> getRetryStatuses() {
+        return Collections.unmodifiableSet(retryStatuses);
+    }
+
+    /**
+     * Sets the exceptions (including subclasses and causes) that are retried when a request fails. Defaults to
+     * IOException. Failures of implementations that don't report their exception are treated as IOException.
+     */
+    @SafeVarargs
+    public final HTTPRetryPolicy retryExceptions(Class<? extends Throwable>... exceptions) {
+        this.retryExceptions = Arrays.asList(exceptions);
+        return this;
+    }
+
+    public List<Class<? extends Throwable>> getRetryExceptions() {
+        return Collections.unmodifiableList(retryExceptions);
+    }
+
+    /**
+     * Also retries non-idempotent requests (e.g. POST) that may already have been processed by the server.
+     */
+    public HTTPRetryPolicy retryNonIdempotent(boolean retryNonIdempotent) {
+        this.retryNonIdempotent = retryNonIdempotent;
+        return this;
+    }
+
+    public boolean isRetryNonIdempotent() {
+        return retryNonIdempotent;
+    }
+
+    /**
+     * Sets the base and the maximum of the exponential backoff in milliseconds. Defaults to 100 and 10000.
+     */
+    public HTTPRetryPolicy backoff(long baseDelay, long maxDelay) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        return this;
+    }
+
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Sets the longest Retry-After in milliseconds that is waited for, longer ones return the response instead.
+     * Defaults to 30000.
+     */
+    public HTTPRetryPolicy maxRetryAfter(long maxRetryAfter) {
+        this.maxRetryAfter = maxRetryAfter;
+        return this;
+    }
+
+    public long getMaxRetryAfter() {
+        return maxRetryAfter;
+    }
+
+    /**
+     * Limits the retries of all requests using this policy, null removes the limit.
+     */
+    public HTTPRetryPolicy budget(HTTPRetryBudget budget) {
+        this.budget = budget;
+        return this;
+    }
+
+    /**
+     * Limits the retries to the given share of the requests (e.g. 0.1 for 10%), allowing at least minRetriesPerSecond.
+     */
+    public HTTPRetryPolicy budget(double ratio, int minRetriesPerSecond) {
+        return budget(new HTTPRetryBudget(ratio, minRetriesPerSecond));
+    }
+
+    public HTTPRetryBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the amount of retries that have been sent.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Creates an implementation that executes the request with implementations of the supplier until it succeeds or
+     * the policy gives up. This is called by HTTPRequest for clients with a retry policy.
+     */
+    public IHTTPRequestImplementation wrap(Supplier<? extends IHTTPRequestImplementation> implementation) {
+        return new RetryingHTTPRequestImplementation(implementation);
+    }
+
+    /**
+     * Returns the delay in milliseconds before the given retry (starting at 0) or -1 if the request shouldn't be
+     * retried.
+     */
+    protected long delay(int retry, String method, Map<String, String[]> requestHeaders, boolean repeatable, int status, Throwable exception, Map<String, String[]> responseHeaders) {
+        if(retry >= maxRetries || !repeatable)
+            return -1;
+        boolean notSent = status == -1 && causedBy(exception, ConnectException.class);
+        boolean idempotent = IDEMPOTENT_METHODS.contains(method.toUpperCase(Locale.ROOT)) || requestHeaders.containsKey("idempotency-key");
+        if(!notSent && !idempotent && !retryNonIdempotent)
+            return -1;
+        long retryAfter = -1;
+        if(status == -1) {
+            if(!retryable(exception != null ? exception : new IOException()))
+                return -1;
+        } else {
+            if(!retryStatuses.contains(status))
+                return -1;
+            retryAfter = retryAfter(responseHeaders);
+            if(retryAfter > maxRetryAfter)
+                return -1;
+        }
+        if(budget != null && !budget.tryRetry())
+            return -1;
+        if(retryAfter >= 0)
+            return retryAfter;
+        long ceiling = Math.min(maxDelay, baseDelay << Math.min(retry, 30));
+        return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private boolean retryable(Throwable exception) {
+        for(Class<? extends Throwable> type : retryExceptions) {
+            if(causedBy(exception, type))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean causedBy(Throwable exception, Class<? extends Throwable> type) {
+        for(Throwable t = exception; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if(type.isInstance(t))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses the Retry-After header (seconds or an HTTP date) into milliseconds, -1 if there is none.
+     */
+    private static long retryAfter(Map<String, String[]> headers) {
+        String[] values = headers != null ? headers.get("retry-after") : null;
+        if(values == null || values.length == 0)
+            return -1;
+        String value = values[0].trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException ignored) {}
+        try {
+            return Math.max(0, ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch (DateTimeParseException ex) {
+            return -1;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService timer() {
+        if(timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "http-client-retry");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+        }
+        return timer;
+    }
+
+    /**
+     * Records the setters to replay them on a new implementation for every attempt. Only the last attempt is kept open,
+     * the ones before are closed when the next one starts to release their connections.
+     */
+    private final class RetryingHTTPRequestImplementation implements IHTTPRequestImplementation {
+
+        private final Supplier<? extends IHTTPRequestImplementation> supplier;
+        private HTTPClient client;
+        private String method;
+        private String url;
+        private boolean sslVerification;
+        private boolean followRedirects;
+        private int timeout;
+        private Map<String, String[]> requestHeaders = Collections.emptyMap();
+        private HTTPRequestBody requestBody;
+        private boolean streamResponse;
+        private IHTTPRequestImplementation current;
+        private int attempt;
+
+        RetryingHTTPRequestImplementation(Supplier<? extends IHTTPRequestImplementation> supplier) {
+            this.supplier = supplier;
+        }
+
+        public void setClient(HTTPClient client) {
+            this.client = client;
+        }
+
+        public void setMethod(String method) {
+            this.method = method;
+        }
+
+        public void setUrl(String url) {
+            this.url = url;
+        }
+
+        public void setSslVerification(boolean sslVerification) {
+            this.sslVerification = sslVerification;
+        }
+
+        public void setFollowRedirects(boolean followRedirects) {
+            this.followRedirects = followRedirects;
+        }
+
+        public void setTimeout(int timeout) {
+            this.timeout = timeout;
+        }
+
+        public void setRequestHeaders(Map<String, String[]> requestHeaders) {
+            this.requestHeaders = requestHeaders;
+        }
+
+        public void setRequestBody(byte[] requestBody) {
+            this.requestBody = requestBody == null ? null : HTTPRequestBody.of(requestBody);
+        }
+
+        public void setRequestBody(HTTPRequestBody requestBody) {
+            this.requestBody = requestBody;
+        }
+
+        public void setStreamResponse(boolean streamResponse) {
+            this.streamResponse = streamResponse;
+        }
+
+        public Map<String, String[]> getResponseHeaders() {
+            return current.getResponseHeaders();
+        }
+
+        public InputStream getResponseStream() {
+            return current.getResponseStream();
+        }
+
+        public int getResponseStatus() {
+            return current.getResponseStatus();
+        }
+
+        public String getResponseStatusMessage() {
+            return current.getResponseStatusMessage();
+        }
+
+        public Throwable getException() {
+            return current.getException();
+        }
+
+        public int execute() {
+            if(budget != null)
+                budget.onRequest();
+            while (true) {
+                int status = next().execute();
+                long delay = retryDelay(status);
+                if(delay < 0)
+                    return status;
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return status;
+                }
+            }
+        }
+
+        public CompletableFuture<Integer> executeAsync(Executor executor) {
+            if(budget != null)
+                budget.onRequest();
+            return attemptAsync(executor);
+        }
+
+        public void close() {
+            if(current != null)
+                current.close();
+        }
+
+        private CompletableFuture<Integer> attemptAsync(Executor executor) {
+            return next().executeAsync(executor).thenCompose(status -> {
+                long delay = retryDelay(status);
+                if(delay < 0)
+                    return CompletableFuture.completedFuture(status);
+                CompletableFuture<Integer> retry = new CompletableFuture<>();
+                timer().schedule(() -> {
+                    try {
+                        executor.execute(() -> attemptAsync(executor).whenComplete((s, e) -> {
+                            if(e != null) {
+                                retry.completeExceptionally(e);
+                            } else {
+                                retry.complete(s);
+                            }
+                        }));
+                    } catch (RejectedExecutionException ex) {
+                        retry.completeExceptionally(ex);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+                return retry;
+            });
+        }
+
+        /**
+         * Returns the delay before the next attempt or -1 if the current one is final.
+         */
+        private long retryDelay(int status) {
+            long delay = delay(attempt - 1, method, requestHeaders, requestBody == null || requestBody.isRepeatable(), status, current.getException(), current.getResponseHeaders());
+            if(delay >= 0)
+                retries.incrementAndGet();
+            return delay;
+        }
+
+        /**
+         * Starts the next attempt. The previous one is only closed now, so it stays readable if the wait for the retry
+         * is interrupted.
+         */
+        private IHTTPRequestImplementation next() {
+            if(current != null)
+                current.close();
+            IHTTPRequestImplementation implementation = supplier.get();
+            implementation.setClient(client);
+            implementation.setUrl(url);
+            implementation.setMethod(method);
+            implementation.setTimeout(timeout);
+            implementation.setFollowRedirects(followRedirects);
+            implementation.setRequestHeaders(requestHeaders);
+            implementation.setSslVerification(sslVerification);
+            implementation.setRequestBody(requestBody);
+            if(streamResponse)
+                implementation.setStreamResponse(true);
+            current = implementation;
+            attempt++;
+            return implementation;
+        }
+
+    }
+
+}
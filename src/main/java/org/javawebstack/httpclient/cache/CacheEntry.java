@@ -0,0 +1,85 @@
+package org.javawebstack.httpclient.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A stored response. The header names are lower case, the times are epoch milliseconds of when the request was sent
+ * and when its response was received, the vary values are the request headers selected by the Vary header of the
+ * response.
+ */
+public class CacheEntry {
+
+    private final int status;
+    private final String statusMessage;
+    private final Map<String, String[]> headers;
+    private final Map<String, String> varyValues;
+    private final long requestTime;
+    private final long responseTime;
+    private final byte[] body;
+
+    public CacheEntry(int status, String statusMessage, Map<String, String[]> headers, Map<String, String> varyValues, long requestTime, long responseTime, byte[] body) {
+        this.status = status;
+        this.statusMessage = statusMessage;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.varyValues = Collections.unmodifiableMap(varyValues);
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+        this.body = body;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    public Map<String, String[]> getHeaders() {
+        return headers;
+    }
+
+    public String getHeader(String name) {
+        String[] values = headers.get(name);
+        return values == null || values.length == 0 ? null : values[0];
+    }
+
+    public Map<String, String> getVaryValues() {
+        return varyValues;
+    }
+
+    public long getRequestTime() {
+        return requestTime;
+    }
+
+    public long getResponseTime() {
+        return responseTime;
+    }
+
+    /**
+     * Returns the body if it's held in memory or null if it has to be read through openBody.
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    public long getBodyLength() {
+        return body.length;
+    }
+
+    public InputStream openBody() throws IOException {
+        return new ByteArrayInputStream(body);
+    }
+
+    /**
+     * Returns a copy with the headers and times of a successful revalidation and the same body.
+     */
+    public CacheEntry withHeaders(Map<String, String[]> headers, long requestTime, long responseTime) {
+        return new CacheEntry(status, statusMessage, headers, varyValues, requestTime, responseTime, body);
+    }
+
+}
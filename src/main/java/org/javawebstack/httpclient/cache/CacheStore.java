@@ -0,0 +1,22 @@
+package org.javawebstack.httpclient.cache;
+
+/**
+ * Stores the responses of an HTTPCache. Implementations have to be thread safe and may drop entries at any time.
+ */
+public interface CacheStore {
+
+    /**
+     * Returns the entry of the key or null if there is none.
+     */
+    CacheEntry get(String key);
+
+    /**
+     * Stores the entry, replacing any previous entry of the key.
+     */
+    void put(String key, CacheEntry entry);
+
+    void remove(String key);
+
+    void clear();
+
+}
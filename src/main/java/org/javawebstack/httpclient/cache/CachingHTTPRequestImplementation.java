@@ -0,0 +1,300 @@
+package org.javawebstack.httpclient.cache;
+
+import org.javawebstack.httpclient.HTTPClient;
+import org.javawebstack.httpclient.HTTPRequestBody;
+import org.javawebstack.httpclient.implementation.IHTTPRequestImplementation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Answers requests from the cache where possible and passes them to the wrapped implementation otherwise. Bodies of
+ * storable responses are copied while the caller reads them and stored once they have been read completely.
+ */
+final class CachingHTTPRequestImplementation implements IHTTPRequestImplementation {
+
+    private static final Set<String> SAFE_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE"));
+    private static final Set<String> CONDITIONAL_HEADERS = new HashSet<>(Arrays.asList("if-none-match", "if-modified-since", "if-match", "if-unmodified-since", "if-range", "range"));
+
+    private final HTTPCache cache;
+    private final IHTTPRequestImplementation delegate;
+    private String method;
+    private String url;
+    private Map<String, String[]> requestHeaders = Collections.emptyMap();
+
+    private CacheEntry stale;
+    private CacheEntry served;
+    private Map<String, String[]> servedHeaders;
+    private InputStream responseStream;
+    private boolean executed;
+    private boolean streamResponse;
+    private boolean storable;
+    private long requestTime;
+    private long responseTime;
+
+    CachingHTTPRequestImplementation(HTTPCache cache, IHTTPRequestImplementation delegate) {
+        this.cache = cache;
+        this.delegate = delegate;
+    }
+
+    public void setClient(HTTPClient client) {
+        delegate.setClient(client);
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+        delegate.setMethod(method);
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+        delegate.setUrl(url);
+    }
+
+    public void setSslVerification(boolean sslVerification) {
+        delegate.setSslVerification(sslVerification);
+    }
+
+    public void setFollowRedirects(boolean followRedirects) {
+        delegate.setFollowRedirects(followRedirects);
+    }
+
+    public void setTimeout(int timeout) {
+        delegate.setTimeout(timeout);
+    }
+
+    public void setRequestHeaders(Map<String, String[]> requestHeaders) {
+        this.requestHeaders = requestHeaders;
+        delegate.setRequestHeaders(requestHeaders);
+    }
+
+    public void setRequestBody(byte[] requestBody) {
+        delegate.setRequestBody(requestBody);
+    }
+
+    public void setRequestBody(HTTPRequestBody requestBody) {
+        delegate.setRequestBody(requestBody);
+    }
+
+    public void setStreamResponse(boolean streamResponse) {
+        this.streamResponse = streamResponse;
+        delegate.setStreamResponse(streamResponse);
+    }
+
+    public Map<String, String[]> getResponseHeaders() {
+        return served != null ? servedHeaders : delegate.getResponseHeaders();
+    }
+
+    public InputStream getResponseStream() {
+        if(responseStream == null && served == null) {
+            InputStream stream = delegate.getResponseStream();
+            responseStream = storable && stream != null ? new StoringStream(stream) : stream;
+        }
+        return responseStream;
+    }
+
+    public int getResponseStatus() {
+        return served != null ? served.getStatus() : delegate.getResponseStatus();
+    }
+
+    public String getResponseStatusMessage() {
+        return served != null ? served.getStatusMessage() : delegate.getResponseStatusMessage();
+    }
+
+    public int execute() {
+        if(lookup())
+            return served.getStatus();
+        executed = true;
+        return complete(delegate.execute());
+    }
+
+    public CompletableFuture<Integer> executeAsync(Executor executor) {
+        if(lookup())
+            return CompletableFuture.completedFuture(served.getStatus());
+        executed = true;
+        return delegate.executeAsync(executor).thenApply(this::complete);
+    }
+
+    public void close() {
+        if(executed)
+            delegate.close();
+    }
+
+    /**
+     * Serves the request from the cache if there is a fresh entry, otherwise prepares a conditional request for a stale
+     * entry with validators. Returns whether the request has been served.
+     */
+    private boolean lookup() {
+        if(!method.equals("GET") || bypass())
+            return false;
+        Map<String, String> cacheControl = HTTPCache.cacheControl(requestHeaders.get("cache-control"));
+        for(String pragma : HTTPCache.values(requestHeaders.get("pragma"))) {
+            if(pragma.equalsIgnoreCase("no-cache") && !requestHeaders.containsKey("cache-control"))
+                cacheControl.put("no-cache", "");
+        }
+        long now = System.currentTimeMillis();
+        requestTime = now;
+        CacheEntry entry = cache.getStore().get(HTTPCache.key(url));
+        if(entry != null && !HTTPCache.matchesVary(entry, requestHeaders))
+            entry = null;
+        if(entry != null && HTTPCache.isFresh(entry, cacheControl, now) && serve(entry, now)) {
+            cache.hit();
+            return true;
+        }
+        String etag = entry != null ? entry.getHeader("etag") : null;
+        String lastModified = entry != null ? entry.getHeader("last-modified") : null;
+        if(etag == null && lastModified == null) {
+            cache.miss();
+            return false;
+        }
+        cache.revalidation();
+        stale = entry;
+        Map<String, String[]> conditional = new HashMap<>(requestHeaders);
+        if(etag != null)
+            conditional.put("if-none-match", new String[]{ etag });
+        if(lastModified != null)
+            conditional.put("if-modified-since", new String[]{ lastModified });
+        delegate.setRequestHeaders(conditional);
+        return false;
+    }
+
+    private int complete(int status) {
+        long now = System.currentTimeMillis();
+        responseTime = now;
+        if(!SAFE_METHODS.contains(method)) {
+            if(status >= 200 && status < 400)
+                cache.invalidate(url);
+            return status;
+        }
+        if(!method.equals("GET") || bypass())
+            return status;
+        Map<String, String[]> headers = delegate.getResponseHeaders();
+        if(status == 304 && stale != null) {
+            CacheEntry entry = stale.withHeaders(HTTPCache.updatedHeaders(stale.getHeaders(), headers), requestTime, now);
+            if(serve(entry, now)) {
+                cache.notModified();
+                cache.getStore().put(HTTPCache.key(url), entry);
+                return entry.getStatus();
+            }
+            cache.invalidate(url);
+            return status;
+        }
+        storable = cache.isStorable(status, headers);
+        if(storable) {
+            String[] contentLength = headers.get("content-length");
+            try {
+                storable = contentLength == null || Long.parseLong(contentLength[0].trim()) <= cache.getMaxEntrySize();
+            } catch (NumberFormatException ex) {
+                storable = false;
+            }
+        }
+        return status;
+    }
+
+    private boolean bypass() {
+        Map<String, String> cacheControl = HTTPCache.cacheControl(requestHeaders.get("cache-control"));
+        if(cacheControl.containsKey("no-store"))
+            return true;
+        for(String header : CONDITIONAL_HEADERS) {
+            if(requestHeaders.containsKey(header))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Bodies that aren't in memory are read completely for buffered responses, so a body that fails the checks of the
+     * store is fetched again instead of failing the request.
+     */
+    private boolean serve(CacheEntry entry, long now) {
+        try {
+            InputStream body = entry.openBody();
+            if(!streamResponse && entry.getBody() == null) {
+                ByteArrayOutputStream copy = new ByteArrayOutputStream((int) Math.min(entry.getBodyLength(), Integer.MAX_VALUE - 8));
+                try (InputStream in = body) {
+                    byte[] buffer = new byte[8192];
+                    int r;
+                    while ((r = in.read(buffer)) != -1)
+                        copy.write(buffer, 0, r);
+                }
+                body = new ByteArrayInputStream(copy.toByteArray());
+            }
+            responseStream = body;
+        } catch (IOException ex) {
+            cache.invalidate(url);
+            return false;
+        }
+        served = entry;
+        servedHeaders = new HashMap<>(entry.getHeaders());
+        servedHeaders.put("age", new String[]{ String.valueOf(HTTPCache.currentAge(entry, now) / 1000) });
+        return true;
+    }
+
+    /**
+     * Copies the body while it's read and stores the response when the end has been reached. Decoders often stop
+     * reading right before the end, so the rest is read on close. Bodies that exceed the maximum entry size aren't
+     * stored.
+     */
+    private final class StoringStream extends FilterInputStream {
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        StoringStream(InputStream in) {
+            super(in);
+        }
+        public int read() throws IOException {
+            int b = in.read();
+            if(b == -1) {
+                store();
+            } else if(copy != null) {
+                copy.write(b);
+                limit();
+            }
+            return b;
+        }
+        public int read(byte[] b, int off, int len) throws IOException {
+            int r = in.read(b, off, len);
+            if(r == -1) {
+                store();
+            } else if(copy != null) {
+                copy.write(b, off, r);
+                limit();
+            }
+            return r;
+        }
+        public long skip(long n) throws IOException {
+            copy = null;
+            return in.skip(n);
+        }
+        public boolean markSupported() {
+            return false;
+        }
+        public void close() throws IOException {
+            try {
+                byte[] buffer = new byte[8192];
+                while (copy != null && read(buffer, 0, buffer.length) != -1);
+            } catch (IOException ignored) {
+                copy = null;
+            } finally {
+                super.close();
+            }
+        }
+        private void limit() {
+            if(copy.size() > cache.getMaxEntrySize())
+                copy = null;
+        }
+        private void store() {
+            if(copy == null)
+                return;
+            Map<String, String[]> headers = delegate.getResponseHeaders();
+            CacheEntry entry = new CacheEntry(delegate.getResponseStatus(), delegate.getResponseStatusMessage(), HTTPCache.storedHeaders(headers), HTTPCache.varyValues(headers, requestHeaders), requestTime, responseTime, copy.toByteArray());
+            copy = null;
+            cache.getStore().put(HTTPCache.key(url), entry);
+        }
+    }
+
+}
@@ -0,0 +1,784 @@
+package org.javawebstack.httpclient.cache;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the entries on disk so they survive restarts. Records (key, metadata and body) are appended to segment files,
+ * a memory-mapped index of fixed size slots points to the live records. Bodies are read from the segments as streams,
+ * only small ones are loaded into memory. An entry that has been revalidated is stored as a head record with the new
+ * headers, which points to the body of the record it has been read from instead of copying it.
+ * <p>
+ * Every record ends with a CRC32 over its content and every index slot has a checksum of its own. A record is forced to
+ * disk before its slot is published, so a torn write leaves either no slot or a slot whose record fails the checksum.
+ * Records that fail it are dropped instead of being served. Records are written outside the lock of the store, only the
+ * space and the slot are reserved and published under it.
+ * <p>
+ * The space is reclaimed by segments: when the total size exceeds the limit or the newest record of the oldest segment
+ * is older than the maximum age, the oldest segment is deleted together with its entries. The file of a deleted segment
+ * is kept until the bodies that are being read from it and the records that are being written to it are done.
+ */
+public class DiskCacheStore implements CacheStore, Closeable {
+
+    private static final int INDEX_MAGIC = 0x4A574843;
+    private static final int RECORD_MAGIC = 0x4A574852;
+    private static final int HEAD_MAGIC = 0x4A574848;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 48;
+    private static final int BODY_REFERENCE_SIZE = 16;
+    private static final int IN_MEMORY_LIMIT = 262144;
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final int maxEntries;
+    private long segmentSize;
+    private long maxAge = 7L * 86400000;
+
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer index;
+    private final Map<Long, Integer> slots = new HashMap<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private long size;
+    private boolean closed;
+
+    /**
+     * Opens the store in the directory, keeping the entries that have been stored before.
+     *
+     * @param maxBytes the maximum total size of the segment files
+     * @param maxEntries the amount of slots of the index, which can't be changed without dropping the entries
+     */
+    public DiskCacheStore(Path directory, long maxBytes, int maxEntries) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.segmentSize = Math.max(1048576, Math.min(67108864, maxBytes / 8));
+        Files.createDirectories(directory);
+        indexChannel = FileChannel.open(directory.resolve("index"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long indexSize = HEADER_SIZE + (long) SLOT_SIZE * maxEntries;
+        boolean valid = indexChannel.size() == indexSize;
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+        if(!valid || index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION || index.getInt(8) != maxEntries) {
+            for(int i = 0; i < indexSize; i += 8)
+                index.putLong(i, 0);
+            index.putInt(0, INDEX_MAGIC);
+            index.putInt(4, VERSION);
+            index.putInt(8, maxEntries);
+        }
+        load();
+    }
+
+    public DiskCacheStore(Path directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, 65536);
+    }
+
+    /**
+     * Sets the size at which a new segment file is started. Defaults to an eighth of the maximum size, between 1MB and
+     * 64MB.
+     */
+    public synchronized DiskCacheStore segmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * Sets the time in milliseconds after which stored entries are dropped, 0 disables it. Defaults to 7 days.
+     */
+    public synchronized DiskCacheStore maxAge(long maxAge) {
+        this.maxAge = maxAge;
+        return this;
+    }
+
+    public CacheEntry get(String key) {
+        long hash = hash(key);
+        int slot;
+        SlotInfo info;
+        Segment segment;
+        synchronized (this) {
+            Integer s = slots.get(hash);
+            if(closed || s == null)
+                return null;
+            slot = s;
+            info = readSlot(slot);
+            if(info == null || (maxAge > 0 && info.storedAt < System.currentTimeMillis() - maxAge)) {
+                removeSlot(hash, slot, info);
+                return null;
+            }
+            segment = segments.get(info.segment);
+            if(segment == null || !acquire(segment))
+                return null;
+        }
+        try {
+            return readEntry(key, info, segment);
+        } catch (IOException | RuntimeException ex) {
+            synchronized (this) {
+                Integer current = slots.get(hash);
+                if(current != null && current == slot && info.equals(readSlot(slot)))
+                    removeSlot(hash, slot, info);
+            }
+            return null;
+        } finally {
+            release(segment);
+        }
+    }
+
+    /**
+     * Stores the entry. An entry that has been read from this store (e.g. after a revalidation) only gets a new head
+     * record as long as the segment of its body exists.
+     */
+    public void put(String key, CacheEntry entry) {
+        DiskEntry source = entry instanceof DiskEntry && ((DiskEntry) entry).store == this ? (DiskEntry) entry : null;
+        Segment segment = null;
+        boolean sourcePinned = false;
+        try {
+            byte[] headPrefix = source != null ? prefix(HEAD_MAGIC, key, entry) : null;
+            byte[] recordPrefix = prefix(RECORD_MAGIC, key, entry);
+            long bodyLength = entry.getBodyLength();
+            long hash = hash(key);
+            long length;
+            long offset;
+            boolean headOnly;
+            synchronized (this) {
+                if(closed)
+                    return;
+                // keeps the body readable while segments are evicted below
+                sourcePinned = source != null && acquire(source.segment);
+                headOnly = sourcePinned && !source.segment.deleted;
+                length = headOnly ? headPrefix.length + BODY_REFERENCE_SIZE + 4 : recordPrefix.length + 8L + bodyLength + 4;
+                if(length > maxBytes)
+                    return;
+                if(freeSlots.isEmpty() && !slots.containsKey(hash))
+                    dropOldestSegment();
+                evict(length);
+                if(headOnly && source.segment.deleted) {
+                    // the body's segment has just been evicted, the body is copied from the still open file instead
+                    headOnly = false;
+                    length = recordPrefix.length + 8L + bodyLength + 4;
+                    if(length > maxBytes)
+                        return;
+                    evict(length);
+                }
+                segment = active();
+                offset = segment.size;
+                segment.size += length;
+                size += length;
+                acquire(segment);
+            }
+
+            byte[] prefix = headOnly ? headPrefix : recordPrefix;
+            CRC32 crc = new CRC32();
+            crc.update(prefix);
+            long position = offset;
+            position += writeFully(segment.channel, ByteBuffer.wrap(prefix), position);
+            if(headOnly) {
+                ByteBuffer reference = ByteBuffer.allocate(BODY_REFERENCE_SIZE).putInt(0, source.segment.id).putLong(4, source.recordOffset).putInt(12, source.recordLength);
+                crc.update(reference.array());
+                position += writeFully(segment.channel, reference, position);
+            } else {
+                ByteBuffer lengthBuffer = ByteBuffer.allocate(8).putLong(0, bodyLength);
+                crc.update(lengthBuffer.array());
+                position += writeFully(segment.channel, lengthBuffer, position);
+                position = writeBody(segment.channel, entry, bodyLength, crc, position);
+            }
+            writeFully(segment.channel, ByteBuffer.allocate(4).putInt(0, (int) crc.getValue()), position);
+            // the record has to be on disk before the slot points to it
+            segment.channel.force(false);
+
+            synchronized (this) {
+                Segment bodySegment = headOnly ? source.segment : segment;
+                if(closed || segment.deleted || bodySegment.deleted)
+                    return;
+                // counted in advance, so dropping the previous record can't delete the segment of the body
+                segment.live++;
+                if(bodySegment != segment)
+                    bodySegment.live++;
+                Integer previous = slots.get(hash);
+                if(previous != null)
+                    removeSlot(hash, previous, readSlot(previous));
+                if(freeSlots.isEmpty()) {
+                    unlink(segment);
+                    if(bodySegment != segment)
+                        unlink(bodySegment);
+                    return;
+                }
+                int slot = freeSlots.poll();
+                SlotInfo info = new SlotInfo(hash, System.currentTimeMillis(), offset, segment.id, (int) Math.min(length, Integer.MAX_VALUE), bodySegment.id);
+                writeSlot(slot, info);
+                slots.put(hash, slot);
+                segment.newest = Math.max(segment.newest, info.storedAt);
+                bodySegment.newest = Math.max(bodySegment.newest, info.storedAt);
+            }
+        } catch (IOException ignored) {
+            // the cache is best effort, a failed write just leaves the entry out
+        } finally {
+            if(segment != null)
+                release(segment);
+            if(sourcePinned)
+                release(source.segment);
+        }
+    }
+
+    private static long writeBody(FileChannel channel, CacheEntry entry, long bodyLength, CRC32 crc, long position) throws IOException {
+        byte[] body = entry.getBody();
+        if(body != null) {
+            crc.update(body);
+            return position + writeFully(channel, ByteBuffer.wrap(body), position);
+        }
+        try (InputStream in = entry.openBody()) {
+            byte[] buffer = new byte[65536];
+            long remaining = bodyLength;
+            int r;
+            while (remaining > 0 && (r = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                crc.update(buffer, 0, r);
+                position += writeFully(channel, ByteBuffer.wrap(buffer, 0, r), position);
+                remaining -= r;
+            }
+            if(remaining > 0)
+                throw new EOFException("The body is shorter than its length");
+        }
+        return position;
+    }
+
+    public synchronized void remove(String key) {
+        long hash = hash(key);
+        Integer slot = slots.get(hash);
+        if(slot != null)
+            removeSlot(hash, slot, readSlot(slot));
+    }
+
+    public synchronized void clear() {
+        while (!segments.isEmpty())
+            deleteSegment(segments.firstEntry().getValue());
+        active = null;
+    }
+
+    /**
+     * Returns the total size of the segment files in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getCount() {
+        return slots.size();
+    }
+
+    public synchronized void close() throws IOException {
+        if(closed)
+            return;
+        closed = true;
+        index.force();
+        indexChannel.close();
+        for(Segment segment : segments.values()) {
+            segment.released = true;
+            segment.channel.close();
+        }
+    }
+
+    private void load() throws IOException {
+        Map<Integer, Long> segmentSizes = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for(Path file : files) {
+                try {
+                    segmentSizes.put(Integer.parseInt(file.getFileName().toString().substring(SEGMENT_PREFIX.length())), Files.size(file));
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        for(int slot = 0; slot < maxEntries; slot++) {
+            SlotInfo info = readSlot(slot);
+            Long segmentSize = info != null ? segmentSizes.get(info.segment) : null;
+            if(info == null || segmentSize == null || !segmentSizes.containsKey(info.bodySegment) || info.offset + info.length > segmentSize || slots.containsKey(info.hash)) {
+                clearSlot(slot);
+                freeSlots.add(slot);
+                continue;
+            }
+            loadSegment(info.segment, segmentSizes).link(info.storedAt);
+            if(info.bodySegment != info.segment)
+                loadSegment(info.bodySegment, segmentSizes).link(info.storedAt);
+            slots.put(info.hash, slot);
+        }
+        for(Integer id : segmentSizes.keySet()) {
+            if(!segments.containsKey(id))
+                Files.deleteIfExists(segmentPath(id));
+        }
+    }
+
+    private Segment loadSegment(int id, Map<Integer, Long> segmentSizes) throws IOException {
+        Segment segment = segments.get(id);
+        if(segment == null) {
+            segment = new Segment(id, FileChannel.open(segmentPath(id), StandardOpenOption.READ, StandardOpenOption.WRITE));
+            segment.size = segmentSizes.get(id);
+            segments.put(id, segment);
+            size += segment.size;
+        }
+        return segment;
+    }
+
+    private Segment active() throws IOException {
+        if(active == null || active.size >= segmentSize) {
+            int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            active = new Segment(id, FileChannel.open(segmentPath(id), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            segments.put(id, active);
+        }
+        return active;
+    }
+
+    private void evict(long length) {
+        long now = System.currentTimeMillis();
+        while (!segments.isEmpty()) {
+            Segment oldest = segments.firstEntry().getValue();
+            boolean full = size + length > maxBytes;
+            boolean expired = maxAge > 0 && oldest != active && oldest.newest < now - maxAge;
+            if(!full && !expired)
+                break;
+            deleteSegment(oldest);
+        }
+    }
+
+    private void dropOldestSegment() {
+        if(!segments.isEmpty())
+            deleteSegment(segments.firstEntry().getValue());
+    }
+
+    /**
+     * Drops the segment and every entry with its record or body in it. The file is closed and deleted once the last
+     * reader or writer has released it.
+     */
+    private void deleteSegment(Segment segment) {
+        List<Segment> emptied = new ArrayList<>();
+        for(Iterator<Map.Entry<Long, Integer>> iterator = slots.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Long, Integer> entry = iterator.next();
+            SlotInfo info = readSlot(entry.getValue());
+            if(info == null || (info.segment != segment.id && info.bodySegment != segment.id))
+                continue;
+            clearSlot(entry.getValue());
+            freeSlots.add(entry.getValue());
+            iterator.remove();
+            Segment other = segments.get(info.segment == segment.id ? info.bodySegment : info.segment);
+            if(other != null && other != segment && --other.live == 0)
+                emptied.add(other);
+        }
+        segments.remove(segment.id);
+        if(active == segment)
+            active = null;
+        size -= segment.size;
+        segment.deleted = true;
+        if(segment.refs == 0)
+            closeSegment(segment);
+        for(Segment other : emptied) {
+            if(!other.deleted && other.live == 0 && other.refs == 0 && other != active)
+                deleteSegment(other);
+        }
+    }
+
+    private void closeSegment(Segment segment) {
+        segment.released = true;
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segmentPath(segment.id));
+        } catch (IOException ignored) {}
+    }
+
+    private void removeSlot(long hash, int slot, SlotInfo info) {
+        slots.remove(hash);
+        clearSlot(slot);
+        freeSlots.add(slot);
+        if(info == null)
+            return;
+        Segment segment = segments.get(info.segment);
+        if(segment != null)
+            unlink(segment);
+        Segment bodySegment = info.bodySegment != info.segment ? segments.get(info.bodySegment) : null;
+        if(bodySegment != null)
+            unlink(bodySegment);
+    }
+
+    /**
+     * Decrements the amount of entries that use the segment, segments without entries are deleted unless they are in
+     * use.
+     */
+    private void unlink(Segment segment) {
+        if(--segment.live == 0 && segment != active && segment.refs == 0 && !segment.deleted)
+            deleteSegment(segment);
+    }
+
+    /**
+     * Prevents the file of the segment from being closed, returns false if it already is.
+     */
+    private synchronized boolean acquire(Segment segment) {
+        if(closed || segment.released)
+            return false;
+        segment.refs++;
+        return true;
+    }
+
+    private synchronized void release(Segment segment) {
+        if(--segment.refs > 0 || segment.released)
+            return;
+        if(segment.deleted) {
+            closeSegment(segment);
+        } else if(segment.live == 0 && segment != active) {
+            deleteSegment(segment);
+        }
+    }
+
+    private Path segmentPath(int id) {
+        return directory.resolve(SEGMENT_PREFIX + id);
+    }
+
+    /**
+     * Reads the key and metadata of a record. The body stays on disk and is checked against the CRC when it's read, head
+     * records are checked completely as they are small.
+     */
+    private CacheEntry readEntry(String key, SlotInfo info, Segment segment) throws IOException {
+        ByteBuffer head = read(segment, info.offset, (int) Math.min(info.length, 65536));
+        int magic = head.getInt(0);
+        int prefixLength = head.getInt(4);
+        if((magic != RECORD_MAGIC && magic != HEAD_MAGIC) || prefixLength < 8 || prefixLength + 12L > info.length)
+            throw new IOException("Corrupt cache record");
+        int needed = magic == HEAD_MAGIC ? info.length : prefixLength + 8;
+        if(needed > head.capacity())
+            head = read(segment, info.offset, needed);
+        if(magic == HEAD_MAGIC) {
+            if(prefixLength + BODY_REFERENCE_SIZE + 4 != info.length || crc(head.array(), info.length - 4) != head.getInt(info.length - 4))
+                throw new IOException("Corrupt cache record");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(head.array(), 8, prefixLength - 8));
+        if(!key.equals(readString(in)))
+            return null;
+        int status = in.readInt();
+        String statusMessage = readString(in);
+        long requestTime = in.readLong();
+        long responseTime = in.readLong();
+        Map<String, String[]> headers = new HashMap<>();
+        int headerCount = in.readInt();
+        for(int i = 0; i < headerCount; i++) {
+            String name = readString(in);
+            String[] values = new String[in.readInt()];
+            for(int j = 0; j < values.length; j++)
+                values[j] = readString(in);
+            headers.put(name, values);
+        }
+        Map<String, String> varyValues = new HashMap<>();
+        int varyCount = in.readInt();
+        for(int i = 0; i < varyCount; i++)
+            varyValues.put(readString(in), readString(in));
+        if(magic == RECORD_MAGIC) {
+            long bodyLength = head.getLong(prefixLength);
+            if(prefixLength + 8 + bodyLength + 4 != info.length)
+                throw new IOException("Corrupt cache record");
+            return new DiskEntry(this, key, segment, info.offset, info.length, prefixLength + 8, bodyLength, status, statusMessage, headers, varyValues, requestTime, responseTime);
+        }
+        int bodySegmentId = head.getInt(prefixLength);
+        long recordOffset = head.getLong(prefixLength + 4);
+        int recordLength = head.getInt(prefixLength + 12);
+        if(bodySegmentId != info.bodySegment)
+            throw new IOException("Corrupt cache record");
+        Segment bodySegment;
+        synchronized (this) {
+            bodySegment = segments.get(bodySegmentId);
+            if(bodySegment == null || !acquire(bodySegment))
+                throw new IOException("Missing segment");
+        }
+        try {
+            ByteBuffer bodyHead = read(bodySegment, recordOffset, 8);
+            int bodyPrefixLength = bodyHead.getInt(4);
+            if(bodyHead.getInt(0) != RECORD_MAGIC || bodyPrefixLength < 8 || bodyPrefixLength + 12L > recordLength)
+                throw new IOException("Corrupt cache record");
+            long bodyLength = read(bodySegment, recordOffset + bodyPrefixLength, 8).getLong(0);
+            if(bodyPrefixLength + 8 + bodyLength + 4 != recordLength)
+                throw new IOException("Corrupt cache record");
+            return new DiskEntry(this, key, bodySegment, recordOffset, recordLength, bodyPrefixLength + 8, bodyLength, status, statusMessage, headers, varyValues, requestTime, responseTime);
+        } finally {
+            release(bodySegment);
+        }
+    }
+
+    private static ByteBuffer read(Segment segment, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(segment.channel, buffer, position);
+        return buffer;
+    }
+
+    private static int crc(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] prefix(int magic, String key, CacheEntry entry) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(magic);
+        out.writeInt(0);
+        writeString(out, key);
+        out.writeInt(entry.getStatus());
+        writeString(out, entry.getStatusMessage());
+        out.writeLong(entry.getRequestTime());
+        out.writeLong(entry.getResponseTime());
+        out.writeInt(entry.getHeaders().size());
+        for(Map.Entry<String, String[]> header : entry.getHeaders().entrySet()) {
+            writeString(out, header.getKey());
+            out.writeInt(header.getValue().length);
+            for(String value : header.getValue())
+                writeString(out, value);
+        }
+        out.writeInt(entry.getVaryValues().size());
+        for(Map.Entry<String, String> value : entry.getVaryValues().entrySet()) {
+            writeString(out, value.getKey());
+            writeString(out, value.getValue());
+        }
+        byte[] prefix = baos.toByteArray();
+        ByteBuffer.wrap(prefix).putInt(4, prefix.length);
+        return prefix;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if(value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private SlotInfo readSlot(int slot) {
+        int position = HEADER_SIZE + slot * SLOT_SIZE;
+        long hash = index.getLong(position);
+        long storedAt = index.getLong(position + 8);
+        long offset = index.getLong(position + 16);
+        int segment = index.getInt(position + 24);
+        int length = index.getInt(position + 28);
+        int bodySegment = index.getInt(position + 32);
+        int used = index.getInt(position + 36);
+        int checksum = index.getInt(position + 40);
+        if(used != 1 || checksum != slotChecksum(hash, storedAt, offset, segment, length, bodySegment))
+            return null;
+        return new SlotInfo(hash, storedAt, offset, segment, length, bodySegment);
+    }
+
+    private void writeSlot(int slot, SlotInfo info) {
+        int position = HEADER_SIZE + slot * SLOT_SIZE;
+        index.putLong(position, info.hash);
+        index.putLong(position + 8, info.storedAt);
+        index.putLong(position + 16, info.offset);
+        index.putInt(position + 24, info.segment);
+        index.putInt(position + 28, info.length);
+        index.putInt(position + 32, info.bodySegment);
+        index.putInt(position + 36, 1);
+        index.putInt(position + 40, slotChecksum(info.hash, info.storedAt, info.offset, info.segment, info.length, info.bodySegment));
+    }
+
+    private void clearSlot(int slot) {
+        int position = HEADER_SIZE + slot * SLOT_SIZE;
+        index.putInt(position + 36, 0);
+        index.putInt(position + 40, 0);
+    }
+
+    private static int slotChecksum(long hash, long storedAt, long offset, int segment, int length, int bodySegment) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(36).putLong(hash).putLong(storedAt).putLong(offset).putInt(segment).putInt(length).putInt(bodySegment).array());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the key. A collision only costs the entry, as the key is checked against the record.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for(byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining())
+            written += channel.write(buffer, position + written);
+        return written;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position;
+        while (buffer.hasRemaining()) {
+            int r = channel.read(buffer, position);
+            if(r == -1)
+                throw new EOFException("Unexpected end of segment at " + (position - start));
+            position += r;
+        }
+    }
+
+    /**
+     * A segment file. live counts the entries with their record or body in it, refs the readers and writers that
+     * currently use the file. Both are guarded by the store.
+     */
+    private static final class Segment {
+        final int id;
+        final FileChannel channel;
+        long size;
+        int live;
+        long newest;
+        int refs;
+        boolean deleted;
+        boolean released;
+        Segment(int id, FileChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+        Segment link(long storedAt) {
+            live++;
+            newest = Math.max(newest, storedAt);
+            return this;
+        }
+    }
+
+    private static final class SlotInfo {
+        final long hash;
+        final long storedAt;
+        final long offset;
+        final int segment;
+        final int length;
+        final int bodySegment;
+        SlotInfo(long hash, long storedAt, long offset, int segment, int length, int bodySegment) {
+            this.hash = hash;
+            this.storedAt = storedAt;
+            this.offset = offset;
+            this.segment = segment;
+            this.length = length;
+            this.bodySegment = bodySegment;
+        }
+        public boolean equals(Object o) {
+            if(!(o instanceof SlotInfo))
+                return false;
+            SlotInfo other = (SlotInfo) o;
+            return hash == other.hash && storedAt == other.storedAt && offset == other.offset && segment == other.segment && length == other.length && bodySegment == other.bodySegment;
+        }
+        public int hashCode() {
+            return Long.hashCode(hash) * 31 + Long.hashCode(offset);
+        }
+    }
+
+    /**
+     * An entry whose body is still in its segment. Small bodies are read and checked at once, larger ones are checked
+     * when their stream reaches the end. The segment is kept open while a body stream is open.
+     */
+    private static final class DiskEntry extends CacheEntry {
+        private final DiskCacheStore store;
+        private final String key;
+        private final Segment segment;
+        private final long recordOffset;
+        private final int recordLength;
+        private final int bodyOffset;
+        private final long bodyLength;
+        DiskEntry(DiskCacheStore store, String key, Segment segment, long recordOffset, int recordLength, int bodyOffset, long bodyLength, int status, String statusMessage, Map<String, String[]> headers, Map<String, String> varyValues, long requestTime, long responseTime) {
+            super(status, statusMessage, headers, varyValues, requestTime, responseTime, null);
+            this.store = store;
+            this.key = key;
+            this.segment = segment;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+        }
+        public long getBodyLength() {
+            return bodyLength;
+        }
+        public InputStream openBody() throws IOException {
+            if(!store.acquire(segment))
+                throw new IOException("The segment of " + key + " has been deleted");
+            boolean streaming = false;
+            try {
+                if(recordLength <= IN_MEMORY_LIMIT) {
+                    ByteBuffer record = read(segment, recordOffset, recordLength);
+                    if(crc(record.array(), recordLength - 4) != record.getInt(recordLength - 4))
+                        throw corrupt();
+                    return new ByteArrayInputStream(record.array(), bodyOffset, (int) bodyLength);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(read(segment, recordOffset, bodyOffset).array());
+                streaming = true;
+                return new VerifyingStream(crc);
+            } finally {
+                if(!streaming)
+                    store.release(segment);
+            }
+        }
+        public CacheEntry withHeaders(Map<String, String[]> headers, long requestTime, long responseTime) {
+            return new DiskEntry(store, key, segment, recordOffset, recordLength, bodyOffset, bodyLength, getStatus(), getStatusMessage(), headers, getVaryValues(), requestTime, responseTime);
+        }
+        private IOException corrupt() {
+            store.remove(key);
+            return new IOException("Corrupt cache record of " + key);
+        }
+        private final class VerifyingStream extends InputStream {
+            private final CRC32 crc;
+            private long position;
+            private boolean released;
+            VerifyingStream(CRC32 crc) {
+                this.crc = crc;
+            }
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+            public int read(byte[] b, int off, int len) throws IOException {
+                if(len == 0)
+                    return 0;
+                if(position == bodyLength)
+                    return -1;
+                if(released)
+                    throw new IOException("Stream closed");
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, bodyLength - position));
+                    int r = segment.channel.read(buffer, recordOffset + bodyOffset + position);
+                    if(r == -1)
+                        throw corrupt();
+                    crc.update(b, off, r);
+                    position += r;
+                    if(position == bodyLength) {
+                        ByteBuffer checksum = ByteBuffer.allocate(4);
+                        readFully(segment.channel, checksum, recordOffset + bodyOffset + bodyLength);
+                        close();
+                        if((int) crc.getValue() != checksum.getInt(0))
+                            throw corrupt();
+                    }
+                    return r;
+                } catch (IOException ex) {
+                    close();
+                    throw ex;
+                }
+            }
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, bodyLength - position);
+            }
+            public void close() {
+                if(released)
+                    return;
+                released = true;
+                store.release(segment);
+            }
+        }
+    }
+
+}
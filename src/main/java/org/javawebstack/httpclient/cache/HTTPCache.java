@@ -0,0 +1,318 @@
+package org.javawebstack.httpclient.cache;
+
+import org.javawebstack.httpclient.implementation.IHTTPRequestImplementation;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A private response cache following RFC 9111. Responses to GET requests are stored according to their Cache-Control,
+ * Expires and Vary headers. Fresh responses are served without any network round trip, stale responses with an ETag or
+ * Last-Modified header are revalidated with a conditional request and served from the cache when the server answers
+ * with 304 Not Modified. Successful unsafe requests (e.g. POST) invalidate the entry of their url.
+ * <p>
+ * Every url has a single entry, a request that doesn't match the Vary headers of the stored response replaces it.
+ * Requests with their own conditional headers or Cache-Control: no-store bypass the cache.
+ */
+public class HTTPCache {
+
+    private static final Set<Integer> HEURISTICALLY_CACHEABLE = new HashSet<>(Arrays.asList(200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501));
+    private static final Set<String> HOP_BY_HOP = new HashSet<>(Arrays.asList("connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "proxy-connection", "te", "trailer", "transfer-encoding", "upgrade"));
+    private static final long MAX_HEURISTIC_LIFETIME = 86400000;
+
+    private final CacheStore store;
+    private long maxEntrySize = 4194304;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+
+    /**
+     * Creates a cache which keeps the responses in memory, bounded by the given total size in bytes.
+     */
+    public HTTPCache(long maxBytes) {
+        this(new MemoryCacheStore(maxBytes));
+    }
+
+    public HTTPCache(CacheStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Sets the size in bytes above which response bodies aren't stored. Defaults to 4MB.
+     */
+    public HTTPCache maxEntrySize(long maxEntrySize) {
+        this.maxEntrySize = maxEntrySize;
+        return this;
+    }
+
+    public long getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    public CacheStore getStore() {
+        return store;
+    }
+
+    /**
+     * Wraps a request implementation so that its requests go through the cache. This is called by HTTPRequest for
+     * clients with a cache, directly after the implementation has been created.
+     */
+    public IHTTPRequestImplementation wrap(IHTTPRequestImplementation implementation) {
+        return new CachingHTTPRequestImplementation(this, implementation);
+    }
+
+    public void invalidate(String url) {
+        store.remove(key(url));
+    }
+
+    public void clear() {
+        store.clear();
+    }
+
+    /**
+     * Returns the amount of requests that have been answered from the cache without contacting the server.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the amount of cacheable requests for which no usable entry was stored.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the amount of conditional requests that have been sent to revalidate stale entries.
+     */
+    public long getRevalidations() {
+        return revalidations.sum();
+    }
+
+    /**
+     * Returns the amount of revalidations that were answered with 304 Not Modified and served from the cache.
+     */
+    public long getNotModified() {
+        return notModified.sum();
+    }
+
+    public String toString() {
+        return "HTTPCache{hits=" + getHits() + ", misses=" + getMisses() + ", revalidations=" + getRevalidations() + ", notModified=" + getNotModified() + "}";
+    }
+
+    void hit() {
+        hits.increment();
+    }
+
+    void miss() {
+        misses.increment();
+    }
+
+    void revalidation() {
+        revalidations.increment();
+    }
+
+    void notModified() {
+        notModified.increment();
+    }
+
+    static String key(String url) {
+        return url;
+    }
+
+    /**
+     * Decides whether a response to a GET request may be stored (RFC 9111 section 3). Responses that could never be
+     * served again (no freshness and no validator) aren't stored either.
+     */
+    boolean isStorable(int status, Map<String, String[]> headers) {
+        if(status < 200 || status == 206 || status == 304)
+            return false;
+        Map<String, String> cacheControl = cacheControl(headers.get("cache-control"));
+        if(cacheControl.containsKey("no-store"))
+            return false;
+        for(String vary : values(headers.get("vary"))) {
+            if(vary.equals("*"))
+                return false;
+        }
+        boolean explicit = cacheControl.containsKey("max-age") || cacheControl.containsKey("public") || cacheControl.containsKey("private") || headers.containsKey("expires");
+        if(!explicit && !HEURISTICALLY_CACHEABLE.contains(status))
+            return false;
+        return freshnessLifetime(status, headers, System.currentTimeMillis()) > 0 || headers.containsKey("etag") || headers.containsKey("last-modified");
+    }
+
+    /**
+     * Decides whether the entry can be served without revalidation, taking the Cache-Control directives of the request
+     * (no-cache, max-age, min-fresh and max-stale) into account.
+     */
+    static boolean isFresh(CacheEntry entry, Map<String, String> requestCacheControl, long now) {
+        Map<String, String> cacheControl = cacheControl(entry.getHeaders().get("cache-control"));
+        if(cacheControl.containsKey("no-cache") || requestCacheControl.containsKey("no-cache"))
+            return false;
+        long lifetime = freshnessLifetime(entry.getStatus(), entry.getHeaders(), entry.getResponseTime());
+        long age = currentAge(entry, now);
+        long maxAge = seconds(requestCacheControl.get("max-age"));
+        if(maxAge >= 0 && age > maxAge)
+            return false;
+        long minFresh = seconds(requestCacheControl.get("min-fresh"));
+        if(minFresh > 0)
+            lifetime -= minFresh;
+        if(lifetime > age)
+            return true;
+        if(!requestCacheControl.containsKey("max-stale") || cacheControl.containsKey("must-revalidate"))
+            return false;
+        long maxStale = seconds(requestCacheControl.get("max-stale"));
+        return maxStale < 0 || age - lifetime <= maxStale;
+    }
+
+    /**
+     * Returns the freshness lifetime in milliseconds (RFC 9111 section 4.2.1), using the heuristic of 10% of the time
+     * since Last-Modified (at most a day) if there is no explicit one.
+     */
+    static long freshnessLifetime(int status, Map<String, String[]> headers, long responseTime) {
+        Map<String, String> cacheControl = cacheControl(headers.get("cache-control"));
+        long maxAge = seconds(cacheControl.get("max-age"));
+        if(maxAge >= 0)
+            return maxAge;
+        long date = date(first(headers.get("date")));
+        if(date < 0)
+            date = responseTime;
+        if(headers.containsKey("expires")) {
+            long expires = date(first(headers.get("expires")));
+            return expires < 0 ? 0 : Math.max(0, expires - date);
+        }
+        long lastModified = date(first(headers.get("last-modified")));
+        if(lastModified >= 0 && HEURISTICALLY_CACHEABLE.contains(status))
+            return Math.min(MAX_HEURISTIC_LIFETIME, Math.max(0, date - lastModified) / 10);
+        return 0;
+    }
+
+    /**
+     * Returns the current age of the entry in milliseconds (RFC 9111 section 4.2.3).
+     */
+    static long currentAge(CacheEntry entry, long now) {
+        long date = date(entry.getHeader("date"));
+        long apparentAge = date < 0 ? 0 : Math.max(0, entry.getResponseTime() - date);
+        long ageValue = seconds(entry.getHeader("age"));
+        long correctedAgeValue = Math.max(0, ageValue) + (entry.getResponseTime() - entry.getRequestTime());
+        return Math.max(apparentAge, correctedAgeValue) + Math.max(0, now - entry.getResponseTime());
+    }
+
+    static boolean matchesVary(CacheEntry entry, Map<String, String[]> requestHeaders) {
+        for(String name : values(entry.getHeaders().get("vary"))) {
+            name = name.toLowerCase(Locale.ROOT);
+            if(!Objects.equals(entry.getVaryValues().get(name), varyValue(requestHeaders.get(name))))
+                return false;
+        }
+        return true;
+    }
+
+    static Map<String, String> varyValues(Map<String, String[]> responseHeaders, Map<String, String[]> requestHeaders) {
+        Map<String, String> varyValues = new HashMap<>();
+        for(String name : values(responseHeaders.get("vary"))) {
+            name = name.toLowerCase(Locale.ROOT);
+            String value = varyValue(requestHeaders.get(name));
+            if(value != null)
+                varyValues.put(name, value);
+        }
+        return varyValues;
+    }
+
+    private static String varyValue(String[] values) {
+        return values == null ? null : String.join(", ", values);
+    }
+
+    /**
+     * Returns a copy of the response headers without the hop-by-hop headers, which don't belong into a stored response.
+     */
+    static Map<String, String[]> storedHeaders(Map<String, String[]> headers) {
+        Map<String, String[]> stored = new HashMap<>();
+        headers.forEach((name, values) -> {
+            if(!HOP_BY_HOP.contains(name))
+                stored.put(name, values);
+        });
+        return stored;
+    }
+
+    /**
+     * Updates the stored headers with the ones of a 304 response (RFC 9111 section 3.2).
+     */
+    static Map<String, String[]> updatedHeaders(Map<String, String[]> stored, Map<String, String[]> notModified) {
+        Map<String, String[]> updated = new HashMap<>(stored);
+        notModified.forEach((name, values) -> {
+            if(!HOP_BY_HOP.contains(name) && !name.equals("content-length") && !name.equals("content-encoding"))
+                updated.put(name, values);
+        });
+        return updated;
+    }
+
+    /**
+     * Parses Cache-Control headers into their directives with lower case names. Directives without argument have an
+     * empty value.
+     */
+    static Map<String, String> cacheControl(String[] headers) {
+        Map<String, String> directives = new HashMap<>();
+        for(String directive : values(headers)) {
+            int eq = directive.indexOf('=');
+            String name = (eq == -1 ? directive : directive.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+            String value = eq == -1 ? "" : directive.substring(eq + 1).trim();
+            if(value.length() > 1 && value.startsWith("\"") && value.endsWith("\""))
+                value = value.substring(1, value.length() - 1);
+            directives.putIfAbsent(name, value);
+        }
+        return directives;
+    }
+
+    /**
+     * Splits comma separated header values.
+     */
+    static List<String> values(String[] headers) {
+        if(headers == null)
+            return Collections.emptyList();
+        List<String> values = new ArrayList<>();
+        for(String header : headers) {
+            for(String value : header.split(",")) {
+                value = value.trim();
+                if(!value.isEmpty())
+                    values.add(value);
+            }
+        }
+        return values;
+    }
+
+    private static String first(String[] values) {
+        return values == null || values.length == 0 ? null : values[0];
+    }
+
+    /**
+     * Parses a delta-seconds value into milliseconds, -1 if it's missing or invalid.
+     */
+    private static long seconds(String value) {
+        if(value == null || value.isEmpty())
+            return -1;
+        try {
+            return Math.min(Long.parseLong(value.trim()), Integer.MAX_VALUE) * 1000;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses an HTTP date into epoch milliseconds, -1 if it's missing or invalid.
+     */
+    private static long date(String value) {
+        if(value == null)
+            return -1;
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            return -1;
+        }
+    }
+
+}
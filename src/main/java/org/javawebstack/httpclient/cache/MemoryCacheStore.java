@@ -0,0 +1,101 @@
+package org.javawebstack.httpclient.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the entries on the heap, bounded by their total size in bytes. When the limit is exceeded the least recently
+ * used entries are evicted.
+ */
+public class MemoryCacheStore implements CacheStore {
+
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Slot> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long evictions;
+
+    public MemoryCacheStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized CacheEntry get(String key) {
+        Slot slot = entries.get(key);
+        return slot == null ? null : slot.entry;
+    }
+
+    public void put(String key, CacheEntry entry) {
+        if(entry.getBody() == null)
+            throw new IllegalArgumentException("Only entries with an in-memory body can be stored");
+        long weight = weigh(key, entry);
+        synchronized (this) {
+            Slot previous = entries.remove(key);
+            if(previous != null)
+                size -= previous.weight;
+            if(weight > maxBytes)
+                return;
+            entries.put(key, new Slot(entry, weight));
+            size += weight;
+            Iterator<Slot> iterator = entries.values().iterator();
+            while (size > maxBytes && iterator.hasNext()) {
+                size -= iterator.next().weight;
+                iterator.remove();
+                evictions++;
+            }
+        }
+    }
+
+    public synchronized void remove(String key) {
+        Slot slot = entries.remove(key);
+        if(slot != null)
+            size -= slot.weight;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the estimated size of all entries in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private static long weigh(String key, CacheEntry entry) {
+        long weight = ENTRY_OVERHEAD + key.length() * 2L + entry.getBody().length;
+        for(Map.Entry<String, String[]> header : entry.getHeaders().entrySet()) {
+            weight += header.getKey().length() * 2L;
+            for(String value : header.getValue())
+                weight += value.length() * 2L;
+        }
+        for(Map.Entry<String, String> value : entry.getVaryValues().entrySet())
+            weight += (value.getKey().length() + value.getValue().length()) * 2L;
+        return weight;
+    }
+
+    private static final class Slot {
+        final CacheEntry entry;
+        final long weight;
+        Slot(CacheEntry entry, long weight) {
+            this.entry = entry;
+            this.weight = weight;
+        }
+    }
+
+}
@@ -1,22 +1,30 @@
 package org.javawebstack.httpclient.implementation;
 
-import org.apache.hc.client5.http.classic.HttpClient;
 import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
 import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
 import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
-import org.apache.hc.client5.http.io.HttpClientConnectionManager;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
 import org.apache.hc.client5.http.ssl.NoopHostnameVerifier;
 import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactoryBuilder;
 import org.apache.hc.client5.http.ssl.TrustAllStrategy;
 import org.apache.hc.core5.http.*;
+import org.apache.hc.core5.http.io.entity.AbstractHttpEntity;
 import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
 import org.apache.hc.core5.http.io.support.ClassicRequestBuilder;
 import org.apache.hc.core5.ssl.SSLContextBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.javawebstack.httpclient.HTTPClient;
+import org.javawebstack.httpclient.HTTPRequestBody;
 
 import javax.net.ssl.SSLContext;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -31,12 +39,25 @@ public class ApacheHTTPRequestImplementation implements IHTTPRequestImplementati
     private boolean followRedirects;
     private int timeout;
     private Map<String, String[]> requestHeaders;
-    private byte[] requestBody;
+    private HTTPRequestBody requestBody;
 
     private int status;
+    private Throwable exception;
     private String statusMessage;
     private Map<String, String[]> responseHeaders = new HashMap<>();
     private HttpEntity responseEntity;
+    private CloseableHttpResponse response;
+    private SharedClient sharedClient;
+    private CloseableHttpClient client;
+    private boolean ownsSharedClient;
+
+    public void setClient(HTTPClient client) {
+        this.sharedClient = client.sharedResource(SharedClient.class, SharedClient::new)
+                .setMaxConnections(client.getMaxConnections())
+                .setMaxConnectionsPerRoute(client.getMaxConnectionsPerRoute())
+                .setIdleTimeout(client.getConnectionIdleTimeout())
+                .setAutomaticRetries(client.getRetryPolicy() == null);
+    }
 
     public void setMethod(String method) {
         this.method = method;
@@ -63,6 +84,10 @@ public class ApacheHTTPRequestImplementation implements IHTTPRequestImplementati
     }
 
     public void setRequestBody(byte[] requestBody) {
+        this.requestBody = requestBody == null ? null : HTTPRequestBody.of(requestBody);
+    }
+
+    public void setRequestBody(HTTPRequestBody requestBody) {
         this.requestBody = requestBody;
     }
 
@@ -90,27 +115,20 @@ public class ApacheHTTPRequestImplementation implements IHTTPRequestImplementati
 
     public int execute() {
         try {
+            if(sharedClient == null) {
+                sharedClient = new SharedClient();
+                ownsSharedClient = true;
+            }
+            client = sharedClient.acquire(sslVerification);
+
             RequestConfig config = RequestConfig.custom()
                     .setConnectTimeout(timeout, TimeUnit.MILLISECONDS)
                     .setConnectionRequestTimeout(timeout, TimeUnit.MILLISECONDS)
+                    .setResponseTimeout(timeout, TimeUnit.MILLISECONDS)
                     .setRedirectsEnabled(followRedirects)
                     .build();
-            HttpClientBuilder clientBuilder = HttpClientBuilder.create()
-                    .setDefaultRequestConfig(config);
-
-            if(!sslVerification) {
-                SSLContext context = new SSLContextBuilder().loadTrustMaterial(null, TrustAllStrategy.INSTANCE).build();
-                HttpClientConnectionManager cm = PoolingHttpClientConnectionManagerBuilder.create()
-                        .setSSLSocketFactory(SSLConnectionSocketFactoryBuilder.create()
-                                .setSslContext(context)
-                                .setHostnameVerifier(NoopHostnameVerifier.INSTANCE)
-                                .build()
-                        )
-                        .build();
-                clientBuilder.setConnectionManager(cm);
-            }
-
-            HttpClient client = clientBuilder.build();
+            HttpClientContext context = HttpClientContext.create();
+            context.setRequestConfig(config);
 
             ClassicRequestBuilder builder = ClassicRequestBuilder.create(method);
             builder.setUri(url);
@@ -121,10 +139,11 @@ public class ApacheHTTPRequestImplementation implements IHTTPRequestImplementati
 
             if(requestBody != null) {
                 String contentType = requestHeaders.computeIfAbsent("content-type", n -> new String[]{ "text/plain" })[0];
-                builder.setEntity(new ByteArrayEntity(requestBody, ContentType.create(contentType)));
+                byte[] bytes = requestBody.getBytes();
+                builder.setEntity(bytes != null ? new ByteArrayEntity(bytes, ContentType.create(contentType)) : new RequestBodyEntity(requestBody, ContentType.create(contentType)));
             }
 
-            ClassicHttpResponse response = client.execute(builder.build(), res -> res);
+            response = client.execute(builder.build(), context);
             responseEntity = response.getEntity();
 
             status = response.getCode();
@@ -133,17 +152,222 @@ public class ApacheHTTPRequestImplementation implements IHTTPRequestImplementati
             for(Header h : response.getHeaders())
                 resHeaders.computeIfAbsent(h.getName().toLowerCase(Locale.ROOT), n -> new ArrayList<>()).add(h.getValue());
             resHeaders.forEach((k, v) -> responseHeaders.put(k, v.toArray(new String[0])));
-
-            responseEntity = response.getEntity();
         } catch (IOException | NoSuchAlgorithmException | KeyStoreException | KeyManagementException e) {
-
+            exception = e;
+            releaseClient();
         }
         if(status == 0)
             status = -1;
         return status;
     }
 
+    public Throwable getException() {
+        return exception;
+    }
+
+    private void releaseClient() {
+        if(client != null) {
+            sharedClient.release(client);
+            client = null;
+        }
+    }
+
     public void close() {
+        if(response != null) {
+            try {
+                response.close();
+            } catch (IOException ignored) {}
+            response = null;
+        }
+        releaseClient();
+        if(ownsSharedClient) {
+            sharedClient.close();
+            sharedClient = null;
+            ownsSharedClient = false;
+        }
+    }
+
+    /**
+     * The apache clients and their connection pools shared by all requests of a HTTPClient, one for each ssl
+     * verification mode. Timeouts and redirects are configured per request. When a setting that is fixed at build time
+     * changes, new clients are built for the following requests and the old ones are closed once the requests using
+     * them have been closed.
+     */
+    public static class SharedClient implements Closeable {
+
+        private final Map<Boolean, Pooled> clients = new HashMap<>();
+        private final List<Pooled> retired = new ArrayList<>();
+        private int maxConnections = 100;
+        private int maxConnectionsPerRoute = 20;
+        private long idleTimeout = 30000;
+        private boolean automaticRetries = true;
+
+        public synchronized SharedClient setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            for(Pooled pooled : clients.values()) {
+                if(pooled.connectionManager.getMaxTotal() != maxConnections)
+                    pooled.connectionManager.setMaxTotal(maxConnections);
+            }
+            return this;
+        }
+
+        public synchronized SharedClient setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+            this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+            for(Pooled pooled : clients.values()) {
+                if(pooled.connectionManager.getDefaultMaxPerRoute() != maxConnectionsPerRoute)
+                    pooled.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+            }
+            return this;
+        }
+
+        public synchronized SharedClient setIdleTimeout(long idleTimeout) {
+            if(this.idleTimeout != idleTimeout) {
+                this.idleTimeout = idleTimeout;
+                retire();
+            }
+            return this;
+        }
+
+        /**
+         * Apache's own retries are disabled for clients with a retry policy, so that they don't multiply its retries.
+         */
+        public synchronized SharedClient setAutomaticRetries(boolean automaticRetries) {
+            if(this.automaticRetries != automaticRetries) {
+                this.automaticRetries = automaticRetries;
+                retire();
+            }
+            return this;
+        }
+
+        /**
+         * Returns the client for the ssl verification mode, it has to be released once the request is done with it.
+         */
+        public synchronized CloseableHttpClient acquire(boolean sslVerification) throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+            Pooled pooled = clients.get(sslVerification);
+            if(pooled == null) {
+                pooled = build(sslVerification);
+                clients.put(sslVerification, pooled);
+            }
+            pooled.leases++;
+            return pooled.client;
+        }
+
+        public synchronized void release(CloseableHttpClient client) {
+            for(Pooled pooled : clients.values()) {
+                if(pooled.client == client) {
+                    pooled.leases--;
+                    return;
+                }
+            }
+            for(Iterator<Pooled> iterator = retired.iterator(); iterator.hasNext(); ) {
+                Pooled pooled = iterator.next();
+                if(pooled.client == client) {
+                    if(--pooled.leases == 0) {
+                        iterator.remove();
+                        pooled.close();
+                    }
+                    return;
+                }
+            }
+        }
+
+        private Pooled build(boolean sslVerification) throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+            PoolingHttpClientConnectionManagerBuilder managerBuilder = PoolingHttpClientConnectionManagerBuilder.create()
+                    .setMaxConnTotal(maxConnections)
+                    .setMaxConnPerRoute(maxConnectionsPerRoute);
+            if(!sslVerification) {
+                SSLContext context = new SSLContextBuilder().loadTrustMaterial(null, TrustAllStrategy.INSTANCE).build();
+                managerBuilder.setSSLSocketFactory(SSLConnectionSocketFactoryBuilder.create()
+                        .setSslContext(context)
+                        .setHostnameVerifier(NoopHostnameVerifier.INSTANCE)
+                        .build()
+                );
+            }
+            PoolingHttpClientConnectionManager connectionManager = managerBuilder.build();
+            HttpClientBuilder builder = HttpClientBuilder.create()
+                    .setConnectionManager(connectionManager)
+                    // HTTPRequest negotiates and decodes content codings the same way for all implementations
+                    .disableContentCompression()
+                    .evictExpiredConnections()
+                    .evictIdleConnections(TimeValue.ofMilliseconds(idleTimeout));
+            if(!automaticRetries)
+                builder.disableAutomaticRetries();
+            return new Pooled(builder.build(), connectionManager);
+        }
+
+        private void retire() {
+            for(Pooled pooled : clients.values()) {
+                if(pooled.leases == 0) {
+                    pooled.close();
+                } else {
+                    retired.add(pooled);
+                }
+            }
+            clients.clear();
+        }
+
+        /**
+         * Closes all clients, including the ones that are still in use.
+         */
+        public synchronized void close() {
+            clients.values().forEach(Pooled::close);
+            clients.clear();
+            retired.forEach(Pooled::close);
+            retired.clear();
+        }
+
+        private static final class Pooled {
+            final CloseableHttpClient client;
+            final PoolingHttpClientConnectionManager connectionManager;
+            int leases;
+            Pooled(CloseableHttpClient client, PoolingHttpClientConnectionManager connectionManager) {
+                this.client = client;
+                this.connectionManager = connectionManager;
+            }
+            void close() {
+                try {
+                    client.close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+    }
+
+    /**
+     * Streams a request body, Apache sends it chunked if the length is unknown.
+     */
+    private static class RequestBodyEntity extends AbstractHttpEntity {
+
+        private final HTTPRequestBody body;
+
+        RequestBodyEntity(HTTPRequestBody body, ContentType contentType) {
+            super(contentType, null, body.length() < 0);
+            this.body = body;
+        }
+
+        public InputStream getContent() throws IOException {
+            return body.open();
+        }
+
+        public void writeTo(OutputStream stream) throws IOException {
+            body.writeTo(stream);
+        }
+
+        public long getContentLength() {
+            return body.length();
+        }
+
+        public boolean isRepeatable() {
+            return body.isRepeatable();
+        }
+
+        public boolean isStreaming() {
+            return !body.isRepeatable();
+        }
+
+        public void close() {
+
+        }
 
     }
 
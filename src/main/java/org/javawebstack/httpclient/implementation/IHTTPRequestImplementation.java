@@ -1,10 +1,25 @@
 package org.javawebstack.httpclient.implementation;
 
+import org.javawebstack.httpclient.HTTPClient;
+import org.javawebstack.httpclient.HTTPRequestBody;
+
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public interface IHTTPRequestImplementation {
 
+    /**
+     * Called with the client executing the request before any other setter.
+     * Implementations can use it to access resources shared between requests like connection pools.
+     */
+    default void setClient(HTTPClient client) {
+
+    }
+
     void setMethod(String method);
 
     void setUrl(String url);
@@ -19,6 +34,26 @@ public interface IHTTPRequestImplementation {
 
     void setRequestBody(byte[] requestBody);
 
+    /**
+     * Sets a body which may be streamed. Implementations that can't stream the body fall back to reading it into
+     * memory.
+     */
+    default void setRequestBody(HTTPRequestBody requestBody) {
+        try {
+            setRequestBody(requestBody == null ? null : requestBody.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Hints that the response body will be read incrementally through getResponseStream and shouldn't be buffered.
+     * The stream has to stay usable until close() is called.
+     */
+    default void setStreamResponse(boolean streamResponse) {
+
+    }
+
     Map<String, String[]> getResponseHeaders();
 
     InputStream getResponseStream();
@@ -29,6 +64,22 @@ public interface IHTTPRequestImplementation {
 
     int execute();
 
+    /**
+     * Returns the exception that made the request fail with status -1 or null if there is none or the implementation
+     * doesn't keep it.
+     */
+    default Throwable getException() {
+        return null;
+    }
+
+    /**
+     * Executes the request without blocking the calling thread. Blocking implementations run execute() on the given
+     * executor, non-blocking implementations can complete the future from their own io threads.
+     */
+    default CompletableFuture<Integer> executeAsync(Executor executor) {
+        return CompletableFuture.supplyAsync(this::execute, executor);
+    }
+
     void close();
 
 }
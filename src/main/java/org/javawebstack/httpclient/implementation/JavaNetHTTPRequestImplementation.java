@@ -1,5 +1,7 @@
 package org.javawebstack.httpclient.implementation;
 
+import org.javawebstack.httpclient.HTTPRequestBody;
+
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
@@ -17,6 +19,8 @@ import java.util.Map;
 
 public class JavaNetHTTPRequestImplementation implements IHTTPRequestImplementation {
 
+    private static final int CHUNK_SIZE = 8192;
+
     private String method;
     private String url;
     private HttpURLConnection conn;
@@ -24,9 +28,10 @@ public class JavaNetHTTPRequestImplementation implements IHTTPRequestImplementat
     private boolean followRedirects;
     private int timeout;
     private Map<String, String[]> requestHeaders;
-    private byte[] requestBody;
+    private HTTPRequestBody requestBody;
 
     private int status;
+    private Throwable exception;
     private String statusMessage;
 
     public void setMethod(String method) {
@@ -54,6 +59,10 @@ public class JavaNetHTTPRequestImplementation implements IHTTPRequestImplementat
     }
 
     public void setRequestBody(byte[] requestBody) {
+        this.requestBody = requestBody == null ? null : HTTPRequestBody.of(requestBody);
+    }
+
+    public void setRequestBody(HTTPRequestBody requestBody) {
         this.requestBody = requestBody;
     }
 
@@ -123,8 +132,17 @@ public class JavaNetHTTPRequestImplementation implements IHTTPRequestImplementat
 
             if(requestBody != null){
                 conn.setDoOutput(true);
+                // in-memory bodies stay buffered so HttpURLConnection can still resend them on redirects
+                if(requestBody.getBytes() == null) {
+                    long length = requestBody.length();
+                    if(length >= 0) {
+                        conn.setFixedLengthStreamingMode(length);
+                    } else {
+                        conn.setChunkedStreamingMode(CHUNK_SIZE);
+                    }
+                }
                 OutputStream os = conn.getOutputStream();
-                os.write(requestBody);
+                requestBody.writeTo(os);
                 os.flush();
                 os.close();
             }
@@ -132,12 +150,18 @@ public class JavaNetHTTPRequestImplementation implements IHTTPRequestImplementat
             status = conn.getResponseCode();
             statusMessage = conn.getResponseMessage();
 
-        }catch(Exception ignored) {}
+        }catch(Exception e) {
+            exception = e;
+        }
         if(status == 0)
             status = -1;
         return status;
     }
 
+    public Throwable getException() {
+        return exception;
+    }
+
     public void close() {
 
     }
@@ -0,0 +1,513 @@
+package org.javawebstack.httpclient.implementation;
+
+import org.javawebstack.httpclient.HTTPClient;
+import org.javawebstack.httpclient.HTTPClientSocket;
+import org.javawebstack.httpclient.HTTPRequestBody;
+import org.javawebstack.httpclient.HTTPRequestHeadEncoder;
+import org.javawebstack.httpclient.HTTPResponseDecoder;
+import org.javawebstack.httpclient.nio.NIOConnection;
+import org.javawebstack.httpclient.nio.NIOEventLoopGroup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Non-blocking implementation based on java.nio channels. All connections are served by the selector threads of a
+ * NIOEventLoopGroup, so the amount of requests in flight isn't bound to the amount of threads when executeAsync is used.
+ */
+public class NIOHTTPRequestImplementation implements IHTTPRequestImplementation {
+
+    private static final int STREAM_HIGH_WATERMARK = 262144;
+    private static final int STREAM_LOW_WATERMARK = 65536;
+    private static final int UPLOAD_CHUNK_SIZE = 16384;
+    private static final int UPLOAD_HIGH_WATERMARK = 262144;
+    private static final int UPLOAD_LOW_WATERMARK = 65536;
+    private static final byte[] CRLF = { '\r', '\n' };
+    /**
+     * Connections are established on the loop threads, so every loop encodes its request heads in its own buffer.
+     */
+    private static final ThreadLocal<HTTPRequestHeadEncoder> HEAD_ENCODER = ThreadLocal.withInitial(HTTPRequestHeadEncoder::new);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE"));
+
+    private String method;
+    private String url;
+    private boolean sslVerification;
+    private boolean followRedirects;
+    private int timeout;
+    private Map<String, String[]> requestHeaders;
+    private HTTPRequestBody requestBody;
+
+    private int status;
+    private volatile Throwable exception;
+    private String statusMessage;
+    private final Map<String, String[]> responseHeaders = new HashMap<>();
+    private final ResponseBuffer responseBody = new ResponseBuffer();
+    private boolean streamResponse;
+    private BodyPipe bodyPipe;
+    private NIOEventLoopGroup group;
+    private Exchange exchange;
+
+    public NIOHTTPRequestImplementation() {
+
+    }
+
+    public NIOHTTPRequestImplementation(NIOEventLoopGroup group) {
+        this.group = group;
+    }
+
+    public void setClient(HTTPClient client) {
+        if(group == null)
+            group = client.sharedResource(NIOEventLoopGroup.class, NIOEventLoopGroup::new).setIdleTimeout(client.getConnectionIdleTimeout());
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public void setSslVerification(boolean sslVerification) {
+        this.sslVerification = sslVerification;
+    }
+
+    public void setFollowRedirects(boolean followRedirects) {
+        this.followRedirects = followRedirects;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public void setRequestHeaders(Map<String, String[]> requestHeaders) {
+        this.requestHeaders = requestHeaders;
+    }
+
+    public void setRequestBody(byte[] requestBody) {
+        this.requestBody = requestBody == null ? null : HTTPRequestBody.of(requestBody);
+    }
+
+    public void setRequestBody(HTTPRequestBody requestBody) {
+        this.requestBody = requestBody;
+    }
+
+    public void setStreamResponse(boolean streamResponse) {
+        this.streamResponse = streamResponse;
+    }
+
+    public int getResponseStatus() {
+        return status;
+    }
+
+    public String getResponseStatusMessage() {
+        return statusMessage;
+    }
+
+    public Map<String, String[]> getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    public InputStream getResponseStream() {
+        return bodyPipe != null ? bodyPipe : responseBody.toInputStream();
+    }
+
+    public int execute() {
+        try {
+            return executeAsync(Runnable::run).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exception = e;
+        } catch (ExecutionException e) {
+            exception = e.getCause();
+        }
+        status = -1;
+        return status;
+    }
+
+    public CompletableFuture<Integer> executeAsync(Executor executor) {
+        if(group == null)
+            group = NIOEventLoopGroup.getDefault();
+        try {
+            exchange = new Exchange();
+            exchange.start(false);
+        } catch (IOException | RuntimeException e) {
+            exception = e;
+            status = -1;
+            return CompletableFuture.completedFuture(status);
+        }
+        if(exchange.streamedBody)
+            executor.execute(exchange::sendBody);
+        return exchange.future;
+    }
+
+    public Throwable getException() {
+        return exception;
+    }
+
+    public void close() {
+        Exchange exchange = this.exchange;
+        if(exchange == null || exchange.connection == null)
+            return;
+        if(!exchange.future.isDone() || (bodyPipe != null && !bodyPipe.isFinished()))
+            exchange.connection.close();
+    }
+
+    private class Exchange implements NIOConnection.Handler {
+
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        final Map<String, List<String>> headers = new LinkedHashMap<>();
+        final String route;
+        final String hostHeader;
+        final String host;
+        final int port;
+        final boolean ssl;
+        final String path;
+        final byte[] bodyBytes;
+        final boolean streamedBody;
+        final boolean chunked;
+        final CompletableFuture<NIOConnection> connected = new CompletableFuture<>();
+        volatile boolean bodySent;
+        HTTPResponseDecoder decoder;
+        NIOConnection connection;
+        boolean reused;
+
+        Exchange() {
+            String[] urlSplit = url.split("/", 4);
+            if(urlSplit.length < 3)
+                throw new IllegalArgumentException("Invalid HTTP URL: " + url);
+            ssl = urlSplit[0].equals("https:");
+            hostHeader = urlSplit[2];
+            String[] hostSplit = urlSplit[2].split(":");
+            host = hostSplit[0];
+            port = hostSplit.length > 1 ? Integer.parseInt(hostSplit[1]) : (ssl ? 443 : 80);
+            path = "/" + (urlSplit.length > 3 ? urlSplit[3] : "");
+            route = HTTPClientSocket.route(url, !sslVerification);
+            requestHeaders.forEach((k, values) -> headers.put(k, Arrays.asList(values)));
+            bodyBytes = requestBody != null ? requestBody.getBytes() : null;
+            streamedBody = requestBody != null && bodyBytes == null;
+            long length = requestBody != null ? requestBody.length() : -1;
+            chunked = streamedBody && length < 0;
+            if(chunked) {
+                headers.put("transfer-encoding", Collections.singletonList("chunked"));
+            } else if(requestBody != null) {
+                headers.put("content-length", Collections.singletonList(String.valueOf(length)));
+            }
+            bodySent = !streamedBody;
+        }
+
+        void start(boolean fresh) throws IOException {
+            if(streamResponse) {
+                bodyPipe = new BodyPipe(this);
+                decoder = new HTTPResponseDecoder(method, headers, bodyPipe::write);
+            } else {
+                decoder = new HTTPResponseDecoder(method, headers, responseBody::write);
+                responseBody.reset();
+            }
+            connection = fresh ? null : group.acquire(route);
+            reused = connection != null;
+            if(reused) {
+                connection.setTimeout(timeout);
+                connection.attach(this);
+            } else {
+                InetSocketAddress address = new InetSocketAddress(host, port);
+                if(address.isUnresolved())
+                    throw new IOException("Unknown host " + host);
+                connection = NIOConnection.open(group.next(), route, address, ssl ? group.createSSLEngine(host, port, !sslVerification) : null, timeout, this);
+            }
+        }
+
+        public void onConnected(NIOConnection connection) {
+            HTTPRequestHeadEncoder encoder = HEAD_ENCODER.get().begin(method, path, hostHeader).headers(headers).end();
+            if(bodyBytes != null && bodyBytes.length > HTTPRequestHeadEncoder.MAX_COALESCED_BODY) {
+                connection.write(ByteBuffer.wrap(encoder.toByteArray()), ByteBuffer.wrap(bodyBytes));
+            } else {
+                if(bodyBytes != null)
+                    encoder.body(bodyBytes, 0, bodyBytes.length);
+                connection.write(ByteBuffer.wrap(encoder.toByteArray()));
+            }
+            if(streamedBody)
+                connected.complete(connection);
+        }
+
+        /**
+         * Writes a streamed body once the connection has been established. Runs on the executor passed to
+         * executeAsync, the writer is slowed down while the connection has too much data queued.
+         */
+        void sendBody() {
+            NIOConnection connection;
+            try {
+                connection = connected.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.connection.close();
+                return;
+            } catch (ExecutionException e) {
+                return;
+            }
+            try (OutputStream stream = new UploadStream(connection, chunked)) {
+                requestBody.writeTo(stream);
+            } catch (IOException | RuntimeException e) {
+                exception = e;
+                connection.close();
+                return;
+            }
+            bodySent = true;
+        }
+
+        public void onData(NIOConnection connection, ByteBuffer data) throws IOException {
+            if(!decoder.decode(data)) {
+                if(bodyPipe != null && decoder.isHeadersComplete() && !future.isDone())
+                    complete();
+                return;
+            }
+            connection.detach();
+            if(bodyPipe != null) {
+                bodyPipe.finish(null);
+                connection.setReading(true);
+            }
+            // a response that arrives while the body is still being written leaves the connection in an unknown state
+            if(decoder.isKeepAlive() && !data.hasRemaining() && bodySent) {
+                group.release(connection);
+            } else {
+                data.position(data.limit());
+                connection.close();
+            }
+            if(!future.isDone())
+                complete();
+        }
+
+        public void onClosed(NIOConnection connection, IOException cause) {
+            if(streamedBody)
+                connected.completeExceptionally(cause != null ? cause : new IOException("Connection closed"));
+            if(cause == null) {
+                try {
+                    decoder.endOfInput();
+                    if(bodyPipe != null)
+                        bodyPipe.finish(null);
+                    if(!future.isDone())
+                        complete();
+                    return;
+                } catch (IOException e) {
+                    cause = e;
+                }
+            }
+            if(future.isDone()) {
+                if(bodyPipe != null)
+                    bodyPipe.finish(cause);
+                return;
+            }
+            if(reused && !streamedBody && !decoder.hasReceivedData() && IDEMPOTENT_METHODS.contains(method.toUpperCase(Locale.ROOT))) {
+                try {
+                    start(true);
+                    return;
+                } catch (IOException | RuntimeException ignored) {}
+            }
+            if(exception == null)
+                exception = cause;
+            status = -1;
+            future.complete(status);
+        }
+
+        private void complete() {
+            status = decoder.getStatus();
+            statusMessage = decoder.getStatusMessage();
+            decoder.getHeaders().forEach((k, v) -> responseHeaders.put(k, v.toArray(new String[0])));
+            future.complete(status);
+        }
+
+    }
+
+    /**
+     * Hands the body from the loop thread to the consumer. Reading from the connection is paused while the consumer
+     * is too far behind.
+     */
+    private static class BodyPipe extends InputStream {
+
+        private final Exchange exchange;
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private int offset;
+        private long buffered;
+        private boolean paused;
+        private boolean finished;
+        private boolean closed;
+        private IOException error;
+
+        BodyPipe(Exchange exchange) {
+            this.exchange = exchange;
+        }
+
+        synchronized void write(ByteBuffer data) {
+            byte[] chunk = new byte[data.remaining()];
+            data.get(chunk);
+            if(closed)
+                return;
+            chunks.add(chunk);
+            buffered += chunk.length;
+            if(!paused && buffered > STREAM_HIGH_WATERMARK) {
+                paused = true;
+                exchange.connection.setReading(false);
+            }
+            notifyAll();
+        }
+
+        synchronized void finish(IOException error) {
+            if(finished)
+                return;
+            finished = true;
+            this.error = error;
+            notifyAll();
+        }
+
+        synchronized boolean isFinished() {
+            return finished;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0)
+                return 0;
+            while (chunks.isEmpty()) {
+                if(closed)
+                    throw new IOException("Stream closed");
+                if(finished) {
+                    if(error != null)
+                        throw error;
+                    return -1;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            byte[] chunk = chunks.peek();
+            int n = Math.min(len, chunk.length - offset);
+            System.arraycopy(chunk, offset, b, off, n);
+            offset += n;
+            if(offset == chunk.length) {
+                chunks.poll();
+                offset = 0;
+            }
+            buffered -= n;
+            if(paused && buffered < STREAM_LOW_WATERMARK) {
+                paused = false;
+                exchange.connection.setReading(true);
+            }
+            return n;
+        }
+
+        public synchronized int available() {
+            return (int) Math.min(Integer.MAX_VALUE, buffered);
+        }
+
+        public synchronized void close() {
+            closed = true;
+            chunks.clear();
+            buffered = 0;
+            notifyAll();
+        }
+
+    }
+
+    /**
+     * Passes the body to the connection in chunks of UPLOAD_CHUNK_SIZE and frames them if the length is unknown.
+     */
+    private static class UploadStream extends OutputStream {
+
+        private final NIOConnection connection;
+        private final boolean chunked;
+        private byte[] buffer = new byte[UPLOAD_CHUNK_SIZE];
+        private int count;
+        private boolean closed;
+
+        UploadStream(NIOConnection connection, boolean chunked) {
+            this.connection = connection;
+            this.chunked = chunked;
+        }
+
+        public void write(int b) throws IOException {
+            if(count == buffer.length)
+                flushBuffer();
+            buffer[count++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if(count == buffer.length)
+                    flushBuffer();
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if(count == 0)
+                return;
+            // the buffer is handed over to the loop thread, so it can't be reused
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, count);
+            buffer = new byte[UPLOAD_CHUNK_SIZE];
+            count = 0;
+            if(chunked) {
+                connection.write(ByteBuffer.wrap((Integer.toHexString(data.remaining()) + "\r\n").getBytes(StandardCharsets.US_ASCII)), data, ByteBuffer.wrap(CRLF));
+            } else {
+                connection.write(data);
+            }
+            if(connection.getQueuedBytes() > UPLOAD_HIGH_WATERMARK)
+                connection.awaitDrain(UPLOAD_LOW_WATERMARK);
+            if(connection.isClosed())
+                throw new IOException("Connection closed");
+        }
+
+        public void flush() throws IOException {
+            flushBuffer();
+        }
+
+        public void close() throws IOException {
+            if(closed)
+                return;
+            closed = true;
+            flushBuffer();
+            if(chunked)
+                connection.write(ByteBuffer.wrap(LAST_CHUNK));
+        }
+
+    }
+
+    private static class ResponseBuffer extends ByteArrayOutputStream {
+        void write(ByteBuffer data) {
+            if(data.hasArray()) {
+                write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                data.position(data.limit());
+            } else {
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                write(bytes, 0, bytes.length);
+            }
+        }
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+}
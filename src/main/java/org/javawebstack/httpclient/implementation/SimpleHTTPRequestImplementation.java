@@ -1,26 +1,37 @@
 package org.javawebstack.httpclient.implementation;
 
+import org.javawebstack.httpclient.HTTPClient;
 import org.javawebstack.httpclient.HTTPClientSocket;
+import org.javawebstack.httpclient.HTTPConnectionPool;
+import org.javawebstack.httpclient.HTTPRequestBody;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.OutputStream;
+import java.util.*;
 
 public class SimpleHTTPRequestImplementation implements IHTTPRequestImplementation {
 
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE"));
+
     private String method;
     private String url;
     private boolean sslVerification;
     private boolean followRedirects;
     private int timeout;
     private Map<String, String[]> requestHeaders;
-    private byte[] requestBody;
+    private HTTPRequestBody requestBody;
 
     private int status;
+    private Throwable exception;
     private String statusMessage;
     private Map<String, String[]> responseHeaders = new HashMap<>();
     private HTTPClientSocket socket;
+    private HTTPConnectionPool pool;
+
+    public void setClient(HTTPClient client) {
+        this.pool = client.getConnectionPool();
+    }
 
     public void setMethod(String method) {
         this.method = method;
@@ -47,6 +58,10 @@ public class SimpleHTTPRequestImplementation implements IHTTPRequestImplementati
     }
 
     public void setRequestBody(byte[] requestBody) {
+        this.requestBody = requestBody == null ? null : HTTPRequestBody.of(requestBody);
+    }
+
+    public void setRequestBody(HTTPRequestBody requestBody) {
         this.requestBody = requestBody;
     }
 
@@ -63,37 +78,82 @@ public class SimpleHTTPRequestImplementation implements IHTTPRequestImplementati
     }
 
     public InputStream getResponseStream() {
-        return socket.getInputStream();
+        return socket == null ? null : socket.getInputStream();
     }
 
     public int execute() {
-        try {
-            socket = new HTTPClientSocket(url, !sslVerification);
-            socket.setRequestMethod(method);
-            requestHeaders.forEach((k, values) -> {
-                for(String v : values)
-                    socket.addRequestHeader(k ,v);
-            });
-            if(requestBody != null) {
-                socket.setRequestHeader("content-length", String.valueOf(requestBody.length));
-                socket.getOutputStream().write(requestBody);
+        boolean retried = false;
+        while (true) {
+            try {
+                send();
+                break;
+            } catch (IOException e) {
+                // a pooled connection may have been closed by the server after it has been checked, the request is
+                // sent again once on a new connection if it's safe to do so
+                boolean retry = !retried && socket != null && pool != null && socket.isReused() && !socket.hasReceivedResponse()
+                        && IDEMPOTENT_METHODS.contains(method.toUpperCase(Locale.ROOT))
+                        && (requestBody == null || requestBody.isRepeatable());
+                if(socket != null) {
+                    if(pool != null) {
+                        pool.discard(socket);
+                    } else {
+                        close();
+                    }
+                    socket = null;
+                }
+                responseHeaders.clear();
+                status = 0;
+                if(!retry) {
+                    exception = e;
+                    break;
+                }
+                retried = true;
             }
-            status = socket.getResponseStatus();
-            statusMessage = socket.getResponseStatusMessage();
-            for(String k : socket.getResponseHeaderNames())
-                responseHeaders.put(k, socket.getResponseHeaders(k).toArray(new String[0]));
-        } catch (IOException e) {
-            e.printStackTrace();
         }
         if(status == 0)
             status = -1;
         return status;
     }
 
+    private void send() throws IOException {
+        socket = pool != null ? pool.acquire(url, !sslVerification, timeout) : new HTTPClientSocket(url, !sslVerification, timeout, true);
+        socket.setRequestMethod(method);
+        requestHeaders.forEach((k, values) -> {
+            for(String v : values)
+                socket.addRequestHeader(k ,v);
+        });
+        if(requestBody != null) {
+            long length = requestBody.length();
+            if(length >= 0) {
+                socket.setRequestHeader("content-length", String.valueOf(length));
+            } else {
+                socket.setRequestHeader("transfer-encoding", "chunked");
+            }
+            try (OutputStream stream = socket.getOutputStream()) {
+                requestBody.writeTo(stream);
+            }
+        }
+        status = socket.getResponseStatus();
+        statusMessage = socket.getResponseStatusMessage();
+        for(String k : socket.getResponseHeaderNames())
+            responseHeaders.put(k, socket.getResponseHeaders(k).toArray(new String[0]));
+    }
+
+    public Throwable getException() {
+        return exception;
+    }
+
     public void close() {
-        try {
-            socket.close();
-        } catch (IOException ignored) {}
+        if(socket == null)
+            return;
+        if(pool != null) {
+            pool.release(socket);
+        } else {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+        socket = null;
     }
 
 }
@@ -0,0 +1,520 @@
+package org.javawebstack.httpclient.nio;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A non-blocking connection (optionally secured by an SSLEngine) owned by a single event loop.
+ * The connection passes received application data to the attached handler and queues outgoing data until the
+ * channel is writable.
+ */
+public class NIOConnection {
+
+    private static final ByteBuffer[] EMPTY = new ByteBuffer[] { ByteBuffer.allocate(0) };
+
+    private final NIOEventLoop loop;
+    private final String route;
+    private final SSLEngine engine;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private Handler handler;
+    private boolean connected;
+    private volatile boolean closed;
+    private boolean pumping;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final Object drainLock = new Object();
+    private volatile long drainThreshold = -1;
+    private final AtomicReference<Runnable> drainCallback = new AtomicReference<>();
+    private volatile long drainCallbackThreshold = -1;
+    private volatile boolean reading = true;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile int timeout;
+
+    private NIOConnection(NIOEventLoop loop, String route, SSLEngine engine) {
+        this.loop = loop;
+        this.route = route;
+        this.engine = engine;
+        if(engine != null) {
+            netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        } else {
+            appIn = ByteBuffer.allocate(65536);
+        }
+    }
+
+    /**
+     * Opens a connection on the given loop. The handler is notified once the connection (and tls handshake) has been
+     * established or if it fails.
+     */
+    public static NIOConnection open(NIOEventLoop loop, String route, InetSocketAddress address, SSLEngine engine, int timeout, Handler handler) {
+        NIOConnection connection = new NIOConnection(loop, route, engine);
+        connection.timeout = timeout;
+        loop.execute(() -> connection.connect(address, handler));
+        return connection;
+    }
+
+    public NIOEventLoop getLoop() {
+        return loop;
+    }
+
+    public String getRoute() {
+        return route;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isReading() {
+        return reading;
+    }
+
+    /**
+     * Returns the amount of bytes which have been queued by write() but not yet been passed to the channel.
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Blocks until at most the given amount of bytes is queued for writing. Used by producers running on other threads
+     * to avoid queueing an unbounded amount of data. Stalled writes are failed by the timeout of the connection.
+     */
+    public void awaitDrain(long threshold) throws IOException {
+        if(loop.inLoop())
+            throw new IllegalStateException("awaitDrain can't be called on the loop thread");
+        synchronized (drainLock) {
+            try {
+                while (true) {
+                    // published before the check so the loop thread either sees the waiter or the waiter sees the progress
+                    drainThreshold = threshold;
+                    if(closed || queuedBytes.get() <= threshold)
+                        break;
+                    drainLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                drainThreshold = -1;
+            }
+        }
+        if(closed)
+            throw new IOException("Connection closed");
+    }
+
+    /**
+     * Calls the callback once at most the given amount of bytes is queued for writing or the connection has been
+     * closed, without blocking. The callback runs on the loop thread, or on the calling thread if that's already the
+     * case. Only one callback can be registered at a time.
+     */
+    public void whenDrained(long threshold, Runnable callback) {
+        drainCallbackThreshold = threshold;
+        drainCallback.set(callback);
+        if(closed || queuedBytes.get() <= threshold)
+            runDrainCallback();
+    }
+
+    private void runDrainCallback() {
+        Runnable callback = drainCallback.getAndSet(null);
+        if(callback != null)
+            callback.run();
+    }
+
+    /**
+     * Stops or resumes reading from the channel, e.g. while a consumer can't keep up. Can be called from any thread.
+     */
+    public void setReading(boolean reading) {
+        loop.execute(() -> {
+            if(closed || this.reading == reading)
+                return;
+            this.reading = reading;
+            lastActivity = System.currentTimeMillis();
+            if(key == null || !key.isValid())
+                return;
+            key.interestOps(reading ? key.interestOps() | SelectionKey.OP_READ : key.interestOps() & ~SelectionKey.OP_READ);
+            if(!reading || !connected)
+                return;
+            try {
+                if(engine != null) {
+                    pumpTLS();
+                } else if(appIn.position() > 0) {
+                    deliver();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        });
+    }
+
+    boolean isIdle() {
+        return connected && handler == null;
+    }
+
+    /**
+     * Attaches a handler to an established connection. The handler's onConnected is called on the loop thread, or
+     * onClosed if the connection has been closed in the meantime.
+     */
+    public void attach(Handler handler) {
+        loop.execute(() -> {
+            if(closed) {
+                handler.onClosed(this, new IOException("Connection closed"));
+                return;
+            }
+            this.handler = handler;
+            lastActivity = System.currentTimeMillis();
+            try {
+                handler.onConnected(this);
+            } catch (IOException e) {
+                fail(e);
+            }
+        });
+    }
+
+    /**
+     * Detaches the current handler. Has to be called on the loop thread.
+     */
+    public void detach() {
+        handler = null;
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Queues the buffers for writing. Can be called from any thread.
+     */
+    public void write(ByteBuffer... buffers) {
+        long length = 0;
+        for(ByteBuffer buffer : buffers)
+            length += buffer.remaining();
+        queuedBytes.addAndGet(length);
+        loop.execute(() -> {
+            if(closed)
+                return;
+            Collections.addAll(outbound, buffers);
+            if(pumping)
+                return;
+            try {
+                flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        });
+    }
+
+    public void close() {
+        loop.execute(() -> fail(null));
+    }
+
+    private void connect(InetSocketAddress address, Handler handler) {
+        this.handler = handler;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            key = channel.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+            if(channel.connect(address))
+                onTcpConnected();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    void handle(SelectionKey key) {
+        try {
+            if(key.isConnectable() && channel.finishConnect())
+                onTcpConnected();
+            if(key.isValid() && key.isReadable())
+                onReadable();
+            if(key.isValid() && key.isWritable())
+                flush();
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(new IOException(e));
+        }
+    }
+
+    private void onTcpConnected() throws IOException {
+        lastActivity = System.currentTimeMillis();
+        key.interestOps(reading ? SelectionKey.OP_READ : 0);
+        if(engine != null) {
+            engine.beginHandshake();
+            pumpTLS();
+        } else {
+            onEstablished();
+        }
+    }
+
+    private void onEstablished() throws IOException {
+        connected = true;
+        if(handler != null)
+            handler.onConnected(this);
+    }
+
+    private void onReadable() throws IOException {
+        ByteBuffer target = engine != null ? netIn : appIn;
+        if(!target.hasRemaining()) {
+            if(engine != null) {
+                netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                target = netIn;
+            } else {
+                deliver();
+                target = appIn;
+            }
+        }
+        int read = channel.read(target);
+        if(read == -1) {
+            if(engine != null) {
+                pumpTLS();
+                try {
+                    engine.closeInbound();
+                } catch (SSLException ignored) {}
+            }
+            fail(null);
+            return;
+        }
+        if(read == 0)
+            return;
+        lastActivity = System.currentTimeMillis();
+        if(engine != null) {
+            pumpTLS();
+        } else {
+            deliver();
+        }
+    }
+
+    private void deliver() throws IOException {
+        appIn.flip();
+        if(appIn.hasRemaining()) {
+            if(handler == null) {
+                appIn.clear();
+                fail(new IOException("Unexpected data on idle connection"));
+                return;
+            }
+            handler.onData(this, appIn);
+        }
+        appIn.compact();
+    }
+
+    private void flush() throws IOException {
+        if(closed || channel == null || !channel.isConnected())
+            return;
+        if(engine != null) {
+            pumpTLS();
+            return;
+        }
+        while (!outbound.isEmpty()) {
+            onWritten(channel.write(outbound.toArray(new ByteBuffer[0])));
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining())
+                outbound.poll();
+            if(!outbound.isEmpty()) {
+                setWriteInterest(true);
+                return;
+            }
+        }
+        setWriteInterest(false);
+    }
+
+    private void pumpTLS() throws IOException {
+        if(pumping)
+            return;
+        pumping = true;
+        try {
+            boolean progress;
+            do {
+                progress = false;
+                if(netOut.position() > 0)
+                    flushNetOut();
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null)
+                            task.run();
+                        progress = true;
+                        break;
+                    case NEED_WRAP:
+                        progress = wrap(EMPTY);
+                        break;
+                    case NOT_HANDSHAKING:
+                    case FINISHED:
+                        if(!connected) {
+                            onEstablished();
+                            progress = true;
+                        }
+                        if(!outbound.isEmpty())
+                            progress |= wrap(outbound.toArray(new ByteBuffer[0]));
+                        if(netIn.position() > 0)
+                            progress |= unwrap();
+                        break;
+                    default:
+                        progress = unwrap();
+                        break;
+                }
+            } while (progress && !closed);
+        } finally {
+            pumping = false;
+        }
+    }
+
+    private boolean wrap(ByteBuffer[] sources) throws IOException {
+        SSLEngineResult result = engine.wrap(sources, netOut);
+        if(sources != EMPTY)
+            onWritten(result.bytesConsumed());
+        while (!outbound.isEmpty() && !outbound.peek().hasRemaining())
+            outbound.poll();
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                if(netOut.position() == 0) {
+                    netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                    return true;
+                }
+                return flushNetOut();
+            case CLOSED:
+                flushNetOut();
+                fail(null);
+                return false;
+            default:
+                flushNetOut();
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    private boolean unwrap() throws IOException {
+        netIn.flip();
+        SSLEngineResult result = engine.unwrap(netIn, appIn);
+        netIn.compact();
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                if(!netIn.hasRemaining())
+                    netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                return false;
+            case BUFFER_OVERFLOW:
+                if(appIn.position() > 0) {
+                    deliver();
+                } else {
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                }
+                return true;
+            case CLOSED:
+                if(appIn.position() > 0)
+                    deliver();
+                fail(null);
+                return false;
+            default:
+                if(appIn.position() > 0)
+                    deliver();
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    private boolean flushNetOut() throws IOException {
+        netOut.flip();
+        int written = channel.write(netOut);
+        netOut.compact();
+        setWriteInterest(netOut.position() > 0);
+        return written > 0;
+    }
+
+    private void onWritten(long written) {
+        if(written <= 0)
+            return;
+        lastActivity = System.currentTimeMillis();
+        long queued = queuedBytes.addAndGet(-written);
+        long threshold = drainThreshold;
+        if(threshold >= 0 && queued <= threshold)
+            signalDrain();
+        if(drainCallback.get() != null && queued <= drainCallbackThreshold)
+            runDrainCallback();
+    }
+
+    private void signalDrain() {
+        synchronized (drainLock) {
+            drainLock.notifyAll();
+        }
+    }
+
+    private void setWriteInterest(boolean write) {
+        if(key == null || !key.isValid())
+            return;
+        int ops = key.interestOps();
+        int newOps = write ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE;
+        if(ops != newOps)
+            key.interestOps(newOps);
+    }
+
+    /**
+     * Closes the connection and notifies the attached handler. A null cause means the connection was closed regularly.
+     * Has to be called on the loop thread.
+     */
+    void fail(IOException cause) {
+        if(closed)
+            return;
+        closed = true;
+        if(key != null)
+            key.cancel();
+        if(channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+        outbound.clear();
+        queuedBytes.set(0);
+        signalDrain();
+        runDrainCallback();
+        loop.getGroup().removeIdle(this);
+        Handler h = handler;
+        handler = null;
+        if(h != null)
+            h.onClosed(this, cause);
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minimum) {
+        ByteBuffer enlarged = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minimum));
+        buffer.flip();
+        enlarged.put(buffer);
+        return enlarged;
+    }
+
+    public interface Handler {
+
+        void onConnected(NIOConnection connection) throws IOException;
+
+        /**
+         * Receives application data. Unconsumed bytes stay in the buffer and are passed again with the next data.
+         */
+        void onData(NIOConnection connection, ByteBuffer data) throws IOException;
+
+        void onClosed(NIOConnection connection, IOException cause);
+
+    }
+
+}
@@ -0,0 +1,118 @@
+package org.javawebstack.httpclient.nio;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single selector thread. All operations on the connections registered with a loop run on its thread.
+ */
+public class NIOEventLoop implements Runnable {
+
+    private static final long TIMEOUT_CHECK_INTERVAL = 100;
+
+    private final NIOEventLoopGroup group;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long lastTimeoutCheck;
+
+    NIOEventLoop(NIOEventLoopGroup group, String name) throws IOException {
+        this.group = group;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public NIOEventLoopGroup getGroup() {
+        return group;
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs the task on the loop thread. Tasks submitted from the loop thread itself are executed immediately.
+     */
+    public void execute(Runnable task) {
+        if(inLoop()) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        if(wakeupPending.compareAndSet(false, true))
+            selector.wakeup();
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                selector.select(TIMEOUT_CHECK_INTERVAL);
+                wakeupPending.set(false);
+                runTasks();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NIOConnection connection = (NIOConnection) key.attachment();
+                    if(!key.isValid()) {
+                        connection.fail(new IOException("Connection closed"));
+                        continue;
+                    }
+                    connection.handle(key);
+                }
+                long now = System.currentTimeMillis();
+                if(now - lastTimeoutCheck >= TIMEOUT_CHECK_INTERVAL) {
+                    lastTimeoutCheck = now;
+                    checkTimeouts(now);
+                }
+            } catch (IOException | RuntimeException ignored) {}
+        }
+        for(SelectionKey key : selector.keys())
+            ((NIOConnection) key.attachment()).fail(new IOException("Event loop has been closed"));
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ignored) {}
+        }
+    }
+
+    private void checkTimeouts(long now) {
+        for(SelectionKey key : selector.keys()) {
+            NIOConnection connection = (NIOConnection) key.attachment();
+            if(connection.isIdle()) {
+                if(now - connection.getLastActivity() > group.getIdleTimeout())
+                    connection.close();
+            } else if(connection.isReading() && connection.getTimeout() > 0 && now - connection.getLastActivity() > connection.getTimeout()) {
+                connection.fail(new SocketTimeoutException("Read timed out"));
+            }
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+}
@@ -0,0 +1,143 @@
+package org.javawebstack.httpclient.nio;
+
+import javax.net.ssl.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small set of selector threads shared by many connections. Connections are assigned to the loops round-robin and
+ * idle keep-alive connections are kept per route until they are reused or the idle timeout expires.
+ */
+public class NIOEventLoopGroup implements Closeable {
+
+    private static final AtomicInteger GROUP_COUNT = new AtomicInteger();
+    private static NIOEventLoopGroup defaultGroup;
+    private static SSLContext insecureContext;
+
+    private final NIOEventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final Map<String, Deque<NIOConnection>> idleConnections = new ConcurrentHashMap<>();
+    private volatile long idleTimeout = 30000;
+
+    public NIOEventLoopGroup() {
+        this(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+    }
+
+    public NIOEventLoopGroup(int threads) {
+        int group = GROUP_COUNT.incrementAndGet();
+        loops = new NIOEventLoop[threads];
+        try {
+            for(int i=0; i<threads; i++)
+                loops[i] = new NIOEventLoop(this, "http-client-nio-" + group + "-" + (i + 1));
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns a lazily created group for implementations that are used without a client.
+     */
+    public static synchronized NIOEventLoopGroup getDefault() {
+        if(defaultGroup == null)
+            defaultGroup = new NIOEventLoopGroup();
+        return defaultGroup;
+    }
+
+    public NIOEventLoopGroup setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public NIOEventLoop next() {
+        return loops[Math.abs(nextLoop.getAndIncrement() % loops.length)];
+    }
+
+    /**
+     * Takes an idle connection for the route out of the pool or returns null if there is none.
+     */
+    public NIOConnection acquire(String route) {
+        Deque<NIOConnection> idle = idleConnections.get(route);
+        if(idle == null)
+            return null;
+        NIOConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            if(!connection.isClosed())
+                return connection;
+        }
+        return null;
+    }
+
+    /**
+     * Puts a connection whose handler has been detached back into the pool.
+     */
+    public void release(NIOConnection connection) {
+        if(connection.isClosed())
+            return;
+        idleConnections.computeIfAbsent(connection.getRoute(), r -> new ConcurrentLinkedDeque<>()).addFirst(connection);
+    }
+
+    void removeIdle(NIOConnection connection) {
+        Deque<NIOConnection> idle = idleConnections.get(connection.getRoute());
+        if(idle != null)
+            idle.remove(connection);
+    }
+
+    public SSLEngine createSSLEngine(String host, int port, boolean insecure) throws IOException {
+        SSLEngine engine;
+        try {
+            engine = (insecure ? insecureContext() : SSLContext.getDefault()).createSSLEngine(host, port);
+        } catch (NoSuchAlgorithmException | KeyManagementException e) {
+            throw new IOException(e);
+        }
+        engine.setUseClientMode(true);
+        if(!insecure) {
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+        return engine;
+    }
+
+    private static synchronized SSLContext insecureContext() throws NoSuchAlgorithmException, KeyManagementException {
+        if(insecureContext == null) {
+            TrustManager[] trustAllCerts = new TrustManager[] {
+                    new X509TrustManager() {
+                        public java.security.cert.X509Certificate[] getAcceptedIssuers() {
+                            return null;
+                        }
+                        public void checkClientTrusted(X509Certificate[] certs, String authType) {
+                        }
+                        public void checkServerTrusted(X509Certificate[] certs, String authType) {
+                        }
+                    }
+            };
+            SSLContext sc = SSLContext.getInstance("TLS");
+            sc.init(null, trustAllCerts, new java.security.SecureRandom());
+            insecureContext = sc;
+        }
+        return insecureContext;
+    }
+
+    public void close() {
+        for(NIOEventLoop loop : loops) {
+            if(loop != null)
+                loop.shutdown();
+        }
+        idleConnections.clear();
+    }
+
+}
@@ -0,0 +1,290 @@
+package org.javawebstack.httpclient.websocket;
+
+import org.javawebstack.httpclient.HTTPClientSocket;
+import org.javawebstack.httpclient.HTTPRequestHeadEncoder;
+import org.javawebstack.httpclient.HTTPResponseDecoder;
+import org.javawebstack.httpclient.nio.NIOConnection;
+import org.javawebstack.httpclient.nio.NIOEventLoopGroup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a WebSocket on an NIOEventLoop instead of a dedicated thread. The loop thread performs the handshake and cuts
+ * the received bytes into frames, the frames are handled on the executor in the order they arrived with at most one
+ * task per connection at a time.
+ */
+final class NIOWebSocketTransport implements NIOConnection.Handler {
+
+    private static final int MAX_FRAME_LENGTH = Integer.MAX_VALUE - 8;
+    private static final long MAX_PENDING_RECEIVE = 1048576;
+    private static final long MAX_PENDING_SEND = 1048576;
+    private static final int MAX_ITEMS_PER_TASK = 64;
+    private static final Object OPEN = new Object();
+
+    private final CompletableFuture<WebSocket> handshake = new CompletableFuture<>();
+    private final String path;
+    private final String hostHeader;
+    private final Map<String, List<String>> headers = new LinkedHashMap<>();
+    private final HTTPResponseDecoder decoder;
+    private final WebSocketHandler handler;
+    private final WebSocketOptions options;
+    private final Executor executor;
+    private final Queue<Object> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean processing = new AtomicBoolean();
+    private final AtomicBoolean paused = new AtomicBoolean();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private NIOConnection connection;
+    private WebSocket webSocket;
+    private ByteBuffer frame;
+    private boolean discarding;
+    private boolean finished;
+
+    private NIOWebSocketTransport(String path, String hostHeader, Map<String, String> headers, WebSocketHandler handler, WebSocketOptions options, Executor executor) {
+        this.path = path;
+        this.hostHeader = hostHeader;
+        headers.forEach((k, v) -> this.headers.put(k, Collections.singletonList(v)));
+        this.decoder = new HTTPResponseDecoder("GET", this.headers, data -> {});
+        this.handler = handler;
+        this.options = options;
+        this.executor = executor;
+    }
+
+    /**
+     * Connects and performs the handshake, the calling thread waits until it has completed.
+     */
+    static WebSocket open(NIOEventLoopGroup group, String url, boolean insecure, int timeout, Map<String, String> headers, WebSocketHandler handler, WebSocketOptions options, Executor executor) throws IOException {
+        String[] urlSplit = url.split("/", 4);
+        if(urlSplit.length < 3)
+            throw new IOException("Invalid WebSocket URL: " + url);
+        boolean ssl = urlSplit[0].equals("https:") || urlSplit[0].equals("wss:");
+        String[] hostSplit = urlSplit[2].split(":");
+        String host = hostSplit[0];
+        int port = hostSplit.length > 1 ? Integer.parseInt(hostSplit[1]) : (ssl ? 443 : 80);
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if(address.isUnresolved())
+            throw new IOException("Unknown host " + host);
+        NIOWebSocketTransport transport = new NIOWebSocketTransport("/" + (urlSplit.length > 3 ? urlSplit[3] : ""), urlSplit[2], headers, handler, options, executor);
+        NIOConnection connection = NIOConnection.open(group.next(), HTTPClientSocket.route(url, insecure), address, ssl ? group.createSSLEngine(host, port, insecure) : null, timeout, transport);
+        try {
+            return timeout > 0 ? transport.handshake.get(timeout, TimeUnit.MILLISECONDS) : transport.handshake.get();
+        } catch (InterruptedException e) {
+            connection.close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (TimeoutException e) {
+            connection.close();
+            throw new SocketTimeoutException("WebSocket handshake timed out");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    public void onConnected(NIOConnection connection) {
+        this.connection = connection;
+        HTTPRequestHeadEncoder encoder = new HTTPRequestHeadEncoder().begin("GET", path, hostHeader).headers(headers).end();
+        connection.write(ByteBuffer.wrap(encoder.toByteArray()));
+    }
+
+    public void onData(NIOConnection connection, ByteBuffer data) throws IOException {
+        if(webSocket == null) {
+            if(!decoder.decode(data))
+                return;
+            if(decoder.getStatus() != 101)
+                throw new IOException("Server didn't accept protocol change");
+            PerMessageDeflate deflate = PerMessageDeflate.accept(decoder.getHeaders().getOrDefault("sec-websocket-extensions", Collections.emptyList()), options);
+            // an open WebSocket is idle most of the time, so the read timeout only applies to the handshake
+            connection.setTimeout(0);
+            webSocket = new WebSocket(connection, new Output(connection), handler, options, deflate, executor);
+            dispatch(OPEN, 0);
+            handshake.complete(webSocket);
+        }
+        while (data.hasRemaining() && !discarding) {
+            if(frame == null && !startFrame(data))
+                return;
+            int n = Math.min(frame.remaining(), data.remaining());
+            int limit = data.limit();
+            data.limit(data.position() + n);
+            frame.put(data);
+            data.limit(limit);
+            if(!frame.hasRemaining()) {
+                frame.flip();
+                ByteBuffer complete = frame;
+                frame = null;
+                dispatch(complete, complete.remaining());
+            }
+        }
+        if(discarding)
+            data.position(data.limit());
+    }
+
+    /**
+     * Allocates the buffer for the frame starting at the position of data, if its header is complete.
+     */
+    private boolean startFrame(ByteBuffer data) throws IOException {
+        int position = data.position();
+        if(data.remaining() < 2)
+            return false;
+        int b1 = data.get(position + 1) & 0xFF;
+        int headerLength = 2 + ((b1 & 0x80) != 0 ? 4 : 0);
+        long length = b1 & 0x7F;
+        if(length == 126) {
+            headerLength += 2;
+            if(data.remaining() < headerLength)
+                return false;
+            length = ((data.get(position + 2) & 0xFF) << 8) | (data.get(position + 3) & 0xFF);
+        } else if(length == 127) {
+            headerLength += 8;
+            if(data.remaining() < headerLength)
+                return false;
+            length = data.getLong(position + 2);
+            if(length < 0)
+                throw new IOException("Invalid frame length");
+        }
+        if(data.remaining() < headerLength)
+            return false;
+        long maxMessageSize = options.getMaxMessageSize();
+        if(length > MAX_FRAME_LENGTH - headerLength || (maxMessageSize > 0 && length > maxMessageSize)) {
+            // only the header is passed on, which is enough for the WebSocket to reject the frame
+            frame = WebSocketBufferPool.acquire(headerLength);
+            discarding = true;
+            ByteBuffer header = data.duplicate();
+            header.limit(position + headerLength);
+            frame.put(header).flip();
+            ByteBuffer complete = frame;
+            frame = null;
+            dispatch(complete, complete.remaining());
+            return false;
+        }
+        frame = WebSocketBufferPool.acquire((int) (headerLength + length));
+        return true;
+    }
+
+    public void onClosed(NIOConnection connection, IOException cause) {
+        if(frame != null) {
+            WebSocketBufferPool.release(frame);
+            frame = null;
+        }
+        if(webSocket == null) {
+            handshake.completeExceptionally(cause != null ? cause : new IOException("Connection closed during the handshake"));
+            return;
+        }
+        dispatch(cause != null ? cause : new IOException("Connection closed"), 0);
+    }
+
+    private void dispatch(Object item, long size) {
+        inbound.add(item);
+        if(pendingBytes.addAndGet(size) > MAX_PENDING_RECEIVE && paused.compareAndSet(false, true))
+            connection.setReading(false);
+        schedule();
+    }
+
+    private void schedule() {
+        if(!processing.compareAndSet(false, true))
+            return;
+        try {
+            executor.execute(this::process);
+        } catch (RejectedExecutionException ex) {
+            processing.set(false);
+            Object item;
+            while ((item = inbound.poll()) != null) {
+                if(item instanceof ByteBuffer)
+                    WebSocketBufferPool.release((ByteBuffer) item);
+            }
+            connection.close();
+        }
+    }
+
+    /**
+     * Handles a limited amount of items and reschedules itself, so busy connections don't starve the others on a
+     * shared executor.
+     */
+    private void process() {
+        try {
+            Object item;
+            for(int i=0; i<MAX_ITEMS_PER_TASK && (item = inbound.poll()) != null; i++)
+                handle(item);
+        } finally {
+            processing.set(false);
+            if(!inbound.isEmpty())
+                schedule();
+        }
+    }
+
+    private void handle(Object item) {
+        if(item == OPEN) {
+            handler.onOpen(webSocket);
+        } else if(item instanceof ByteBuffer) {
+            ByteBuffer frame = (ByteBuffer) item;
+            try {
+                if(!finished)
+                    finished = !webSocket.receiveFrame(new WebSocketFrameReader(new BufferInput(frame)));
+            } finally {
+                long size = frame.limit();
+                WebSocketBufferPool.release(frame);
+                if(pendingBytes.addAndGet(-size) <= MAX_PENDING_RECEIVE / 2 && paused.compareAndSet(true, false))
+                    connection.setReading(true);
+            }
+        } else {
+            webSocket.closed((IOException) item, !finished);
+            finished = true;
+        }
+    }
+
+    private static final class BufferInput extends InputStream {
+        private final ByteBuffer buffer;
+        BufferInput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+        public int read(byte[] b, int off, int len) {
+            if(!buffer.hasRemaining())
+                return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
+
+    /**
+     * Passes the batches of the send queue to the connection without copying them. The send queue stops writing while
+     * too much data is queued on the connection instead of blocking the executor, so its watermarks keep working.
+     */
+    static final class Output extends OutputStream implements WebSocketSendQueue.AsyncOutput {
+        private final NIOConnection connection;
+        Output(NIOConnection connection) {
+            this.connection = connection;
+        }
+        public void write(int b) throws IOException {
+            writeOwned(new byte[] { (byte) b }, 0, 1);
+        }
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeOwned(Arrays.copyOfRange(b, off, off + len), 0, len);
+        }
+        public void writeOwned(byte[] b, int off, int len) throws IOException {
+            if(connection.isClosed())
+                throw new IOException("Connection closed");
+            connection.write(ByteBuffer.wrap(b, off, len));
+        }
+        public boolean isCongested() {
+            return !connection.isClosed() && connection.getQueuedBytes() > MAX_PENDING_SEND;
+        }
+        public void whenDrained(Runnable callback) {
+            connection.whenDrained(MAX_PENDING_SEND / 2, callback);
+        }
+    }
+
+}
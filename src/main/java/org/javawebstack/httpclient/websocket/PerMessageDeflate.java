@@ -0,0 +1,226 @@
+package org.javawebstack.httpclient.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * State of the permessage-deflate extension (RFC 7692) of a single connection. The deflater is not thread-safe and
+ * with context takeover messages have to be sent in the order they have been compressed, so compress has to be called
+ * under the lock that serializes the writes of the connection.
+ */
+final class PerMessageDeflate {
+
+    static final String NAME = "permessage-deflate";
+
+    private static final byte[] TAIL = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+    private static final int INITIAL_OUTPUT_SIZE = 4096;
+    private static final int MAX_RETAINED_OUTPUT_SIZE = 1048576;
+
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater(true);
+    private final boolean resetDeflater;
+    private final boolean resetInflater;
+    private final int threshold;
+    private byte[] output = new byte[INITIAL_OUTPUT_SIZE];
+
+    private PerMessageDeflate(WebSocketOptions options, boolean compress, boolean resetDeflater, boolean resetInflater) {
+        this.deflater = compress ? new Deflater(options.getCompressionLevel(), true) : null;
+        this.resetDeflater = resetDeflater;
+        this.resetInflater = resetInflater;
+        this.threshold = options.getCompressionThreshold();
+    }
+
+    /**
+     * Returns the value of the Sec-WebSocket-Extensions request header offering the extension.
+     */
+    static String offer(WebSocketOptions options) {
+        StringBuilder sb = new StringBuilder(NAME).append("; client_max_window_bits");
+        if(options.isClientNoContextTakeover())
+            sb.append("; client_no_context_takeover");
+        if(options.isServerNoContextTakeover())
+            sb.append("; server_no_context_takeover");
+        return sb.toString();
+    }
+
+    /**
+     * Validates the extensions the server accepted.
+     * @return the extension state or null if the server didn't accept it
+     */
+    static PerMessageDeflate accept(List<String> extensions, WebSocketOptions options) throws IOException {
+        PerMessageDeflate accepted = null;
+        for(String header : extensions) {
+            for(String extension : header.split(",")) {
+                String[] params = extension.split(";");
+                String name = params[0].trim();
+                if(name.isEmpty())
+                    continue;
+                if(!options.isCompression() || !name.equalsIgnoreCase(NAME) || accepted != null)
+                    throw new IOException("Server accepted an extension that hasn't been offered: " + name);
+                accepted = parse(params, options);
+            }
+        }
+        return accepted;
+    }
+
+    private static PerMessageDeflate parse(String[] params, WebSocketOptions options) throws IOException {
+        boolean compress = true;
+        boolean clientNoContextTakeover = options.isClientNoContextTakeover();
+        boolean serverNoContextTakeover = false;
+        boolean serverWindowBits = false;
+        boolean clientWindowBits = false;
+        for(int i=1; i<params.length; i++) {
+            String[] pair = params[i].split("=", 2);
+            String key = pair[0].trim().toLowerCase(Locale.ROOT);
+            String value = pair.length > 1 ? unquote(pair[1].trim()) : null;
+            switch (key) {
+                case "server_no_context_takeover":
+                    if(serverNoContextTakeover || value != null)
+                        throw invalid(params[i]);
+                    serverNoContextTakeover = true;
+                    break;
+                case "client_no_context_takeover":
+                    if(value != null)
+                        throw invalid(params[i]);
+                    clientNoContextTakeover = true;
+                    break;
+                case "server_max_window_bits":
+                    // the inflater always uses the maximum window, so any smaller window of the server is fine
+                    if(serverWindowBits)
+                        throw invalid(params[i]);
+                    windowBits(value, params[i]);
+                    serverWindowBits = true;
+                    break;
+                case "client_max_window_bits":
+                    // Deflater can't limit its window, messages are sent uncompressed if the server asks for less
+                    if(clientWindowBits)
+                        throw invalid(params[i]);
+                    if(value != null && windowBits(value, params[i]) < 15)
+                        compress = false;
+                    clientWindowBits = true;
+                    break;
+                default:
+                    throw invalid(params[i]);
+            }
+        }
+        return new PerMessageDeflate(options, compress, clientNoContextTakeover, serverNoContextTakeover);
+    }
+
+    private static int windowBits(String value, String param) throws IOException {
+        try {
+            int bits = Integer.parseInt(value);
+            if(bits >= 8 && bits <= 15)
+                return bits;
+        } catch (NumberFormatException | NullPointerException ignored) {}
+        throw invalid(param);
+    }
+
+    private static String unquote(String value) {
+        if(value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+            return value.substring(1, value.length() - 1);
+        return value;
+    }
+
+    private static IOException invalid(String param) {
+        return new IOException("Invalid permessage-deflate parameter: " + param.trim());
+    }
+
+    boolean shouldCompress(int length) {
+        return deflater != null && length >= threshold;
+    }
+
+    /**
+     * Compresses a message, the trailing empty block of the sync flush is removed as required by the RFC.
+     */
+    byte[] compress(byte[] payload) {
+        deflater.setInput(payload);
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+            if(length < output.length)
+                break;
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+        if(length >= TAIL.length && output[length - 4] == 0 && output[length - 3] == 0 && output[length - 2] == (byte) 0xFF && output[length - 1] == (byte) 0xFF)
+            length -= TAIL.length;
+        byte[] compressed = Arrays.copyOf(output, length);
+        if(resetDeflater)
+            deflater.reset();
+        if(output.length > MAX_RETAINED_OUTPUT_SIZE)
+            output = new byte[INITIAL_OUTPUT_SIZE];
+        return compressed;
+    }
+
+    /**
+     * Decompresses (a part of) a message into a buffer from WebSocketBufferPool, the caller has to release it. Parts
+     * have to be passed in order, the message ends with the part that has last set.
+     * @param maxLength the maximum amount of bytes the part may decompress to, 0 for no limit
+     */
+    ByteBuffer decompress(ByteBuffer payload, boolean last, long maxLength) throws IOException {
+        ByteBuffer out = WebSocketBufferPool.acquire(Math.max(INITIAL_OUTPUT_SIZE, Math.min(payload.remaining(), MAX_RETAINED_OUTPUT_SIZE / 4) * 4));
+        out.limit(out.capacity());
+        try {
+            inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            out = inflate(out, maxLength);
+            if(last) {
+                inflater.setInput(TAIL);
+                out = inflate(out, maxLength);
+            }
+        } catch (DataFormatException ex) {
+            WebSocketBufferPool.release(out);
+            throw new WebSocketCloseException(WebSocketCloseException.PROTOCOL_ERROR, "Invalid compressed message");
+        } catch (IOException ex) {
+            WebSocketBufferPool.release(out);
+            throw ex;
+        }
+        if(last && (resetInflater || inflater.finished()))
+            inflater.reset();
+        out.flip();
+        return out;
+    }
+
+    private ByteBuffer inflate(ByteBuffer out, long maxLength) throws DataFormatException, IOException {
+        while (true) {
+            if(maxLength > 0 && out.position() > maxLength)
+                throw new WebSocketCloseException(WebSocketCloseException.MESSAGE_TOO_BIG, "Message too big");
+            if(!out.hasRemaining()) {
+                ByteBuffer larger = WebSocketBufferPool.acquire(out.capacity() * 2);
+                larger.limit(larger.capacity());
+                out.flip();
+                larger.put(out);
+                WebSocketBufferPool.release(out);
+                out = larger;
+            }
+            int n = inflater.inflate(out.array(), out.arrayOffset() + out.position(), out.remaining());
+            out.position(out.position() + n);
+            if(inflater.needsDictionary())
+                throw new DataFormatException("Preset dictionaries are not supported");
+            if(out.hasRemaining() && (inflater.needsInput() || inflater.finished() || n == 0)) {
+                if(maxLength > 0 && out.position() > maxLength)
+                    throw new WebSocketCloseException(WebSocketCloseException.MESSAGE_TOO_BIG, "Message too big");
+                return out;
+            }
+        }
+    }
+
+    /**
+     * Releases the deflater, called by the send side under the lock of the writes.
+     */
+    void endDeflater() {
+        if(deflater != null)
+            deflater.end();
+    }
+
+    /**
+     * Releases the inflater, called by the receive side once no more frames are handled.
+     */
+    void endInflater() {
+        inflater.end();
+    }
+
+}
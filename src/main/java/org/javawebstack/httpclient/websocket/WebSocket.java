@@ -1,81 +1,522 @@
 package org.javawebstack.httpclient.websocket;
 
 import org.javawebstack.httpclient.HTTPClientSocket;
+import org.javawebstack.httpclient.nio.NIOConnection;
+import org.javawebstack.httpclient.nio.NIOEventLoopGroup;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
 
 public class WebSocket implements Runnable {
 
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+    private static final int FRAGMENT_SIZE = 65536;
+    private static final long CLOSE_TIMEOUT = 5000;
+    private static ExecutorService defaultExecutor;
+
     private final HTTPClientSocket socket;
+    private final NIOConnection connection;
     private final WebSocketHandler handler;
+    private final WebSocketOptions options;
+    private final PerMessageDeflate deflate;
+    private final WebSocketSendQueue sendQueue;
+    private byte messageOpcode;
+    private boolean messageCompressed;
+    private long messageLength;
+    private ByteBuffer message;
+    private boolean closeNotified;
+    private final WebSocketRoundTripStats roundTripStats = new WebSocketRoundTripStats();
+    private final ArrayDeque<long[]> pendingPings = new ArrayDeque<>();
+    private long pingSequence;
+    private long nextPing;
+    private volatile String abortReason;
 
     public WebSocket(HTTPClientSocket socket, WebSocketHandler handler) throws IOException {
+        this(socket, handler, new WebSocketOptions());
+    }
+
+    public WebSocket(HTTPClientSocket socket, WebSocketHandler handler, WebSocketOptions options) throws IOException {
+        this(socket, handler, options, defaultExecutor());
+    }
+
+    /**
+     * @param executor runs the task that writes the queued messages, there is at most one such task per socket
+     */
+    public WebSocket(HTTPClientSocket socket, WebSocketHandler handler, WebSocketOptions options, Executor executor) throws IOException {
         this.socket = socket;
+        this.connection = null;
         this.handler = handler;
-        socket.setRequestHeader("connection", "Upgrade");
-        socket.setRequestHeader("upgrade", "websocket");
-        byte[] keyBytes = new byte[16];
-        new SecureRandom().nextBytes(keyBytes);
-        String key = new String(Base64.getEncoder().encode(keyBytes), StandardCharsets.US_ASCII);
-        socket.setRequestHeader("sec-websocket-key", key);
-        socket.setRequestHeader("sec-websocket-version", "13");
+        this.options = options;
+        handshakeHeaders(options).forEach(socket::setRequestHeader);
         if(socket.getResponseStatus() != 101)
             throw new IOException("Server didn't accept protocol change");
+        try {
+            deflate = PerMessageDeflate.accept(socket.getResponseHeaders("sec-websocket-extensions"), options);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        sendQueue = createSendQueue(socket.getOutputStream(), executor);
+        startKeepAlive();
         handler.onOpen(this);
     }
 
+    /**
+     * Used by NIOWebSocketTransport after it has performed the handshake, onOpen is dispatched by the transport.
+     */
+    WebSocket(NIOConnection connection, OutputStream output, WebSocketHandler handler, WebSocketOptions options, PerMessageDeflate deflate, Executor executor) {
+        this.socket = null;
+        this.connection = connection;
+        this.handler = handler;
+        this.options = options;
+        this.deflate = deflate;
+        this.sendQueue = createSendQueue(output, executor);
+        startKeepAlive();
+    }
+
+    /**
+     * Creates a WebSocket without a transport, received frames are passed to receiveFrame and sent frames are written to
+     * the output. Used by the tests.
+     */
+    WebSocket(OutputStream output, WebSocketHandler handler, WebSocketOptions options, PerMessageDeflate deflate, Executor executor) {
+        this(null, output, handler, options, deflate, executor);
+    }
+
+    /**
+     * Opens a WebSocket that runs on the event loops of the group instead of a dedicated thread, so a few threads can
+     * serve a large amount of connections. The handler is called on the executor, in order for each connection.
+     * Returns once the handshake has completed.
+     */
+    public static WebSocket open(NIOEventLoopGroup group, String url, boolean insecure, int timeout, Map<String, String> headers, WebSocketHandler handler, WebSocketOptions options, Executor executor) throws IOException {
+        Map<String, String> requestHeaders = new LinkedHashMap<>();
+        if(headers != null)
+            headers.forEach((k, v) -> requestHeaders.put(k.toLowerCase(Locale.ROOT), v));
+        requestHeaders.putAll(handshakeHeaders(options));
+        return NIOWebSocketTransport.open(group, url, insecure, timeout, requestHeaders, handler, options, executor);
+    }
+
+    private static Map<String, String> handshakeHeaders(WebSocketOptions options) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("connection", "Upgrade");
+        headers.put("upgrade", "websocket");
+        byte[] keyBytes = new byte[16];
+        new SecureRandom().nextBytes(keyBytes);
+        headers.put("sec-websocket-key", new String(Base64.getEncoder().encode(keyBytes), StandardCharsets.US_ASCII));
+        headers.put("sec-websocket-version", "13");
+        if(options.isCompression())
+            headers.put("sec-websocket-extensions", PerMessageDeflate.offer(options));
+        return headers;
+    }
+
+    /**
+     * Shared pool for the writers of sockets without an executor. The writes block on the socket, so threads are
+     * started as needed and stopped again once they have been idle for a minute.
+     */
+    private static synchronized Executor defaultExecutor() {
+        if(defaultExecutor == null) {
+            defaultExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                Thread thread = new Thread(r, "websocket-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return defaultExecutor;
+    }
+
+    private WebSocketSendQueue createSendQueue(OutputStream output, Executor executor) {
+        return new WebSocketSendQueue(output, deflate, options, executor, new WebSocketSendQueue.Listener() {
+            public void onWritabilityChanged(boolean writable) {
+                handler.onWritabilityChanged(WebSocket.this, writable);
+            }
+            public void onWriteFailed(IOException ex) {
+                closeTransport();
+            }
+        });
+    }
+
+    /**
+     * The first ping is sent at a random point of the interval, so pings of sockets opened together are spread out.
+     */
+    private void startKeepAlive() {
+        long interval = options.getPingInterval();
+        if(interval <= 0)
+            return;
+        nextPing = System.nanoTime() + ThreadLocalRandom.current().nextLong(TimeUnit.MILLISECONDS.toNanos(interval) + 1);
+        WebSocketKeepAlive.shared().register(this);
+    }
+
+    /**
+     * Called by WebSocketKeepAlive, sends a ping when it's due or closes the connection if too many pongs are missing.
+     */
+    void keepAlive(long now) {
+        byte[] payload;
+        synchronized (pendingPings) {
+            if(now - nextPing < 0)
+                return;
+            nextPing = now + TimeUnit.MILLISECONDS.toNanos(options.getPingInterval());
+            roundTripStats.setMissedPongs(pendingPings.size());
+            if(pendingPings.size() >= options.getMaxMissedPongs()) {
+                WebSocketKeepAlive.shared().unregister(this);
+                // the peer doesn't respond, so there is no point in waiting for a close frame to be written
+                abortReason = "Missed " + pendingPings.size() + " pongs";
+                closeTransport();
+                return;
+            }
+            long sequence = ++pingSequence;
+            pendingPings.add(new long[] { sequence, now });
+            payload = ByteBuffer.allocate(8).putLong(sequence).array();
+        }
+        sendQueue.enqueue(WebSocketFrame.OP_PING, payload);
+    }
+
+    /**
+     * Pongs answer a ping by echoing its payload, a pong also answers the pings before it.
+     */
+    private void onPong(byte[] payload) {
+        if(payload.length != 8)
+            return;
+        long sequence = ByteBuffer.wrap(payload).getLong();
+        long now = System.nanoTime();
+        synchronized (pendingPings) {
+            long[] ping;
+            while ((ping = pendingPings.peek()) != null && ping[0] <= sequence) {
+                pendingPings.poll();
+                if(ping[0] == sequence)
+                    roundTripStats.add(now - ping[1]);
+            }
+        }
+    }
+
+    /**
+     * Returns the round trip times measured by the keepalive pings (see WebSocketOptions.pingInterval).
+     */
+    public WebSocketRoundTripStats getRoundTripStats() {
+        return roundTripStats;
+    }
+
     public boolean isClosed() {
-        return socket.isClosed();
+        if(socket != null)
+            return socket.isClosed();
+        return connection != null ? connection.isClosed() : closeNotified;
     }
 
+    private void closeTransport() {
+        if(connection != null) {
+            connection.close();
+            return;
+        }
+        if(socket == null)
+            return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Returns whether the server accepted the permessage-deflate extension.
+     */
+    public boolean isCompressed() {
+        return deflate != null;
+    }
+
+    /**
+     * Runs the receive loop of a WebSocket that has been created from an HTTPClientSocket.
+     */
     public void run() {
-        WebSocketFrame frame;
-        while (!socket.isClosed()) {
-            try {
-                frame = WebSocketFrame.read(socket.getInputStream());
-                switch (frame.getOpcode()) {
-                    case WebSocketFrame.OP_CLOSE:
-                        Integer code = null;
-                        String reason = null;
-                        byte[] payload = frame.getPayload();
-                        if(payload.length >= 2) {
-                            code = (payload[0] << 8) | payload[1];
-                            if(payload.length > 2) {
-                                byte[] reasonBytes = new byte[payload.length - 2];
-                                System.arraycopy(payload, 2, reasonBytes, 0, reasonBytes.length);
-                                reason = new String(reasonBytes, StandardCharsets.UTF_8);
-                            }
-                        }
-                        handler.onClose(this, code, reason);
-                        frame.setMaskKey().write(socket.getOutputStream());
-                        socket.close();
-                        break;
-                    case WebSocketFrame.OP_PING:
-                        frame.setOpcode(WebSocketFrame.OP_PONG).setMaskKey().write(socket.getOutputStream());
-                        break;
-                    case WebSocketFrame.OP_BINARY:
-                        handler.onMessage(this, frame.getPayload());
-                        break;
-                    case WebSocketFrame.OP_TEXT:
-                        handler.onMessage(this, new String(frame.getPayload(), StandardCharsets.UTF_8));
-                        break;
+        if(socket == null)
+            throw new IllegalStateException("The WebSocket runs on an event loop");
+        WebSocketFrameReader reader = new WebSocketFrameReader(socket.getInputStream());
+        try {
+            while (!socket.isClosed() && receiveFrame(reader));
+        } finally {
+            closeTransport();
+            closed(new IOException("Socket closed"), false);
+        }
+    }
+
+    /**
+     * Reads and handles the next frame.
+     * @return false if no more frames should be read
+     */
+    boolean receiveFrame(WebSocketFrameReader reader) {
+        try {
+            reader.readHeader();
+            if(reader.getOpcode() >= WebSocketFrame.OP_CLOSE)
+                return receiveControl(reader);
+            receiveData(reader);
+            return true;
+        } catch (WebSocketCloseException e) {
+            releaseMessage();
+            notifyClose(e.getCode(), e.getMessage());
+            close(e.getCode(), e.getMessage());
+            return false;
+        } catch (IOException e) {
+            releaseMessage();
+            notifyClose(null, abortReason != null ? abortReason : e.getMessage());
+            closeTransport();
+            return false;
+        }
+    }
+
+    /**
+     * Releases the receive state once the connection is gone and fails the messages that are still queued.
+     * @param notify whether the handler should be notified if it hasn't been yet
+     */
+    void closed(IOException cause, boolean notify) {
+        if(options.getPingInterval() > 0)
+            WebSocketKeepAlive.shared().unregister(this);
+        releaseMessage();
+        if(deflate != null)
+            deflate.endInflater();
+        if(notify)
+            notifyClose(null, abortReason != null ? abortReason : cause.getMessage());
+        sendQueue.fail(cause);
+    }
+
+    private void notifyClose(Integer code, String reason) {
+        if(closeNotified)
+            return;
+        closeNotified = true;
+        handler.onClose(this, code, reason);
+    }
+
+    /**
+     * Control frames may arrive between the frames of a fragmented message, they don't affect its state.
+     */
+    private boolean receiveControl(WebSocketFrameReader reader) throws IOException {
+        if(!reader.isFin() || reader.getLength() > MAX_CONTROL_PAYLOAD || reader.isRsv1())
+            throw new WebSocketCloseException(WebSocketCloseException.PROTOCOL_ERROR, "Invalid control frame");
+        switch (reader.getOpcode()) {
+            case WebSocketFrame.OP_CLOSE: {
+                Integer code = null;
+                String reason = null;
+                byte[] payload = reader.readPayloadBytes();
+                if(payload.length >= 2) {
+                    code = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+                    if(payload.length > 2)
+                        reason = new String(payload, 2, payload.length - 2, StandardCharsets.UTF_8);
+                }
+                notifyClose(code, reason);
+                closeAfter(sendQueue.enqueue(WebSocketFrame.OP_CLOSE, payload));
+                return false;
+            }
+            case WebSocketFrame.OP_PING:
+                sendQueue.enqueue(WebSocketFrame.OP_PONG, reader.readPayloadBytes());
+                break;
+            case WebSocketFrame.OP_PONG:
+                onPong(reader.readPayloadBytes());
+                break;
+            default:
+                throw new WebSocketCloseException(WebSocketCloseException.PROTOCOL_ERROR, "Unknown opcode " + reader.getOpcode());
+        }
+        return true;
+    }
+
+    private void receiveData(WebSocketFrameReader reader) throws IOException {
+        byte opcode = reader.getOpcode();
+        if(opcode == WebSocketFrame.OP_CONTINUATION) {
+            if(messageOpcode == 0)
+                throw new WebSocketCloseException(WebSocketCloseException.PROTOCOL_ERROR, "Unexpected continuation frame");
+            if(reader.isRsv1())
+                throw new WebSocketCloseException(WebSocketCloseException.PROTOCOL_ERROR, "Unexpected compressed frame");
+        } else if(opcode == WebSocketFrame.OP_TEXT || opcode == WebSocketFrame.OP_BINARY) {
+            if(messageOpcode != 0)
+                throw new WebSocketCloseException(WebSocketCloseException.PROTOCOL_ERROR, "Expected continuation frame");
+            if(reader.isRsv1() && deflate == null)
+                throw new WebSocketCloseException(WebSocketCloseException.PROTOCOL_ERROR, "Unexpected compressed frame");
+            messageOpcode = opcode;
+            messageCompressed = reader.isRsv1();
+            messageLength = 0;
+        } else {
+            throw new WebSocketCloseException(WebSocketCloseException.PROTOCOL_ERROR, "Unknown opcode " + opcode);
+        }
+        long maxMessageSize = options.getMaxMessageSize();
+        if(maxMessageSize > 0 && messageLength + reader.getLength() > maxMessageSize)
+            throw new WebSocketCloseException(WebSocketCloseException.MESSAGE_TOO_BIG, "Message too big");
+        if(handler instanceof WebSocketFragmentHandler) {
+            receiveFragments(reader, (WebSocketFragmentHandler) handler);
+        } else {
+            receiveMessage(reader);
+        }
+        if(reader.isFin())
+            messageOpcode = 0;
+    }
+
+    /**
+     * Passes the frame to the fragment handler in parts of at most FRAGMENT_SIZE bytes.
+     */
+    private void receiveFragments(WebSocketFrameReader reader, WebSocketFragmentHandler handler) throws IOException {
+        long remaining = reader.getLength();
+        long position = 0;
+        do {
+            int n = (int) Math.min(remaining, FRAGMENT_SIZE);
+            ByteBuffer fragment = reader.readPayload(n, position);
+            remaining -= n;
+            position += n;
+            boolean last = reader.isFin() && remaining == 0;
+            if(messageCompressed) {
+                ByteBuffer decompressed;
+                try {
+                    long maxMessageSize = options.getMaxMessageSize();
+                    decompressed = deflate.decompress(fragment, last, maxMessageSize > 0 ? Math.max(1, maxMessageSize - messageLength) : 0);
+                } finally {
+                    WebSocketBufferPool.release(fragment);
                 }
-            } catch (IOException e) {
-                handler.onClose(this, null, e.getMessage());
+                fragment = decompressed;
+                messageLength += fragment.remaining();
+            } else {
+                messageLength += n;
+            }
+            try {
+                handler.onFragment(this, messageOpcode == WebSocketFrame.OP_TEXT, fragment, last);
+            } finally {
+                WebSocketBufferPool.release(fragment);
+            }
+        } while (remaining > 0);
+    }
+
+    /**
+     * Reassembles fragmented messages in a pooled buffer. Messages that consist of a single frame are passed to the
+     * handler without copying them.
+     */
+    private void receiveMessage(WebSocketFrameReader reader) throws IOException {
+        ByteBuffer payload = reader.readPayload();
+        messageLength += payload.remaining();
+        if(message != null || !reader.isFin()) {
+            if(message == null) {
+                message = payload;
+                message.position(message.limit()).limit(message.capacity());
+            } else {
+                message = append(message, payload);
+                WebSocketBufferPool.release(payload);
+            }
+            if(!reader.isFin())
                 return;
+            payload = message;
+            payload.flip();
+            message = null;
+        }
+        if(messageCompressed) {
+            ByteBuffer compressed = payload;
+            try {
+                payload = deflate.decompress(compressed, true, options.getMaxMessageSize());
+            } finally {
+                WebSocketBufferPool.release(compressed);
+            }
+        }
+        try {
+            if(messageOpcode == WebSocketFrame.OP_TEXT) {
+                handler.onMessage(this, new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(), StandardCharsets.UTF_8));
+            } else {
+                handler.onMessage(this, payload);
             }
+        } finally {
+            WebSocketBufferPool.release(payload);
         }
     }
 
+    private static ByteBuffer append(ByteBuffer target, ByteBuffer data) {
+        if(target.remaining() < data.remaining()) {
+            ByteBuffer larger = WebSocketBufferPool.acquire((int) Math.min(Integer.MAX_VALUE - 8, Math.max((long) target.capacity() * 2, (long) target.position() + data.remaining())));
+            larger.limit(larger.capacity());
+            target.flip();
+            larger.put(target);
+            WebSocketBufferPool.release(target);
+            target = larger;
+        }
+        target.put(data);
+        return target;
+    }
+
+    private void releaseMessage() {
+        if(message != null) {
+            WebSocketBufferPool.release(message);
+            message = null;
+        }
+    }
+
+    /**
+     * Sends the message and waits until it has been written.
+     */
     public void send(byte[] message) throws IOException {
-        new WebSocketFrame().setFin(true).setOpcode(WebSocketFrame.OP_BINARY).setPayload(message).setMaskKey().write(socket.getOutputStream());
+        await(sendAsync(message));
     }
 
     public void send(String message) throws IOException {
-        new WebSocketFrame().setFin(true).setOpcode(WebSocketFrame.OP_TEXT).setPayload(message.getBytes(StandardCharsets.UTF_8)).setMaskKey().write(socket.getOutputStream());
+        await(sendAsync(message));
+    }
+
+    /**
+     * Queues the message for sending. Messages are sent in the order they have been queued, the future completes once
+     * the message has been written or fails if the connection fails before.
+     */
+    public CompletableFuture<Void> sendAsync(byte[] message) {
+        return sendQueue.enqueue(WebSocketFrame.OP_BINARY, message);
+    }
+
+    public CompletableFuture<Void> sendAsync(String message) {
+        return sendQueue.enqueue(WebSocketFrame.OP_TEXT, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the amount of payload bytes that have been queued but not written yet.
+     */
+    public long getQueuedBytes() {
+        return sendQueue.getQueuedBytes();
+    }
+
+    /**
+     * Returns false while more bytes than the high watermark are queued for sending.
+     */
+    public boolean isWritable() {
+        return sendQueue.isWritable();
+    }
+
+    /**
+     * Returns a future that completes once the socket is writable again.
+     */
+    public CompletableFuture<Void> whenWritable() {
+        return sendQueue.whenWritable();
+    }
+
+    private static void await(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Closes the socket once the frame has been written, but waits at most CLOSE_TIMEOUT milliseconds. On an event
+     * loop the connection is closed asynchronously, as waiting could block the executor the frame is written on.
+     */
+    private void closeAfter(CompletableFuture<Void> future) {
+        if(connection != null) {
+            future.whenComplete((v, e) -> connection.close());
+            return;
+        }
+        try {
+            future.get(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ignored) {}
+        closeTransport();
     }
 
     public void close(Integer code, String reason) {
@@ -83,14 +524,11 @@ public class WebSocket implements Runnable {
         byte[] payload = new byte[code == null ? 0 : (reason == null ? 2 : (reasonBytes.length + 2))];
         if(code != null) {
             payload[0] = (byte) (code >> 8);
-            payload[1] = (byte) (code & 0xF);
+            payload[1] = (byte) (code & 0xFF);
             if(reasonBytes != null)
                 System.arraycopy(reasonBytes, 0, payload, 2, reasonBytes.length);
         }
-        try {
-            new WebSocketFrame().setFin(true).setOpcode(WebSocketFrame.OP_CLOSE).setPayload(payload).setMaskKey().write(socket.getOutputStream());
-            socket.close();
-        } catch (IOException ignored) {}
+        closeAfter(sendQueue.enqueue(WebSocketFrame.OP_CLOSE, payload));
     }
 
 }
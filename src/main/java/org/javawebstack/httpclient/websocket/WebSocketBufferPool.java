@@ -0,0 +1,56 @@
+package org.javawebstack.httpclient.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Shared pool of heap buffers for received payloads. Buffers are kept in power of two size classes from 4KB to 1MB,
+ * larger ones are allocated on demand and left to the garbage collector.
+ */
+final class WebSocketBufferPool {
+
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 20;
+    private static final int BUFFERS_PER_CLASS = 16;
+    private static final ArrayBlockingQueue<ByteBuffer>[] CLASSES = createClasses();
+
+    private WebSocketBufferPool() {}
+
+    @SuppressWarnings("unchecked")
+    private static ArrayBlockingQueue<ByteBuffer>[] createClasses() {
+        ArrayBlockingQueue<ByteBuffer>[] classes = new ArrayBlockingQueue[MAX_SHIFT - MIN_SHIFT + 1];
+        for(int i=0; i<classes.length; i++)
+            classes[i] = new ArrayBlockingQueue<>(BUFFERS_PER_CLASS);
+        return classes;
+    }
+
+    /**
+     * Returns a buffer with at least the given capacity, its position is 0 and its limit is the requested size.
+     */
+    static ByteBuffer acquire(int size) {
+        int index = sizeClass(size);
+        ByteBuffer buffer = null;
+        if(index < CLASSES.length)
+            buffer = CLASSES[index].poll();
+        if(buffer == null)
+            buffer = ByteBuffer.allocate(index < CLASSES.length ? 1 << (index + MIN_SHIFT) : size);
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    static void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if(Integer.bitCount(capacity) != 1)
+            return;
+        int index = sizeClass(capacity);
+        if(index < CLASSES.length && capacity == 1 << (index + MIN_SHIFT))
+            CLASSES[index].offer(buffer);
+    }
+
+    private static int sizeClass(int size) {
+        if(size <= 1 << MIN_SHIFT)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+}
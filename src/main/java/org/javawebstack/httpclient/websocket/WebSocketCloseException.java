@@ -0,0 +1,25 @@
+package org.javawebstack.httpclient.websocket;
+
+import java.io.IOException;
+
+/**
+ * Thrown while receiving when the connection has to be closed with the given close code, e.g. 1002 for protocol
+ * errors or 1009 for messages that exceed the maximum size.
+ */
+class WebSocketCloseException extends IOException {
+
+    static final int PROTOCOL_ERROR = 1002;
+    static final int MESSAGE_TOO_BIG = 1009;
+
+    private final int code;
+
+    WebSocketCloseException(int code, String message) {
+        super(message);
+        this.code = code;
+    }
+
+    int getCode() {
+        return code;
+    }
+
+}
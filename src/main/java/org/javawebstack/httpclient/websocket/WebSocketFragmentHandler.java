@@ -0,0 +1,24 @@
+package org.javawebstack.httpclient.websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A handler that receives data messages piece by piece instead of reassembled, so large messages can be processed
+ * without buffering them completely. The onMessage methods aren't called for handlers implementing this interface.
+ */
+public interface WebSocketFragmentHandler extends WebSocketHandler {
+
+    /**
+     * Receives the next part of a message. Frames are split into parts of at most 64KB and compressed messages are
+     * decompressed part by part. Text messages are passed as UTF-8 bytes, a character can be split between two parts.
+     * The buffer is a view of a pooled buffer and is reused once the method returns.
+     * @param text whether the part belongs to a text or a binary message
+     * @param last whether this is the last part of the message
+     */
+    void onFragment(WebSocket socket, boolean text, ByteBuffer fragment, boolean last);
+
+    default void onMessage(WebSocket socket, String message) {}
+
+    default void onMessage(WebSocket socket, byte[] message) {}
+
+}
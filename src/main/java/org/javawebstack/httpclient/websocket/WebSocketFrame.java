@@ -3,20 +3,30 @@ package org.javawebstack.httpclient.websocket;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
 public class WebSocketFrame {
 
+    public static final byte OP_CONTINUATION = 0x0;
     public static final byte OP_CLOSE = 0x8;
     public static final byte OP_PING = 0x9;
     public static final byte OP_PONG = 0xA;
     public static final byte OP_TEXT = 0x1;
     public static final byte OP_BINARY = 0x2;
 
+    private static final int MAX_HEADER_SIZE = 14;
+    private static final int WRITE_BUFFER_SIZE = 65536 + MAX_HEADER_SIZE;
+    private static final ThreadLocal<byte[]> WRITE_BUFFER = ThreadLocal.withInitial(() -> new byte[WRITE_BUFFER_SIZE]);
+    private static final SecureRandom MASK_RANDOM = new SecureRandom();
+
     private byte flags;
     private byte opcode;
     private byte[] maskKey;
     private byte[] payload;
+    private int payloadOffset;
+    private int payloadLength;
 
     public boolean isFin() {
         return (flags & 0b1000_0000) > 0;
@@ -72,82 +82,113 @@ public class WebSocketFrame {
         return this;
     }
 
+    /**
+     * Sets a new random mask key taken from a generator shared by all frames.
+     */
     public WebSocketFrame setMaskKey() {
-        byte[] key = new byte[4];
-        new SecureRandom().nextBytes(key);
-        return setMaskKey(key);
+        int random = MASK_RANDOM.nextInt();
+        return setMaskKey(new byte[] { (byte) (random >>> 24), (byte) (random >>> 16), (byte) (random >>> 8), (byte) random });
     }
 
     public byte[] getPayload() {
-        return payload;
+        if(payloadOffset == 0 && payloadLength == payload.length)
+            return payload;
+        return Arrays.copyOfRange(payload, payloadOffset, payloadOffset + payloadLength);
     }
 
     public WebSocketFrame setPayload(byte[] payload) {
+        return setPayload(payload, 0, payload.length);
+    }
+
+    /**
+     * Uses a part of the array as the payload without copying it.
+     */
+    public WebSocketFrame setPayload(byte[] payload, int offset, int length) {
         this.payload = payload;
+        this.payloadOffset = offset;
+        this.payloadLength = length;
         return this;
     }
 
+    /**
+     * Writes the frame with as few writes as possible. The header and the (masked) payload are assembled in a buffer
+     * of the calling thread, frames with up to 64KB of payload are written at once.
+     */
     public void write(OutputStream stream) throws IOException {
-        stream.write(flags | opcode);
-        int lengthByte = payload.length > 125 ? (payload.length > 0xFFFF ? 127 : 126) : payload.length;
-        stream.write((maskKey != null ? 0b1000_0000 : 0) | lengthByte);
+        int length = payloadLength;
+        byte[] buffer = WRITE_BUFFER.get();
+        int pos = writeHeader(buffer, length);
+        if(maskKey == null && pos + length > buffer.length) {
+            stream.write(buffer, 0, pos);
+            stream.write(payload, payloadOffset, length);
+            return;
+        }
+        int offset = 0;
+        do {
+            int n = Math.min(length - offset, buffer.length - pos);
+            if(maskKey != null) {
+                mask(payload, payloadOffset + offset, buffer, pos, n, maskKey, offset);
+            } else {
+                System.arraycopy(payload, payloadOffset + offset, buffer, pos, n);
+            }
+            stream.write(buffer, 0, pos + n);
+            offset += n;
+            pos = 0;
+        } while (offset < length);
+    }
+
+    private int writeHeader(byte[] buffer, int length) {
+        int pos = 0;
+        buffer[pos++] = (byte) (flags | opcode);
+        int lengthByte = length > 125 ? (length > 0xFFFF ? 127 : 126) : length;
+        buffer[pos++] = (byte) ((maskKey != null ? 0b1000_0000 : 0) | lengthByte);
         if(lengthByte == 127) {
-            stream.write(payload.length >> 24);
-            stream.write((payload.length & 0xFF0000) >> 16);
+            // the payload of a byte array never exceeds 31 bits, so the upper half of the 64 bit length stays zero
+            buffer[pos++] = 0;
+            buffer[pos++] = 0;
+            buffer[pos++] = 0;
+            buffer[pos++] = 0;
+            buffer[pos++] = (byte) (length >>> 24);
+            buffer[pos++] = (byte) (length >>> 16);
         }
         if(lengthByte > 125) {
-            stream.write((payload.length & 0xFF00) >> 8);
-            stream.write(payload.length & 0xFF);
+            buffer[pos++] = (byte) (length >>> 8);
+            buffer[pos++] = (byte) length;
         }
-        if(maskKey != null)
-            stream.write(maskKey);
         if(maskKey != null) {
-            for(int i=0; i<payload.length; i++)
-                stream.write(payload[i] ^ maskKey[i % 4]);
-        } else {
-            stream.write(payload);
+            System.arraycopy(maskKey, 0, buffer, pos, 4);
+            pos += 4;
         }
+        return pos;
+    }
+
+    /**
+     * XORs len bytes of src with the mask key and stores them in dst. The position is the offset of the first byte in
+     * the payload, it selects the key byte to start with. Eight bytes are masked at once with the key widened to a
+     * long, only the remainder is masked byte by byte.
+     */
+    static void mask(byte[] src, int srcOffset, byte[] dst, int dstOffset, int len, byte[] key, long position) {
+        long wideKey = 0;
+        for(int i=0; i<8; i++)
+            wideKey = (wideKey << 8) | (key[(int) ((position + i) & 3)] & 0xFF);
+        ByteBuffer source = ByteBuffer.wrap(src);
+        ByteBuffer target = ByteBuffer.wrap(dst);
+        int i = 0;
+        for(; i + 8 <= len; i += 8)
+            target.putLong(dstOffset + i, source.getLong(srcOffset + i) ^ wideKey);
+        for(; i < len; i++)
+            dst[dstOffset + i] = (byte) (src[srcOffset + i] ^ key[(int) ((position + i) & 3)]);
     }
 
     public static WebSocketFrame read(InputStream stream) throws IOException {
+        WebSocketFrameReader reader = new WebSocketFrameReader(stream);
+        reader.readHeader();
         WebSocketFrame frame = new WebSocketFrame();
-        int b = safeRead(stream);
-        frame.flags = (byte) (b & 0xF0);
-        frame.opcode = (byte) (b & 0x0F);
-        b = safeRead(stream);
-        frame.maskKey = (b >> 7) == 1 ? new byte[4] : null;
-        int len = b & 0b0111_1111;
-        if(len == 126) {
-            len = safeRead(stream) << 8;
-            len |= safeRead(stream);
-        } else if(len == 127) {
-            len = safeRead(stream) << 24;
-            len |= safeRead(stream) << 16;
-            len |= safeRead(stream) << 8;
-            len |= safeRead(stream);
-        }
-        if(frame.maskKey != null) {
-            frame.maskKey[0] = (byte) safeRead(stream);
-            frame.maskKey[1] = (byte) safeRead(stream);
-            frame.maskKey[2] = (byte) safeRead(stream);
-            frame.maskKey[3] = (byte) safeRead(stream);
-        }
-        frame.payload = new byte[len];
-        if(frame.maskKey != null) {
-            for(int i=0; i<len; i++)
-                frame.payload[i] = (byte) (safeRead(stream) ^ frame.maskKey[i % 4]);
-        } else {
-            for(int i=0; i<len; i++)
-                frame.payload[i] = (byte) safeRead(stream);
-        }
+        frame.flags = reader.getFlags();
+        frame.opcode = reader.getOpcode();
+        frame.maskKey = reader.isMasked() ? reader.getMaskKey().clone() : null;
+        frame.setPayload(reader.readPayloadBytes());
         return frame;
     }
 
-    private static int safeRead(InputStream stream) throws IOException {
-        int b = stream.read();
-        if(b == -1)
-            throw new IOException("Unexpected end of stream");
-        return b;
-    }
-
 }
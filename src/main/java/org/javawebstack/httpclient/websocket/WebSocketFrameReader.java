@@ -0,0 +1,143 @@
+package org.javawebstack.httpclient.websocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads frames from a stream without allocating per frame. The header is decoded into the reader, the payload is read
+ * in bulk into a pooled buffer and unmasked in place.
+ */
+final class WebSocketFrameReader {
+
+    private static final int MAX_PAYLOAD_LENGTH = Integer.MAX_VALUE - 8;
+    private static final int SKIP_BUFFER_SIZE = 8192;
+
+    private final InputStream stream;
+    private final byte[] header = new byte[8];
+    private final byte[] maskKey = new byte[4];
+    private byte flags;
+    private byte opcode;
+    private boolean masked;
+    private long length;
+
+    WebSocketFrameReader(InputStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Reads the header of the next frame, the payload has to be consumed before the next call.
+     */
+    void readHeader() throws IOException {
+        readFully(header, 0, 2);
+        flags = (byte) (header[0] & 0xF0);
+        opcode = (byte) (header[0] & 0x0F);
+        masked = (header[1] & 0b1000_0000) != 0;
+        int len = header[1] & 0b0111_1111;
+        if(len == 126) {
+            readFully(header, 0, 2);
+            length = ((header[0] & 0xFF) << 8) | (header[1] & 0xFF);
+        } else if(len == 127) {
+            readFully(header, 0, 8);
+            length = ByteBuffer.wrap(header).getLong();
+            if(length < 0)
+                throw new IOException("Invalid frame length");
+        } else {
+            length = len;
+        }
+        if(masked)
+            readFully(maskKey, 0, 4);
+    }
+
+    byte getFlags() {
+        return flags;
+    }
+
+    boolean isFin() {
+        return (flags & 0b1000_0000) != 0;
+    }
+
+    boolean isRsv1() {
+        return (flags & 0b0100_0000) != 0;
+    }
+
+    byte getOpcode() {
+        return opcode;
+    }
+
+    boolean isMasked() {
+        return masked;
+    }
+
+    byte[] getMaskKey() {
+        return maskKey;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Reads the payload into a buffer from WebSocketBufferPool, the caller has to release it when it's done.
+     */
+    ByteBuffer readPayload() throws IOException {
+        if(length > MAX_PAYLOAD_LENGTH)
+            throw new IOException("Frame too large");
+        return readPayload((int) length, 0);
+    }
+
+    /**
+     * Reads the next len bytes of the payload into a buffer from WebSocketBufferPool, so large frames can be consumed
+     * in parts. The position is the offset of the part in the payload, it's needed to unmask it.
+     */
+    ByteBuffer readPayload(int len, long position) throws IOException {
+        ByteBuffer buffer = WebSocketBufferPool.acquire(len);
+        try {
+            readFully(buffer.array(), buffer.arrayOffset(), len);
+        } catch (IOException ex) {
+            WebSocketBufferPool.release(buffer);
+            throw ex;
+        }
+        if(masked)
+            WebSocketFrame.mask(buffer.array(), buffer.arrayOffset(), buffer.array(), buffer.arrayOffset(), len, maskKey, position);
+        return buffer;
+    }
+
+    /**
+     * Reads the payload into a new array, used for control frames which are small.
+     */
+    byte[] readPayloadBytes() throws IOException {
+        if(length > MAX_PAYLOAD_LENGTH)
+            throw new IOException("Frame too large");
+        byte[] payload = new byte[(int) length];
+        readFully(payload, 0, payload.length);
+        if(masked)
+            WebSocketFrame.mask(payload, 0, payload, 0, payload.length, maskKey, 0);
+        return payload;
+    }
+
+    void skipPayload() throws IOException {
+        ByteBuffer buffer = WebSocketBufferPool.acquire(SKIP_BUFFER_SIZE);
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                int n = (int) Math.min(remaining, SKIP_BUFFER_SIZE);
+                readFully(buffer.array(), buffer.arrayOffset(), n);
+                remaining -= n;
+            }
+        } finally {
+            WebSocketBufferPool.release(buffer);
+        }
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int r = stream.read(b, off, len);
+            if(r == -1)
+                throw new IOException("Unexpected end of stream");
+            off += r;
+            len -= r;
+        }
+    }
+
+}
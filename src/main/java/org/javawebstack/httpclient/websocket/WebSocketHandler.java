@@ -1,5 +1,7 @@
 package org.javawebstack.httpclient.websocket;
 
+import java.nio.ByteBuffer;
+
 public interface WebSocketHandler {
 
     void onOpen(WebSocket socket);
@@ -8,6 +10,22 @@ public interface WebSocketHandler {
 
     void onMessage(WebSocket socket, byte[] message);
 
+    /**
+     * Receives binary messages as a view of the pooled receive buffer, which is reused once the method returns. The
+     * default copies the message and passes it to onMessage(WebSocket, byte[]).
+     */
+    default void onMessage(WebSocket socket, ByteBuffer message) {
+        byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+        onMessage(socket, bytes);
+    }
+
     void onClose(WebSocket socket, Integer code, String reason);
 
+    /**
+     * Called when the queued outbound bytes cross the high watermark (false) or fall back to the low watermark (true).
+     * Runs on the thread that queued or wrote the message, so it shouldn't block.
+     */
+    default void onWritabilityChanged(WebSocket socket, boolean writable) {}
+
 }
@@ -0,0 +1,53 @@
+package org.javawebstack.httpclient.websocket;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends the keepalive pings of all WebSockets from a single thread. The thread checks every registered socket once per
+ * TICK instead of keeping a timer per socket, so its overhead stays flat with the amount of connections.
+ */
+final class WebSocketKeepAlive implements Runnable {
+
+    private static final long TICK = 250;
+    private static WebSocketKeepAlive shared;
+
+    private final Set<WebSocket> sockets = ConcurrentHashMap.newKeySet();
+
+    private WebSocketKeepAlive() {
+        Thread thread = new Thread(this, "websocket-keepalive");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static synchronized WebSocketKeepAlive shared() {
+        if(shared == null)
+            shared = new WebSocketKeepAlive();
+        return shared;
+    }
+
+    void register(WebSocket socket) {
+        sockets.add(socket);
+    }
+
+    void unregister(WebSocket socket) {
+        sockets.remove(socket);
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(TICK);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for(WebSocket socket : sockets) {
+                try {
+                    socket.keepAlive(now);
+                } catch (RuntimeException ignored) {}
+            }
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package org.javawebstack.httpclient.websocket;
+
+import java.util.zip.Deflater;
+
+/**
+ * Settings of the WebSocket connections opened by a client.
+ */
+public class WebSocketOptions {
+
+    private boolean compression;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int compressionThreshold = 256;
+    private boolean clientNoContextTakeover;
+    private boolean serverNoContextTakeover;
+    private int maxFrameSize;
+    private long maxMessageSize = 16777216;
+    private long sendHighWatermark = 1048576;
+    private long sendLowWatermark = 262144;
+    private long pingInterval;
+    private int maxMissedPongs = 3;
+
+    /**
+     * Offers the permessage-deflate extension (RFC 7692) during the handshake. Received messages are always
+     * decompressed when the server accepts it, sent messages only when they reach the compression threshold.
+     */
+    public WebSocketOptions compression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public WebSocketOptions compressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Messages smaller than the threshold (in bytes) are sent uncompressed.
+     */
+    public WebSocketOptions compressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Compresses every sent message on its own instead of referring to earlier ones. Compresses worse but doesn't
+     * require the server to keep a window per connection.
+     */
+    public WebSocketOptions clientNoContextTakeover(boolean clientNoContextTakeover) {
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        return this;
+    }
+
+    public boolean isClientNoContextTakeover() {
+        return clientNoContextTakeover;
+    }
+
+    /**
+     * Asks the server to compress every message on its own.
+     */
+    public WebSocketOptions serverNoContextTakeover(boolean serverNoContextTakeover) {
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        return this;
+    }
+
+    public boolean isServerNoContextTakeover() {
+        return serverNoContextTakeover;
+    }
+
+    /**
+     * Splits sent messages into frames with at most this many bytes of payload, 0 sends every message as one frame.
+     */
+    public WebSocketOptions maxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+        return this;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Closes the connection with code 1009 when a received message (after decompression) exceeds this many bytes.
+     * Defaults to 16MB. 0 disables the limit, which lets the peer make the client allocate up to 2GB per frame.
+     */
+    public WebSocketOptions maxMessageSize(long maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+        return this;
+    }
+
+    public long getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * A socket stops being writable when more than this many bytes are queued for sending. Sending isn't refused, the
+     * handler is notified and WebSocket.whenWritable can be used to wait.
+     */
+    public WebSocketOptions sendHighWatermark(long sendHighWatermark) {
+        this.sendHighWatermark = sendHighWatermark;
+        return this;
+    }
+
+    public long getSendHighWatermark() {
+        return sendHighWatermark;
+    }
+
+    /**
+     * A socket that isn't writable becomes writable again once the queued bytes have fallen to this many bytes.
+     */
+    public WebSocketOptions sendLowWatermark(long sendLowWatermark) {
+        this.sendLowWatermark = sendLowWatermark;
+        return this;
+    }
+
+    public long getSendLowWatermark() {
+        return sendLowWatermark;
+    }
+
+    /**
+     * Sends a ping every this many milliseconds and measures the round trip time from the pong, 0 disables keepalive
+     * pings.
+     */
+    public WebSocketOptions pingInterval(long pingInterval) {
+        this.pingInterval = pingInterval;
+        return this;
+    }
+
+    public long getPingInterval() {
+        return pingInterval;
+    }
+
+    /**
+     * Closes the connection when this many keepalive pings in a row haven't been answered until the next one is due.
+     */
+    public WebSocketOptions maxMissedPongs(int maxMissedPongs) {
+        this.maxMissedPongs = maxMissedPongs;
+        return this;
+    }
+
+    public int getMaxMissedPongs() {
+        return maxMissedPongs;
+    }
+
+}
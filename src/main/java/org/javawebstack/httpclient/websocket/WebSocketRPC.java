@@ -0,0 +1,173 @@
+package org.javawebstack.httpclient.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Request/response calls over a single WebSocket. Every call gets an id which the request has to contain, the id
+ * extractor finds it in the received text messages to complete the matching call. Any number of calls can be in flight
+ * at the same time. Messages that don't belong to a call are passed to the handler.
+ * <p>
+ * The futures are completed on the thread that receives the messages, so longer work should use the async variants
+ * of the future's methods.
+ */
+public class WebSocketRPC implements WebSocketHandler {
+
+    private static ScheduledThreadPoolExecutor timer;
+
+    private final Function<String, String> idExtractor;
+    private final Map<String, Call> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final CompletableFuture<WebSocket> opened = new CompletableFuture<>();
+    private WebSocketHandler handler = new WebSocketHandler() {
+        public void onOpen(WebSocket socket) {}
+        public void onMessage(WebSocket socket, String message) {}
+        public void onMessage(WebSocket socket, byte[] message) {}
+        public void onClose(WebSocket socket, Integer code, String reason) {}
+    };
+    private long timeout = 30000;
+
+    /**
+     * @param idExtractor returns the id of the call a message responds to or null if it isn't a response
+     */
+    public WebSocketRPC(Function<String, String> idExtractor) {
+        this.idExtractor = idExtractor;
+    }
+
+    /**
+     * Sets the handler for the events of the socket and the messages that aren't responses.
+     */
+    public WebSocketRPC handler(WebSocketHandler handler) {
+        this.handler = handler;
+        return this;
+    }
+
+    /**
+     * Sets the default timeout of calls in milliseconds, 0 disables it.
+     */
+    public WebSocketRPC timeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Returns the amount of calls that are waiting for their response.
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    public CompletableFuture<String> call(Function<String, String> request) {
+        return call(request, timeout);
+    }
+
+    /**
+     * Sends a request and returns its response. The request function receives the id of the call and returns the
+     * message to send. The future fails with a TimeoutException if there is no response within the timeout (in
+     * milliseconds, 0 for none) and with an IOException if the socket closes before.
+     */
+    public CompletableFuture<String> call(Function<String, String> request, long timeout) {
+        String id = Long.toString(nextId.incrementAndGet());
+        Call call = new Call();
+        inFlight.put(id, call);
+        // calls completed or cancelled by the caller must not stay in flight until the socket closes
+        call.whenComplete((r, e) -> {
+            inFlight.remove(id, call);
+            call.cancelTimeout();
+        });
+        if(timeout > 0) {
+            call.timeout = timer().schedule(() -> {
+                if(inFlight.remove(id, call))
+                    call.completeExceptionally(new TimeoutException("No response within " + timeout + "ms"));
+            }, timeout, TimeUnit.MILLISECONDS);
+            if(call.isDone())
+                call.cancelTimeout();
+        }
+        try {
+            String message = request.apply(id);
+            CompletableFuture<Void> sent = opened.isDone() ? opened.join().sendAsync(message) : opened.thenCompose(socket -> socket.sendAsync(message));
+            sent.whenComplete((v, e) -> {
+                if(e != null && inFlight.remove(id, call))
+                    call.fail(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            });
+        } catch (RuntimeException ex) {
+            inFlight.remove(id, call);
+            call.fail(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+        }
+        return call;
+    }
+
+    public void onOpen(WebSocket socket) {
+        opened.complete(socket);
+        handler.onOpen(socket);
+    }
+
+    public void onMessage(WebSocket socket, String message) {
+        String id = idExtractor.apply(message);
+        Call call = id != null ? inFlight.remove(id) : null;
+        if(call == null) {
+            handler.onMessage(socket, message);
+            return;
+        }
+        call.cancelTimeout();
+        call.complete(message);
+    }
+
+    public void onMessage(WebSocket socket, byte[] message) {
+        handler.onMessage(socket, message);
+    }
+
+    public void onMessage(WebSocket socket, ByteBuffer message) {
+        handler.onMessage(socket, message);
+    }
+
+    public void onClose(WebSocket socket, Integer code, String reason) {
+        IOException cause = new IOException("WebSocket closed" + (reason != null ? ": " + reason : ""));
+        opened.completeExceptionally(cause);
+        for(String id : inFlight.keySet()) {
+            Call call = inFlight.remove(id);
+            if(call != null)
+                call.fail(cause);
+        }
+        handler.onClose(socket, code, reason);
+    }
+
+    public void onWritabilityChanged(WebSocket socket, boolean writable) {
+        handler.onWritabilityChanged(socket, writable);
+    }
+
+    private static synchronized ScheduledExecutorService timer() {
+        if(timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "websocket-rpc-timeout");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // calls are usually answered in time, so the cancelled timeouts must not pile up in the queue
+            timer.setRemoveOnCancelPolicy(true);
+        }
+        return timer;
+    }
+
+    private static final class Call extends CompletableFuture<String> {
+        volatile ScheduledFuture<?> timeout;
+        void cancelTimeout() {
+            ScheduledFuture<?> timeout = this.timeout;
+            if(timeout != null)
+                timeout.cancel(false);
+        }
+        void fail(Throwable cause) {
+            cancelTimeout();
+            completeExceptionally(cause);
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+package org.javawebstack.httpclient.websocket;
+
+import java.util.Arrays;
+
+/**
+ * Round trip times of the keepalive pings of a connection. All times are in milliseconds, percentiles are computed
+ * over the most recent SAMPLES measurements.
+ */
+public final class WebSocketRoundTripStats {
+
+    private static final int SAMPLES = 256;
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private final long[] samples = new long[SAMPLES];
+    private long count;
+    private long last;
+    private double average;
+    private int missedPongs;
+
+    synchronized void add(long nanos) {
+        samples[(int) (count % SAMPLES)] = nanos;
+        average = count == 0 ? nanos : average + EWMA_WEIGHT * (nanos - average);
+        last = nanos;
+        count++;
+        missedPongs = 0;
+    }
+
+    synchronized void setMissedPongs(int missedPongs) {
+        this.missedPongs = missedPongs;
+    }
+
+    /**
+     * Returns the amount of pongs that have been received for keepalive pings.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the most recent round trip time or -1 if there is none yet.
+     */
+    public synchronized double getLast() {
+        return count == 0 ? -1 : toMillis(last);
+    }
+
+    /**
+     * Returns the exponentially weighted moving average of the round trip times or -1 if there is none yet.
+     */
+    public synchronized double getAverage() {
+        return count == 0 ? -1 : average / 1000000d;
+    }
+
+    /**
+     * Returns the round trip time below which the given percentage (0-100) of the recent measurements lie or -1 if
+     * there is none yet.
+     */
+    public double getPercentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if(count == 0)
+                return -1;
+            sorted = Arrays.copyOf(samples, (int) Math.min(count, SAMPLES));
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(Math.max(0, Math.min(100, percentile)) / 100 * sorted.length) - 1;
+        return toMillis(sorted[Math.max(0, index)]);
+    }
+
+    /**
+     * Returns the amount of keepalive pings in a row that haven't been answered in time.
+     */
+    public synchronized int getMissedPongs() {
+        return missedPongs;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000d;
+    }
+
+    public synchronized String toString() {
+        return "WebSocketRoundTripStats{count=" + count + ", last=" + getLast() + ", average=" + getAverage() + ", p50=" + getPercentile(50) + ", p99=" + getPercentile(99) + ", missedPongs=" + missedPongs + "}";
+    }
+
+}
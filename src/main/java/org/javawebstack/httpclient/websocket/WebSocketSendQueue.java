@@ -0,0 +1,318 @@
+package org.javawebstack.httpclient.websocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound queue of a connection. Messages are queued by any thread and written by a single drain task on the
+ * executor, which compresses and fragments them in queue order and coalesces small frames into one write. The futures
+ * of the messages are completed once the write containing them has finished. With an AsyncOutput the drain task stops
+ * while the transport is congested and is rescheduled once it has drained, so it never blocks the executor.
+ */
+final class WebSocketSendQueue {
+
+    private static final int BATCH_SIZE = 65536;
+    private static final int SMALL_BATCH_SIZE = 4096;
+
+    private final OutputStream stream;
+    private final AsyncOutput asyncOutput;
+    private final PerMessageDeflate deflate;
+    private final WebSocketOptions options;
+    private final Executor executor;
+    private final Listener listener;
+    private final Queue<Message> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final BatchStream batch = new BatchStream();
+    private final List<Message> written = new ArrayList<>();
+    private boolean writable = true;
+    private CompletableFuture<Void> writableFuture;
+    private volatile IOException failure;
+    private boolean closing;
+
+    WebSocketSendQueue(OutputStream stream, PerMessageDeflate deflate, WebSocketOptions options, Executor executor, Listener listener) {
+        this.stream = stream;
+        this.asyncOutput = stream instanceof AsyncOutput ? (AsyncOutput) stream : null;
+        this.deflate = deflate;
+        this.options = options;
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    /**
+     * Queues a message, nothing can be queued after a close frame.
+     */
+    CompletableFuture<Void> enqueue(byte opcode, byte[] payload) {
+        Message message = new Message(opcode, payload);
+        synchronized (queue) {
+            IOException failure = this.failure;
+            if(failure == null && closing)
+                failure = new IOException("WebSocket is closing");
+            if(failure != null) {
+                message.future.completeExceptionally(failure);
+                return message.future;
+            }
+            if(opcode == WebSocketFrame.OP_CLOSE)
+                closing = true;
+            queuedBytes.addAndGet(payload.length);
+            queue.add(message);
+        }
+        // the queue might have failed while the message was added, it has to be failed as well then
+        if(this.failure != null) {
+            failAll(this.failure);
+            return message.future;
+        }
+        updateWritability();
+        if(draining.compareAndSet(false, true))
+            scheduleDrain();
+        return message.future;
+    }
+
+    private void scheduleDrain() {
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException ex) {
+            draining.set(false);
+            fail(new IOException("The send executor rejected the write", ex));
+        }
+    }
+
+    long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    synchronized boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * Returns a future that completes once the queued bytes have fallen below the low watermark.
+     */
+    synchronized CompletableFuture<Void> whenWritable() {
+        if(writable || failure != null)
+            return CompletableFuture.completedFuture(null);
+        if(writableFuture == null)
+            writableFuture = new CompletableFuture<>();
+        return writableFuture;
+    }
+
+    /**
+     * Fails all queued and future messages and releases the deflater. The inflater is released by the receive side, as
+     * it might still be decompressing a message.
+     */
+    void fail(IOException ex) {
+        synchronized (batch) {
+            if(failure == null) {
+                failure = ex;
+                if(deflate != null)
+                    deflate.endDeflater();
+            }
+        }
+        failAll(failure);
+    }
+
+    private void failAll(IOException ex) {
+        Message message;
+        while ((message = queue.poll()) != null) {
+            queuedBytes.addAndGet(-message.payload.length);
+            message.future.completeExceptionally(ex);
+        }
+        updateWritability();
+    }
+
+    private void drain() {
+        while (true) {
+            boolean congested = false;
+            synchronized (batch) {
+                try {
+                    Message message;
+                    while (failure == null && !queue.isEmpty()) {
+                        if(asyncOutput != null && asyncOutput.isCongested()) {
+                            congested = true;
+                            break;
+                        }
+                        if((message = queue.poll()) == null)
+                            break;
+                        write(message);
+                        // a flush while writing the message has sent all earlier ones completely
+                        if(batch.flushed)
+                            complete();
+                        written.add(message);
+                    }
+                    if(failure == null) {
+                        batch.flush();
+                        complete();
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    IOException cause = ex instanceof IOException ? (IOException) ex : new IOException(ex);
+                    for(Message message : written)
+                        message.future.completeExceptionally(cause);
+                    written.clear();
+                    draining.set(false);
+                    fail(cause);
+                    listener.onWriteFailed(cause);
+                    return;
+                }
+            }
+            if(congested) {
+                // the task stays the only drain task, it's resubmitted once the transport has caught up
+                asyncOutput.whenDrained(this::scheduleDrain);
+                return;
+            }
+            draining.set(false);
+            if(queue.isEmpty() || !draining.compareAndSet(false, true))
+                return;
+        }
+    }
+
+    private void write(Message message) throws IOException {
+        byte[] payload = message.payload;
+        boolean compressed = false;
+        if(message.opcode < WebSocketFrame.OP_CLOSE && deflate != null && deflate.shouldCompress(payload.length)) {
+            payload = deflate.compress(payload);
+            compressed = true;
+        }
+        int maxFrameSize = options.getMaxFrameSize();
+        if(maxFrameSize <= 0 || payload.length <= maxFrameSize || message.opcode >= WebSocketFrame.OP_CLOSE) {
+            new WebSocketFrame().setFin(true).setOpcode(message.opcode).setRsv1(compressed).setPayload(payload).setMaskKey().write(batch);
+            return;
+        }
+        for(int offset = 0; offset < payload.length; offset += maxFrameSize) {
+            int length = Math.min(maxFrameSize, payload.length - offset);
+            new WebSocketFrame()
+                    .setFin(offset + length == payload.length)
+                    .setOpcode(offset == 0 ? message.opcode : WebSocketFrame.OP_CONTINUATION)
+                    .setRsv1(compressed && offset == 0)
+                    .setPayload(payload, offset, length)
+                    .setMaskKey()
+                    .write(batch);
+        }
+    }
+
+    private void complete() {
+        batch.flushed = false;
+        if(written.isEmpty())
+            return;
+        for(Message message : written) {
+            queuedBytes.addAndGet(-message.payload.length);
+            message.future.complete(null);
+        }
+        written.clear();
+        updateWritability();
+    }
+
+    private void updateWritability() {
+        long queued = queuedBytes.get();
+        CompletableFuture<Void> future = null;
+        Boolean changed = null;
+        synchronized (this) {
+            if(writable && queued > options.getSendHighWatermark()) {
+                writable = false;
+                changed = false;
+            } else if(!writable && (queued <= options.getSendLowWatermark() || failure != null)) {
+                writable = true;
+                changed = true;
+                future = writableFuture;
+                writableFuture = null;
+            }
+        }
+        if(future != null)
+            future.complete(null);
+        if(changed != null)
+            listener.onWritabilityChanged(changed);
+    }
+
+    /**
+     * Output of a non-blocking transport. It takes ownership of the arrays passed to writeOwned instead of copying
+     * them.
+     */
+    interface AsyncOutput {
+        void writeOwned(byte[] b, int off, int len) throws IOException;
+        boolean isCongested();
+        void whenDrained(Runnable callback);
+    }
+
+    interface Listener {
+        void onWritabilityChanged(boolean writable);
+        void onWriteFailed(IOException ex);
+    }
+
+    private static final class Message {
+        final byte opcode;
+        final byte[] payload;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        Message(byte opcode, byte[] payload) {
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Collects frames until BATCH_SIZE bytes are buffered, larger writes are passed through. An AsyncOutput gets the
+     * buffer itself and a new one is started, small batches are copied instead to not retain a whole buffer for them.
+     * Nothing is passed through to it, as the frames are written from a buffer that is reused.
+     */
+    private final class BatchStream extends OutputStream {
+        byte[] buffer = new byte[BATCH_SIZE];
+        int count;
+        boolean flushed;
+        public void write(int b) throws IOException {
+            if(count == buffer.length)
+                flushBuffer();
+            buffer[count++] = (byte) b;
+        }
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(asyncOutput != null) {
+                while (len > 0) {
+                    int n = Math.min(len, buffer.length - count);
+                    System.arraycopy(b, off, buffer, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                    if(count == buffer.length)
+                        flushBuffer();
+                }
+                return;
+            }
+            if(len > buffer.length - count) {
+                flushBuffer();
+                if(len >= buffer.length) {
+                    stream.write(b, off, len);
+                    flushed = true;
+                    return;
+                }
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+        public void flush() throws IOException {
+            flushBuffer();
+            stream.flush();
+        }
+        private void flushBuffer() throws IOException {
+            if(count == 0)
+                return;
+            if(asyncOutput == null) {
+                stream.write(buffer, 0, count);
+            } else if(count <= SMALL_BATCH_SIZE) {
+                asyncOutput.writeOwned(Arrays.copyOf(buffer, count), 0, count);
+            } else {
+                asyncOutput.writeOwned(buffer, 0, count);
+                buffer = new byte[BATCH_SIZE];
+            }
+            count = 0;
+            flushed = true;
+        }
+    }
+
+}
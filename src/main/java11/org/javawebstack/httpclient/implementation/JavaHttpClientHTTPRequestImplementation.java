@@ -0,0 +1,252 @@
+package org.javawebstack.httpclient.implementation;
+
+import org.javawebstack.httpclient.HTTPClient;
+import org.javawebstack.httpclient.HTTPRequestBody;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Implementation based on the java.net.http.HttpClient of java 11+. All requests of a HTTPClient share one client,
+ * which multiplexes them over HTTP/2 connections and falls back to HTTP/1.1 if the server doesn't support HTTP/2.
+ * This class is only compiled when building with java 11 or newer and must not be referenced on java 8.
+ */
+public class JavaHttpClientHTTPRequestImplementation implements IHTTPRequestImplementation {
+
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<>(Arrays.asList("connection", "content-length", "expect", "host", "upgrade"));
+
+    private String method;
+    private String url;
+    private boolean sslVerification;
+    private boolean followRedirects;
+    private int timeout;
+    private Map<String, String[]> requestHeaders;
+    private HTTPRequestBody requestBody;
+
+    private int status;
+    private volatile Throwable exception;
+    private final Map<String, String[]> responseHeaders = new HashMap<>();
+    private InputStream responseStream;
+    private SharedClient sharedClient;
+
+    public void setClient(HTTPClient client) {
+        this.sharedClient = client.sharedResource(SharedClient.class, SharedClient::new);
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public void setSslVerification(boolean sslVerification) {
+        this.sslVerification = sslVerification;
+    }
+
+    public void setFollowRedirects(boolean followRedirects) {
+        this.followRedirects = followRedirects;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public void setRequestHeaders(Map<String, String[]> requestHeaders) {
+        this.requestHeaders = requestHeaders;
+    }
+
+    public void setRequestBody(byte[] requestBody) {
+        this.requestBody = requestBody == null ? null : HTTPRequestBody.of(requestBody);
+    }
+
+    public void setRequestBody(HTTPRequestBody requestBody) {
+        this.requestBody = requestBody;
+    }
+
+    public int getResponseStatus() {
+        return status;
+    }
+
+    public String getResponseStatusMessage() {
+        return "";
+    }
+
+    public Map<String, String[]> getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    public InputStream getResponseStream() {
+        return responseStream == null ? new ByteArrayInputStream(new byte[0]) : responseStream;
+    }
+
+    public int execute() {
+        try {
+            return executeAsync(Runnable::run).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exception = e;
+        } catch (ExecutionException e) {
+            exception = e.getCause();
+        }
+        status = -1;
+        return status;
+    }
+
+    /**
+     * Streamed bodies are pulled from the body's stream, the client sends them chunked if the length is unknown.
+     */
+    private HttpRequest.BodyPublisher bodyPublisher() {
+        if(requestBody == null)
+            return HttpRequest.BodyPublishers.noBody();
+        byte[] bytes = requestBody.getBytes();
+        if(bytes != null)
+            return HttpRequest.BodyPublishers.ofByteArray(bytes);
+        long length = requestBody.length();
+        if(length == 0)
+            return HttpRequest.BodyPublishers.noBody();
+        HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                return requestBody.open();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return length > 0 ? HttpRequest.BodyPublishers.fromPublisher(publisher, length) : publisher;
+    }
+
+    public CompletableFuture<Integer> executeAsync(Executor executor) {
+        HttpRequest request;
+        HttpClient client;
+        try {
+            if(sharedClient == null)
+                sharedClient = new SharedClient();
+            client = sharedClient.get(sslVerification, followRedirects, timeout);
+            HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+                    .method(method, bodyPublisher());
+            if(timeout > 0)
+                builder.timeout(Duration.ofMillis(timeout));
+            requestHeaders.forEach((k, values) -> {
+                if(RESTRICTED_HEADERS.contains(k.toLowerCase(Locale.ROOT)))
+                    return;
+                for(String v : values)
+                    builder.header(k, v);
+            });
+            request = builder.build();
+        } catch (NoSuchAlgorithmException | KeyManagementException | IllegalArgumentException e) {
+            exception = e;
+            status = -1;
+            return CompletableFuture.completedFuture(status);
+        }
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()).handle((response, error) -> {
+            if(error != null) {
+                exception = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                status = -1;
+                return status;
+            }
+            status = response.statusCode();
+            response.headers().map().forEach((k, v) -> responseHeaders.put(k.toLowerCase(Locale.ROOT), v.toArray(new String[0])));
+            responseStream = response.body();
+            return status;
+        });
+    }
+
+    public Throwable getException() {
+        return exception;
+    }
+
+    public void close() {
+        if(responseStream != null) {
+            try {
+                responseStream.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * The java.net.http clients shared by all requests of a HTTPClient. As redirects, ssl and the connect timeout can
+     * only be configured per HttpClient, there is one for each combination in use, so requests alternating between them
+     * keep their connections. There are only a few of them, as the timeout is set for the whole HTTPClient.
+     */
+    public static class SharedClient implements Closeable {
+
+        private final Map<List<Object>, HttpClient> clients = new HashMap<>();
+
+        public synchronized HttpClient get(boolean sslVerification, boolean followRedirects, int timeout) throws NoSuchAlgorithmException, KeyManagementException {
+            List<Object> key = Arrays.asList(sslVerification, followRedirects, timeout);
+            HttpClient client = clients.get(key);
+            if(client != null)
+                return client;
+            HttpClient.Builder builder = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .followRedirects(followRedirects ? HttpClient.Redirect.NORMAL : HttpClient.Redirect.NEVER);
+            if(timeout > 0)
+                builder.connectTimeout(Duration.ofMillis(timeout));
+            if(!sslVerification) {
+                SSLContext sc = SSLContext.getInstance("TLS");
+                sc.init(null, new TrustManager[] { new TrustAllManager() }, new java.security.SecureRandom());
+                builder.sslContext(sc);
+            }
+            client = builder.build();
+            clients.put(key, client);
+            return client;
+        }
+
+        public synchronized void close() {
+            for(HttpClient client : clients.values()) {
+                if(client instanceof AutoCloseable) {
+                    try {
+                        ((AutoCloseable) client).close();
+                    } catch (Exception ignored) {}
+                }
+            }
+            clients.clear();
+        }
+
+    }
+
+    /**
+     * Trusts every certificate. It's an extended trust manager so the jdk doesn't wrap it, which means the hostname
+     * isn't verified either, insecure mode skips both checks.
+     */
+    private static class TrustAllManager extends X509ExtendedTrustManager {
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+
+}
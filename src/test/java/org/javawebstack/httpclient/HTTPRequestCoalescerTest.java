@@ -0,0 +1,237 @@
+package org.javawebstack.httpclient;
+
+import org.javawebstack.httpclient.implementation.IHTTPRequestImplementation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HTTPRequestCoalescerTest {
+
+    private final HTTPRequestCoalescer coalescer = new HTTPRequestCoalescer();
+    // the requests block while they're coalesced, so each needs its own thread
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static Map<String, String[]> headers(String... nameValues) {
+        Map<String, String[]> headers = new LinkedHashMap<>();
+        for(int i=0; i<nameValues.length; i+=2)
+            headers.put(nameValues[i], new String[]{ nameValues[i + 1] });
+        return headers;
+    }
+
+    private IHTTPRequestImplementation request(FakeImplementation fake, String method, String url, Map<String, String[]> headers) {
+        IHTTPRequestImplementation request = coalescer.wrap(fake);
+        request.setMethod(method);
+        request.setUrl(url);
+        request.setFollowRedirects(true);
+        request.setSslVerification(true);
+        request.setRequestHeaders(headers);
+        return request;
+    }
+
+    private static String body(IHTTPRequestImplementation request) throws IOException {
+        try (InputStream in = request.getResponseStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1)
+                out.write(b);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Starts the execution of a request whose delegate blocks until it's released and waits until it has been sent.
+     */
+    private CompletableFuture<Integer> lead(FakeImplementation fake, IHTTPRequestImplementation request) throws InterruptedException {
+        CompletableFuture<Integer> result = CompletableFuture.supplyAsync(request::execute, executor);
+        assertTrue(fake.started.await(5, TimeUnit.SECONDS));
+        return result;
+    }
+
+    @Test
+    public void testFanOut() throws Exception {
+        FakeImplementation leaderFake = new FakeImplementation("shared", true);
+        IHTTPRequestImplementation leader = request(leaderFake, "GET", "http://example.com/a", headers("accept", "application/json"));
+        CompletableFuture<Integer> leaderResult = lead(leaderFake, leader);
+
+        List<FakeImplementation> followerFakes = new ArrayList<>();
+        List<IHTTPRequestImplementation> followers = new ArrayList<>();
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for(int i=0; i<5; i++) {
+            FakeImplementation fake = new FakeImplementation("own");
+            IHTTPRequestImplementation follower = request(fake, "GET", "http://example.com/a", headers("accept", "application/json"));
+            followerFakes.add(fake);
+            followers.add(follower);
+            results.add(CompletableFuture.supplyAsync(follower::execute, executor));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (coalescer.getCoalesced() < 5 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(5, coalescer.getCoalesced());
+        leaderFake.release.countDown();
+
+        assertEquals(200, leaderResult.get(5, TimeUnit.SECONDS));
+        assertEquals("shared", body(leader));
+        assertEquals(1, leaderFake.executions);
+        assertTrue(leaderFake.closed);
+        for(int i=0; i<followers.size(); i++) {
+            assertEquals(200, results.get(i).get(5, TimeUnit.SECONDS));
+            assertEquals("shared", body(followers.get(i)));
+            assertEquals("OK", followers.get(i).getResponseStatusMessage());
+            assertEquals(0, followerFakes.get(i).executions);
+        }
+        // every request gets its own copy of the headers
+        followers.get(0).getResponseHeaders().put("x-changed", new String[]{ "1" });
+        assertFalse(followers.get(1).getResponseHeaders().containsKey("x-changed"));
+        assertEquals("shared", followers.get(1).getResponseHeaders().get("x-body")[0]);
+    }
+
+    @Test
+    public void testFlightEndsWithTheLeader() throws Exception {
+        FakeImplementation first = new FakeImplementation("first");
+        assertEquals(200, request(first, "GET", "http://example.com/a", headers()).execute());
+        FakeImplementation second = new FakeImplementation("second");
+        IHTTPRequestImplementation request = request(second, "GET", "http://example.com/a", headers());
+        assertEquals(200, request.execute());
+        assertEquals("second", body(request));
+        assertEquals(1, second.executions);
+        assertEquals(0, coalescer.getCoalesced());
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        FakeImplementation leaderFake = new FakeImplementation("shared", true);
+        CompletableFuture<Integer> leaderResult = lead(leaderFake, request(leaderFake, "GET", "http://example.com/a", headers("accept", "a", "x-b", "b")));
+
+        List<Consumer<IHTTPRequestImplementation>> differences = new ArrayList<>();
+        differences.add(r -> r.setUrl("http://example.com/b"));
+        differences.add(r -> r.setMethod("HEAD"));
+        differences.add(r -> r.setMethod("POST"));
+        differences.add(r -> r.setFollowRedirects(false));
+        differences.add(r -> r.setSslVerification(false));
+        differences.add(r -> r.setRequestHeaders(headers("accept", "a", "x-b", "c")));
+        differences.add(r -> r.setRequestHeaders(headers("accept", "a")));
+        differences.add(r -> r.setRequestBody(new byte[0]));
+        differences.add(r -> r.setStreamResponse(true));
+        for(Consumer<IHTTPRequestImplementation> difference : differences) {
+            FakeImplementation fake = new FakeImplementation("own");
+            IHTTPRequestImplementation request = request(fake, "GET", "http://example.com/a", headers("accept", "a", "x-b", "b"));
+            difference.accept(request);
+            assertEquals(200, request.execute());
+            assertEquals(1, fake.executions);
+            assertEquals("own", body(request));
+        }
+        assertEquals(0, coalescer.getCoalesced());
+
+        // the order of the headers doesn't matter
+        FakeImplementation fake = new FakeImplementation("own");
+        CompletableFuture<Integer> follower = CompletableFuture.supplyAsync(request(fake, "GET", "http://example.com/a", headers("x-b", "b", "accept", "a"))::execute, executor);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (coalescer.getCoalesced() < 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        leaderFake.release.countDown();
+        assertEquals(200, leaderResult.get(5, TimeUnit.SECONDS));
+        assertEquals(200, follower.get(5, TimeUnit.SECONDS));
+        assertEquals(1, coalescer.getCoalesced());
+        assertEquals(0, fake.executions);
+    }
+
+    @Test
+    public void testBodyErrorIsShared() throws Exception {
+        FakeImplementation leaderFake = new FakeImplementation(null, true);
+        IHTTPRequestImplementation leader = request(leaderFake, "GET", "http://example.com/a", headers());
+        CompletableFuture<Integer> leaderResult = lead(leaderFake, leader);
+        IHTTPRequestImplementation follower = request(new FakeImplementation("own"), "GET", "http://example.com/a", headers());
+        CompletableFuture<Integer> followerResult = CompletableFuture.supplyAsync(follower::execute, executor);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (coalescer.getCoalesced() < 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        leaderFake.release.countDown();
+        assertEquals(200, leaderResult.get(5, TimeUnit.SECONDS));
+        assertEquals(200, followerResult.get(5, TimeUnit.SECONDS));
+        assertThrows(IOException.class, () -> body(leader));
+        assertThrows(IOException.class, () -> body(follower));
+    }
+
+    /**
+     * Responds with 200 and the given body, a null body fails while it's read. A blocking one waits in execute() until
+     * it's released.
+     */
+    private static final class FakeImplementation implements IHTTPRequestImplementation {
+        private final String body;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile int executions;
+        volatile boolean closed;
+        FakeImplementation(String body) {
+            this(body, false);
+        }
+        FakeImplementation(String body, boolean blocking) {
+            this.body = body;
+            if(!blocking)
+                release.countDown();
+        }
+        public void setMethod(String method) {}
+        public void setUrl(String url) {}
+        public void setSslVerification(boolean sslVerification) {}
+        public void setFollowRedirects(boolean followRedirects) {}
+        public void setTimeout(int timeout) {}
+        public void setRequestHeaders(Map<String, String[]> requestHeaders) {}
+        public void setRequestBody(byte[] requestBody) {}
+        public Map<String, String[]> getResponseHeaders() {
+            Map<String, String[]> headers = new HashMap<>();
+            headers.put("x-body", new String[]{ String.valueOf(body) });
+            return headers;
+        }
+        public InputStream getResponseStream() {
+            if(body == null) {
+                return new InputStream() {
+                    public int read() throws IOException {
+                        throw new IOException("Connection reset");
+                    }
+                };
+            }
+            return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+        }
+        public int getResponseStatus() {
+            return 200;
+        }
+        public String getResponseStatusMessage() {
+            return "OK";
+        }
+        public int execute() {
+            executions++;
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {}
+            return 200;
+        }
+        public void close() {
+            closed = true;
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+package org.javawebstack.httpclient;
+
+import org.javawebstack.httpclient.implementation.IHTTPRequestImplementation;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HTTPRetryPolicyTest {
+
+    private static final Map<String, String[]> NO_HEADERS = Collections.emptyMap();
+
+    private static Map<String, String[]> header(String name, String value) {
+        Map<String, String[]> headers = new HashMap<>();
+        headers.put(name, new String[]{ value });
+        return headers;
+    }
+
+    @Test
+    public void testRetryableStatuses() {
+        HTTPRetryPolicy policy = new HTTPRetryPolicy().backoff(100, 1000);
+        for(int status : new int[]{ 429, 502, 503, 504 }) {
+            long delay = policy.delay(0, "GET", NO_HEADERS, true, status, null, NO_HEADERS);
+            assertTrue(delay >= 0 && delay <= 100, "status " + status);
+        }
+        assertEquals(-1, policy.delay(0, "GET", NO_HEADERS, true, 500, null, NO_HEADERS));
+        assertEquals(-1, policy.delay(0, "GET", NO_HEADERS, true, 200, null, NO_HEADERS));
+    }
+
+    @Test
+    public void testBackoffIsCappedAndLimited() {
+        HTTPRetryPolicy policy = new HTTPRetryPolicy().backoff(100, 250).maxRetries(5);
+        for(int i = 0; i < 100; i++)
+            assertTrue(policy.delay(4, "GET", NO_HEADERS, true, 503, null, NO_HEADERS) <= 250);
+        assertEquals(-1, policy.delay(5, "GET", NO_HEADERS, true, 503, null, NO_HEADERS));
+        assertEquals(-1, policy.delay(0, "GET", NO_HEADERS, false, 503, null, NO_HEADERS));
+    }
+
+    @Test
+    public void testIdempotency() {
+        HTTPRetryPolicy policy = new HTTPRetryPolicy();
+        assertEquals(-1, policy.delay(0, "POST", NO_HEADERS, true, 503, null, NO_HEADERS));
+        assertEquals(-1, policy.delay(0, "PATCH", NO_HEADERS, true, -1, new SocketTimeoutException(), NO_HEADERS));
+        assertTrue(policy.delay(0, "POST", header("idempotency-key", "abc"), true, 503, null, NO_HEADERS) >= 0);
+        assertTrue(policy.delay(0, "put", NO_HEADERS, true, 503, null, NO_HEADERS) >= 0);
+        // the request hasn't been sent when the connection failed
+        assertTrue(policy.delay(0, "POST", NO_HEADERS, true, -1, new IOException(new ConnectException()), NO_HEADERS) >= 0);
+        assertTrue(new HTTPRetryPolicy().retryNonIdempotent(true).delay(0, "POST", NO_HEADERS, true, 503, null, NO_HEADERS) >= 0);
+    }
+
+    @Test
+    public void testExceptions() {
+        HTTPRetryPolicy policy = new HTTPRetryPolicy();
+        assertTrue(policy.delay(0, "GET", NO_HEADERS, true, -1, new SocketTimeoutException(), NO_HEADERS) >= 0);
+        assertTrue(policy.delay(0, "GET", NO_HEADERS, true, -1, null, NO_HEADERS) >= 0);
+        assertTrue(policy.delay(0, "GET", NO_HEADERS, true, -1, new RuntimeException(new IOException()), NO_HEADERS) >= 0);
+        assertEquals(-1, policy.delay(0, "GET", NO_HEADERS, true, -1, new IllegalStateException(), NO_HEADERS));
+        HTTPRetryPolicy timeouts = new HTTPRetryPolicy().retryExceptions(SocketTimeoutException.class);
+        assertEquals(-1, timeouts.delay(0, "GET", NO_HEADERS, true, -1, new IOException(), NO_HEADERS));
+    }
+
+    @Test
+    public void testRetryAfter() {
+        HTTPRetryPolicy policy = new HTTPRetryPolicy().maxRetryAfter(5000);
+        assertEquals(2000, policy.delay(0, "GET", NO_HEADERS, true, 503, null, header("retry-after", "2")));
+        assertEquals(-1, policy.delay(0, "GET", NO_HEADERS, true, 503, null, header("retry-after", "10")));
+        String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now().plusSeconds(3));
+        long delay = policy.delay(0, "GET", NO_HEADERS, true, 429, null, header("retry-after", date));
+        assertTrue(delay > 1000 && delay <= 3000, "delay " + delay);
+        String past = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now().minusSeconds(30));
+        assertEquals(0, policy.delay(0, "GET", NO_HEADERS, true, 429, null, header("retry-after", past)));
+        long invalid = policy.delay(0, "GET", NO_HEADERS, true, 429, null, header("retry-after", "soon"));
+        assertTrue(invalid >= 0 && invalid <= 100);
+    }
+
+    @Test
+    public void testBudgetWindow() {
+        long[] second = { 1000 };
+        HTTPRetryBudget budget = new HTTPRetryBudget(0.1, 0) {
+            long currentSecond() {
+                return second[0];
+            }
+        };
+        HTTPRetryPolicy policy = new HTTPRetryPolicy().budget(budget);
+        for(int i = 0; i < 20; i++)
+            budget.onRequest();
+        assertTrue(policy.delay(0, "GET", NO_HEADERS, true, 503, null, NO_HEADERS) >= 0);
+        assertTrue(policy.delay(0, "GET", NO_HEADERS, true, 503, null, NO_HEADERS) >= 0);
+        assertEquals(-1, policy.delay(0, "GET", NO_HEADERS, true, 503, null, NO_HEADERS));
+        assertEquals(1, budget.getExhausted());
+        // still within the window of ten seconds
+        second[0] += 9;
+        assertFalse(budget.tryRetry());
+        // the requests and retries have left the window
+        second[0] += 1;
+        for(int i = 0; i < 10; i++)
+            budget.onRequest();
+        assertTrue(budget.tryRetry());
+        assertFalse(budget.tryRetry());
+        // a jump far beyond the window clears it completely
+        second[0] += 1000;
+        assertFalse(budget.tryRetry());
+        assertEquals(4, budget.getExhausted());
+    }
+
+    @Test
+    public void testBudgetMinimum() {
+        HTTPRetryBudget budget = new HTTPRetryBudget(0, 2);
+        for(int i = 0; i < 20; i++)
+            assertTrue(budget.tryRetry());
+        assertFalse(budget.tryRetry());
+    }
+
+    @Test
+    public void testRetriesUntilSuccess() {
+        List<FakeImplementation> attempts = new ArrayList<>();
+        IHTTPRequestImplementation request = request(new HTTPRetryPolicy().backoff(1, 1), attempts, 503, 503, 200);
+        assertEquals(200, request.execute());
+        assertEquals(3, attempts.size());
+        assertTrue(attempts.get(0).closed && attempts.get(1).closed);
+        assertFalse(attempts.get(2).closed);
+    }
+
+    @Test
+    public void testInterruptedWaitKeepsTheLastAttempt() {
+        List<FakeImplementation> attempts = new ArrayList<>();
+        IHTTPRequestImplementation request = request(new HTTPRetryPolicy().backoff(10000, 10000), attempts, 503, 200);
+        Thread.currentThread().interrupt();
+        try {
+            assertEquals(503, request.execute());
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(1, attempts.size());
+        assertFalse(attempts.get(0).closed);
+        assertEquals("503", request.getResponseStatusMessage());
+    }
+
+    @Test
+    public void testRejectedRetryFailsTheFuture() throws InterruptedException {
+        List<FakeImplementation> attempts = new ArrayList<>();
+        IHTTPRequestImplementation request = request(new HTTPRetryPolicy().backoff(1, 1), attempts, 503, 200);
+        boolean[] first = { true };
+        CompletableFuture<Integer> future = request.executeAsync(task -> {
+            if(!first[0])
+                throw new RejectedExecutionException();
+            first[0] = false;
+            task.run();
+        });
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof RejectedExecutionException);
+        } catch (TimeoutException ex) {
+            fail("The future hasn't been completed");
+        }
+    }
+
+    private static IHTTPRequestImplementation request(HTTPRetryPolicy policy, List<FakeImplementation> attempts, int... statuses) {
+        IHTTPRequestImplementation request = policy.wrap(() -> {
+            FakeImplementation implementation = new FakeImplementation(statuses[attempts.size()]);
+            attempts.add(implementation);
+            return implementation;
+        });
+        request.setMethod("GET");
+        request.setUrl("http://localhost/");
+        request.setRequestHeaders(NO_HEADERS);
+        return request;
+    }
+
+    private static final class FakeImplementation implements IHTTPRequestImplementation {
+        private final int status;
+        private boolean closed;
+        FakeImplementation(int status) {
+            this.status = status;
+        }
+        public void setMethod(String method) {}
+        public void setUrl(String url) {}
+        public void setSslVerification(boolean sslVerification) {}
+        public void setFollowRedirects(boolean followRedirects) {}
+        public void setTimeout(int timeout) {}
+        public void setRequestHeaders(Map<String, String[]> requestHeaders) {}
+        public void setRequestBody(byte[] requestBody) {}
+        public Map<String, String[]> getResponseHeaders() {
+            return NO_HEADERS;
+        }
+        public InputStream getResponseStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        public int getResponseStatus() {
+            return status;
+        }
+        public String getResponseStatusMessage() {
+            return String.valueOf(status);
+        }
+        public int execute() {
+            return status;
+        }
+        public void close() {
+            closed = true;
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.javawebstack.httpclient.cache;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DiskCacheStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private static CacheEntry entry(String etag, int bodyLength) {
+        byte[] body = new byte[bodyLength];
+        new Random(bodyLength).nextBytes(body);
+        Map<String, String[]> headers = new HashMap<>();
+        headers.put("etag", new String[]{ etag });
+        return new CacheEntry(200, "OK", headers, Collections.emptyMap(), 1000, 2000, body);
+    }
+
+    private static byte[] body(CacheEntry entry) throws IOException {
+        try (InputStream in = entry.openBody()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int r;
+            while ((r = in.read(buffer)) != -1)
+                out.write(buffer, 0, r);
+            return out.toByteArray();
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> f.getFileName().toString().startsWith("segment-")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void testEntriesSurviveReopening() throws IOException {
+        CacheEntry small = entry("\"a\"", 1000);
+        CacheEntry large = entry("\"b\"", 600000);
+        try (DiskCacheStore store = new DiskCacheStore(directory, 16777216)) {
+            store.put("small", small);
+            store.put("large", large);
+        }
+        try (DiskCacheStore store = new DiskCacheStore(directory, 16777216)) {
+            assertEquals(2, store.getCount());
+            CacheEntry read = store.get("large");
+            assertEquals("\"b\"", read.getHeader("etag"));
+            assertEquals(2000, read.getResponseTime());
+            assertArrayEquals(large.getBody(), body(read));
+            assertArrayEquals(small.getBody(), body(store.get("small")));
+            assertNull(store.get("missing"));
+        }
+    }
+
+    @Test
+    public void testCorruptBodyIsRejected() throws IOException {
+        try (DiskCacheStore store = new DiskCacheStore(directory, 16777216)) {
+            store.put("key", entry("\"a\"", 1000));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segments().get(0).toFile(), "rw")) {
+            file.seek(file.length() - 100);
+            int b = file.read();
+            file.seek(file.length() - 100);
+            file.write(b ^ 0xFF);
+        }
+        try (DiskCacheStore store = new DiskCacheStore(directory, 16777216)) {
+            CacheEntry entry = store.get("key");
+            assertThrows(IOException.class, () -> body(entry));
+            assertNull(store.get("key"));
+        }
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws IOException {
+        try (DiskCacheStore store = new DiskCacheStore(directory, 16777216)) {
+            store.put("key", entry("\"a\"", 1000));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segments().get(0).toFile(), "rw")) {
+            file.setLength(file.length() - 10);
+        }
+        try (DiskCacheStore store = new DiskCacheStore(directory, 16777216)) {
+            assertNull(store.get("key"));
+            assertEquals(0, store.getCount());
+        }
+    }
+
+    @Test
+    public void testRevalidationOnlyWritesHeaders() throws IOException {
+        CacheEntry original = entry("\"a\"", 600000);
+        try (DiskCacheStore store = new DiskCacheStore(directory, 16777216)) {
+            store.put("key", original);
+            long size = store.getSize();
+            Map<String, String[]> headers = new HashMap<>(original.getHeaders());
+            headers.put("etag", new String[]{ "\"b\"" });
+            store.put("key", store.get("key").withHeaders(headers, 3000, 4000));
+            assertTrue(store.getSize() - size < 1000);
+            assertEquals(1, store.getCount());
+        }
+        try (DiskCacheStore store = new DiskCacheStore(directory, 16777216)) {
+            CacheEntry read = store.get("key");
+            assertEquals("\"b\"", read.getHeader("etag"));
+            assertEquals(4000, read.getResponseTime());
+            assertArrayEquals(original.getBody(), body(read));
+        }
+    }
+
+    @Test
+    public void testStreamSurvivesEviction() throws IOException {
+        CacheEntry large = entry("\"a\"", 600000);
+        try (DiskCacheStore store = new DiskCacheStore(directory, 2000000).segmentSize(700000)) {
+            store.put("large", large);
+            try (InputStream in = store.get("large").openBody()) {
+                byte[] start = new byte[1000];
+                assertEquals(1000, in.read(start));
+                for(int i = 0; i < 5; i++)
+                    store.put("filler" + i, entry("\"f\"", 500000));
+                assertNull(store.get("large"));
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write(start);
+                byte[] buffer = new byte[8192];
+                int r;
+                while ((r = in.read(buffer)) != -1)
+                    out.write(buffer, 0, r);
+                assertArrayEquals(large.getBody(), out.toByteArray());
+            }
+            assertTrue(store.getSize() <= 2000000);
+        }
+        assertTrue(segments().size() <= 3);
+    }
+
+    @Test
+    public void testEvictionKeepsTheLimit() throws IOException {
+        try (DiskCacheStore store = new DiskCacheStore(directory, 3000000).segmentSize(1000000)) {
+            for(int i = 0; i < 20; i++)
+                store.put("key" + i, entry("\"a\"", 400000));
+            assertTrue(store.getSize() <= 3000000);
+            assertNotNull(store.get("key19"));
+            assertNull(store.get("key0"));
+        }
+    }
+
+}
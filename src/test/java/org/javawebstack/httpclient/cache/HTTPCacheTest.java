@@ -0,0 +1,112 @@
+package org.javawebstack.httpclient.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HTTPCacheTest {
+
+    private static final long NOW = 1700000000000L;
+    private static final long SECOND = 1000;
+    private static final long DAY = 86400 * SECOND;
+
+    private static String date(long time) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC));
+    }
+
+    private static Map<String, String[]> headers(String... nameValues) {
+        Map<String, String[]> headers = new HashMap<>();
+        for(int i=0; i<nameValues.length; i+=2)
+            headers.put(nameValues[i], new String[]{ nameValues[i + 1] });
+        return headers;
+    }
+
+    private static CacheEntry entry(long requestTime, long responseTime, String... nameValues) {
+        return new CacheEntry(200, "OK", headers(nameValues), Collections.emptyMap(), requestTime, responseTime, new byte[0]);
+    }
+
+    private static Map<String, String> request(String cacheControl) {
+        return HTTPCache.cacheControl(new String[]{ cacheControl });
+    }
+
+    @Test
+    public void testExplicitFreshnessLifetime() {
+        assertEquals(60 * SECOND, HTTPCache.freshnessLifetime(200, headers("cache-control", "public, max-age=60"), NOW));
+        // max-age wins over Expires
+        assertEquals(60 * SECOND, HTTPCache.freshnessLifetime(200, headers("cache-control", "max-age=60", "expires", date(NOW + DAY)), NOW));
+        assertEquals(120 * SECOND, HTTPCache.freshnessLifetime(200, headers("date", date(NOW), "expires", date(NOW + 120 * SECOND)), NOW + 5 * SECOND));
+        // without Date the response time is used
+        assertEquals(115 * SECOND, HTTPCache.freshnessLifetime(200, headers("expires", date(NOW + 120 * SECOND)), NOW + 5 * SECOND));
+        assertEquals(0, HTTPCache.freshnessLifetime(200, headers("expires", "0"), NOW));
+        assertEquals(0, HTTPCache.freshnessLifetime(200, headers("date", date(NOW), "expires", date(NOW - DAY)), NOW));
+        assertEquals(0, HTTPCache.freshnessLifetime(200, headers("cache-control", "max-age=abc"), NOW));
+    }
+
+    @Test
+    public void testHeuristicFreshnessLifetime() {
+        assertEquals(DAY / 2, HTTPCache.freshnessLifetime(200, headers("date", date(NOW), "last-modified", date(NOW - 5 * DAY)), NOW));
+        assertEquals(DAY, HTTPCache.freshnessLifetime(404, headers("date", date(NOW), "last-modified", date(NOW - 365 * DAY)), NOW));
+        assertEquals(0, HTTPCache.freshnessLifetime(302, headers("date", date(NOW), "last-modified", date(NOW - 5 * DAY)), NOW));
+        assertEquals(0, HTTPCache.freshnessLifetime(200, headers("date", date(NOW)), NOW));
+    }
+
+    @Test
+    public void testCurrentAge() {
+        // the response took two seconds and the origin reported an age of ten
+        CacheEntry entry = entry(NOW - 2 * SECOND, NOW, "date", date(NOW - 5 * SECOND), "age", "10");
+        assertEquals(12 * SECOND, HTTPCache.currentAge(entry, NOW));
+        assertEquals(42 * SECOND, HTTPCache.currentAge(entry, NOW + 30 * SECOND));
+        // a Date further in the past than the Age header
+        CacheEntry old = entry(NOW, NOW, "date", date(NOW - 100 * SECOND), "age", "10");
+        assertEquals(100 * SECOND, HTTPCache.currentAge(old, NOW));
+        // a Date in the future doesn't make the age negative
+        CacheEntry skewed = entry(NOW, NOW, "date", date(NOW + 100 * SECOND));
+        assertEquals(0, HTTPCache.currentAge(skewed, NOW));
+    }
+
+    @Test
+    public void testIsFresh() {
+        CacheEntry entry = entry(NOW, NOW, "date", date(NOW), "cache-control", "max-age=60");
+        Map<String, String> none = Collections.emptyMap();
+        assertTrue(HTTPCache.isFresh(entry, none, NOW + 30 * SECOND));
+        assertFalse(HTTPCache.isFresh(entry, none, NOW + 60 * SECOND));
+        assertFalse(HTTPCache.isFresh(entry, request("no-cache"), NOW));
+        assertFalse(HTTPCache.isFresh(entry, request("max-age=10"), NOW + 30 * SECOND));
+        assertTrue(HTTPCache.isFresh(entry, request("max-age=40"), NOW + 30 * SECOND));
+        assertFalse(HTTPCache.isFresh(entry, request("min-fresh=40"), NOW + 30 * SECOND));
+        assertTrue(HTTPCache.isFresh(entry, request("min-fresh=20"), NOW + 30 * SECOND));
+    }
+
+    @Test
+    public void testMaxStale() {
+        CacheEntry entry = entry(NOW, NOW, "date", date(NOW), "cache-control", "max-age=60");
+        assertTrue(HTTPCache.isFresh(entry, request("max-stale=20"), NOW + 70 * SECOND));
+        assertFalse(HTTPCache.isFresh(entry, request("max-stale=5"), NOW + 70 * SECOND));
+        assertTrue(HTTPCache.isFresh(entry, request("max-stale"), NOW + DAY));
+        CacheEntry mustRevalidate = entry(NOW, NOW, "date", date(NOW), "cache-control", "max-age=60, must-revalidate");
+        assertFalse(HTTPCache.isFresh(mustRevalidate, request("max-stale"), NOW + 70 * SECOND));
+        CacheEntry noCache = entry(NOW, NOW, "date", date(NOW), "cache-control", "max-age=60, no-cache");
+        assertFalse(HTTPCache.isFresh(noCache, Collections.emptyMap(), NOW));
+    }
+
+    @Test
+    public void testIsStorable() {
+        HTTPCache cache = new HTTPCache(1048576);
+        assertTrue(cache.isStorable(200, headers("cache-control", "max-age=60")));
+        assertTrue(cache.isStorable(200, headers("etag", "\"a\"")));
+        assertFalse(cache.isStorable(200, headers()));
+        assertFalse(cache.isStorable(200, headers("cache-control", "no-store, max-age=60")));
+        assertFalse(cache.isStorable(200, headers("cache-control", "max-age=60", "vary", "*")));
+        assertFalse(cache.isStorable(206, headers("cache-control", "max-age=60")));
+        assertFalse(cache.isStorable(302, headers("etag", "\"a\"")));
+        assertTrue(cache.isStorable(302, headers("cache-control", "max-age=60")));
+    }
+
+}
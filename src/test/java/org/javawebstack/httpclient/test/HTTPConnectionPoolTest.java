@@ -0,0 +1,209 @@
+package org.javawebstack.httpclient.test;
+
+import org.javawebstack.httpclient.HTTPClientSocket;
+import org.javawebstack.httpclient.HTTPConnectionPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Sends sequential requests through the pool to a local keep-alive server which counts the connections it accepted.
+ */
+public class HTTPConnectionPoolTest {
+
+    private ServerSocket server;
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+    private final HTTPConnectionPool pool = new HTTPConnectionPool();
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = new ServerSocket(0);
+        Thread thread = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    accepted.incrementAndGet();
+                    connections.add(socket);
+                    Thread connection = new Thread(() -> serve(socket));
+                    connection.setDaemon(true);
+                    connection.start();
+                } catch (IOException ignored) {}
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @AfterEach
+    public void stopServer() throws IOException {
+        pool.close();
+        server.close();
+        for(Socket socket : connections)
+            socket.close();
+    }
+
+    /**
+     * Answers every request with a body of the size given by the path, /close/... closes the connection after the
+     * response without announcing it.
+     */
+    private static void serve(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                String path = readRequest(in);
+                if(path == null)
+                    break;
+                boolean close = path.startsWith("/close/");
+                byte[] body = new byte[Integer.parseInt(path.substring(path.lastIndexOf('/') + 1))];
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(body);
+                out.flush();
+                if(close)
+                    break;
+            }
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    private static String readRequest(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if(b == -1)
+                return null;
+            head.write(b);
+            matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        return head.toString("US-ASCII").split(" ")[1];
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getLocalPort() + path;
+    }
+
+    private HTTPClientSocket request(String url) throws IOException {
+        HTTPClientSocket socket = pool.acquire(url, false, 2000);
+        assertEquals(200, socket.getResponseStatus());
+        return socket;
+    }
+
+    private void requestAndRelease(String path) throws IOException {
+        HTTPClientSocket socket = request(url(path));
+        InputStream stream = socket.getInputStream();
+        while (stream.read() != -1);
+        pool.release(socket);
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        for(int i=0; i<5; i++)
+            requestAndRelease("/" + (i * 1000));
+        assertEquals(1, accepted.get());
+        assertEquals(1, pool.getIdleConnections());
+        assertEquals(1, pool.getTotalConnections());
+    }
+
+    @Test
+    public void testDrain() throws IOException {
+        // the unread body is small enough to be drained, so the connection stays open
+        pool.release(request(url("/10000")));
+        assertEquals(1, pool.getIdleConnections());
+        requestAndRelease("/10");
+        assertEquals(1, accepted.get());
+
+        // a body larger than the drain limit gets the connection closed
+        pool.setMaxDrainBytes(1000);
+        pool.release(request(url("/5000")));
+        assertEquals(0, pool.getIdleConnections());
+        assertEquals(0, pool.getTotalConnections());
+        requestAndRelease("/10");
+        assertEquals(2, accepted.get());
+    }
+
+    @Test
+    public void testRouteLimit() throws IOException {
+        pool.setMaxConnectionsPerRoute(2);
+        HTTPClientSocket first = request(url("/1"));
+        HTTPClientSocket second = request(url("/1"));
+        long start = System.currentTimeMillis();
+        assertThrows(IOException.class, () -> pool.acquire(url("/1"), false, 200));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        assertEquals(2, pool.getTotalConnections());
+
+        // other routes aren't affected
+        pool.release(request("http://localhost:" + server.getLocalPort() + "/1"));
+        assertEquals(3, pool.getTotalConnections());
+
+        // a released connection is handed to the next request
+        first.getInputStream().read();
+        pool.release(first);
+        requestAndRelease("/1");
+        assertEquals(3, accepted.get());
+        pool.discard(second);
+        assertEquals(2, pool.getTotalConnections());
+    }
+
+    @Test
+    public void testTotalLimit() throws IOException {
+        pool.setMaxConnections(2);
+        String other = "http://localhost:" + server.getLocalPort() + "/1";
+        HTTPClientSocket first = request(url("/1"));
+        HTTPClientSocket second = request(url("/1"));
+        assertThrows(IOException.class, () -> pool.acquire(other, false, 200));
+
+        // an idle connection of another route is closed to make room
+        first.getInputStream().read();
+        pool.release(first);
+        assertEquals(1, pool.getIdleConnections());
+        HTTPClientSocket third = request(other);
+        assertEquals(0, pool.getIdleConnections());
+        assertEquals(2, pool.getTotalConnections());
+        assertEquals(3, accepted.get());
+        pool.discard(second);
+        pool.discard(third);
+        assertEquals(0, pool.getTotalConnections());
+    }
+
+    @Test
+    public void testIdleEviction() throws IOException, InterruptedException {
+        pool.setIdleTimeout(100);
+        requestAndRelease("/1");
+        pool.closeExpired();
+        assertEquals(1, pool.getIdleConnections());
+        Thread.sleep(200);
+        pool.closeExpired();
+        assertEquals(0, pool.getIdleConnections());
+        assertEquals(0, pool.getTotalConnections());
+        requestAndRelease("/1");
+        assertEquals(2, accepted.get());
+    }
+
+    @Test
+    public void testStaleConnection() throws IOException, InterruptedException {
+        requestAndRelease("/close/1");
+        assertEquals(1, pool.getIdleConnections());
+        // connections are only checked after they have been idle for a second
+        Thread.sleep(1100);
+        requestAndRelease("/1");
+        assertEquals(2, accepted.get());
+        assertEquals(1, pool.getIdleConnections());
+        assertEquals(1, pool.getTotalConnections());
+    }
+
+}
@@ -0,0 +1,166 @@
+package org.javawebstack.httpclient.test;
+
+import org.javawebstack.httpclient.HTTPResponseDecoder;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the header parsing of the response decoder, which is done by the byte level HTTPHeaderParser.
+ */
+public class HTTPHeaderParserTest {
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private HTTPResponseDecoder decoder() {
+        body.reset();
+        return new HTTPResponseDecoder("GET", Collections.emptyMap(), data -> {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            body.write(bytes);
+        });
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private HTTPResponseDecoder decode(String response) throws IOException {
+        HTTPResponseDecoder decoder = decoder();
+        decoder.decode(bytes(response));
+        return decoder;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void testSplitAtEveryByte() throws IOException {
+        // the long header doesn't fit the initial line buffer when it's split
+        String response = "HTTP/1.1 201 Created Now\r\nContent-Type: application/json\r\nX-Long: " + repeat('x', 1000) + "\r\nX-Multi: a\r\nx-multi: b\r\nContent-Length: 4\r\n\r\nbody";
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        for(int split=0; split<=bytes.length; split++) {
+            HTTPResponseDecoder decoder = decoder();
+            decoder.decode(ByteBuffer.wrap(bytes, 0, split));
+            assertTrue(decoder.decode(ByteBuffer.wrap(bytes, split, bytes.length - split)), "split at " + split);
+            assertEquals(201, decoder.getStatus());
+            assertEquals("Created Now", decoder.getStatusMessage());
+            assertEquals("HTTP/1.1", decoder.getVersion());
+            assertEquals(Collections.singletonList("application/json"), decoder.getHeaders().get("content-type"));
+            assertEquals(1000, decoder.getHeaders().get("x-long").get(0).length());
+            assertEquals(Arrays.asList("a", "b"), decoder.getHeaders().get("x-multi"));
+            assertEquals("body", body.toString());
+        }
+        HTTPResponseDecoder decoder = decoder();
+        for(int i=0; i<bytes.length; i++)
+            assertEquals(i == bytes.length - 1, decoder.decode(ByteBuffer.wrap(bytes, i, 1)));
+        assertEquals(Arrays.asList("a", "b"), decoder.getHeaders().get("x-multi"));
+    }
+
+    @Test
+    public void testWhitespace() throws IOException {
+        HTTPResponseDecoder decoder = decode("HTTP/1.1 200 OK\nX-A:   value with  spaces \t\r\nX-B:\tv\r\nX-Empty:\r\nX-Space : v\r\nCONTENT-TYPE: text/plain\r\n\r\n");
+        assertTrue(decoder.isHeadersComplete());
+        assertEquals("value with  spaces", decoder.getHeaders().get("x-a").get(0));
+        assertEquals("v", decoder.getHeaders().get("x-b").get(0));
+        assertEquals("", decoder.getHeaders().get("x-empty").get(0));
+        assertEquals("v", decoder.getHeaders().get("x-space").get(0));
+        assertEquals("text/plain", decoder.getHeaders().get("content-type").get(0));
+
+        HTTPResponseDecoder empty = decode("HTTP/1.1 204\r\n\r\n");
+        assertEquals(204, empty.getStatus());
+        assertEquals("", empty.getStatusMessage());
+    }
+
+    @Test
+    public void testObsFoldIsRejected() {
+        assertThrows(IOException.class, () -> decode("HTTP/1.1 200 OK\r\nX-A: a\r\n b\r\n\r\n"));
+        assertThrows(IOException.class, () -> decode("HTTP/1.1 200 OK\r\nX-A: a\r\n\tb\r\n\r\n"));
+        assertThrows(IOException.class, () -> decode("HTTP/1.1 200 OK\r\n X-A: a\r\n\r\n"));
+    }
+
+    @Test
+    public void testInvalid() {
+        assertThrows(IOException.class, () -> decode("HTTP/1.1 20 OK\r\n\r\n"));
+        assertThrows(IOException.class, () -> decode("HTTP/1.1 2000 OK\r\n\r\n"));
+        assertThrows(IOException.class, () -> decode("ICY 200 OK\r\n\r\n"));
+        assertThrows(IOException.class, () -> decode("HTTP/1.1 200 OK\r\nNo colon\r\n\r\n"));
+        assertThrows(IOException.class, () -> decode("HTTP/1.1 200 OK\r\n: no name\r\n\r\n"));
+    }
+
+    @Test
+    public void testKnownValuesAreShared() throws IOException {
+        HTTPResponseDecoder first = decode("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n\r\n");
+        HTTPResponseDecoder second = decode("HTTP/1.1 200 OK\r\ncontent-TYPE: application/json\r\n\r\n");
+        List<String> a = first.getHeaders().get("content-type");
+        List<String> b = second.getHeaders().get("content-type");
+        assertSame(a.get(0), b.get(0));
+        assertSame(first.getStatusMessage(), second.getStatusMessage());
+    }
+
+    @Test
+    public void testContentLength() throws IOException {
+        HTTPResponseDecoder duplicate = decoder();
+        assertTrue(duplicate.decode(bytes("HTTP/1.1 200 OK\r\nContent-Length: 3\r\nContent-Length: 3\r\n\r\nabc")));
+        assertEquals("abc", body.toString());
+
+        HTTPResponseDecoder large = decode("HTTP/1.1 200 OK\r\nContent-Length: 922337203685477579\r\n\r\n");
+        assertEquals(HTTPResponseDecoder.Framing.LENGTH, large.getFraming());
+        assertFalse(large.isComplete());
+
+        assertThrows(IOException.class, () -> decode("HTTP/1.1 200 OK\r\nContent-Length: 3\r\nContent-Length: 4\r\n\r\nabc"));
+        assertThrows(IOException.class, () -> decode("HTTP/1.1 200 OK\r\nContent-Length: 3, 3\r\n\r\nabc"));
+        assertThrows(IOException.class, () -> decode("HTTP/1.1 200 OK\r\nContent-Length: -1\r\n\r\n"));
+        assertThrows(IOException.class, () -> decode("HTTP/1.1 200 OK\r\nContent-Length: 0x10\r\n\r\n"));
+        assertThrows(IOException.class, () -> decode("HTTP/1.1 200 OK\r\nContent-Length:\r\n\r\n"));
+    }
+
+    @Test
+    public void testContentLengthOverflow() {
+        assertThrows(IOException.class, () -> decode("HTTP/1.1 200 OK\r\nContent-Length: 9223372036854775808\r\n\r\n"));
+        assertThrows(IOException.class, () -> decode("HTTP/1.1 200 OK\r\nContent-Length: 99999999999999999999999\r\n\r\n"));
+    }
+
+    @Test
+    public void testLineLengthLimit() throws IOException {
+        String head = "HTTP/1.1 200 OK\r\nX-Long: ";
+        // the limit of 65536 bytes includes the name and the CR
+        String fits = repeat('x', 65536 - "X-Long: \r".length());
+        assertTrue(decode(head + fits + "\r\n\r\n").isHeadersComplete());
+        assertThrows(IOException.class, () -> decode(head + fits + "x\r\n\r\n"));
+
+        // the same when the line is reassembled from several reads
+        HTTPResponseDecoder split = decoder();
+        split.decode(bytes(head));
+        for(int i=0; i<fits.length(); i+=1000)
+            split.decode(bytes(fits.substring(i, Math.min(fits.length(), i + 1000))));
+        split.decode(bytes("\r\n\r\n"));
+        assertTrue(split.isHeadersComplete());
+        HTTPResponseDecoder tooLong = decoder();
+        tooLong.decode(bytes(head));
+        for(int i=0; i<fits.length(); i+=1000)
+            tooLong.decode(bytes(fits.substring(i, Math.min(fits.length(), i + 1000))));
+        assertThrows(IOException.class, () -> tooLong.decode(bytes("xx")));
+    }
+
+    @Test
+    public void testHeaderCountLimit() throws IOException {
+        StringBuilder headers = new StringBuilder("HTTP/1.1 200 OK\r\n");
+        for(int i=0; i<256; i++)
+            headers.append("X-").append(i).append(": v\r\n");
+        assertEquals(256, decode(headers + "\r\n").getHeaders().size());
+        assertThrows(IOException.class, () -> decode(headers + "X-Too-Many: v\r\n\r\n"));
+    }
+
+}
@@ -0,0 +1,166 @@
+package org.javawebstack.httpclient.test;
+
+import org.javawebstack.httpclient.HTTPClientSocket;
+import org.javawebstack.httpclient.HTTPRequestHeadEncoder;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HTTPRequestHeadEncoderTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, List<String>> headers(String... namesAndValues) {
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        for(int i=0; i<namesAndValues.length; i+=2)
+            headers.computeIfAbsent(namesAndValues[i], k -> new ArrayList<>()).add(namesAndValues[i + 1]);
+        return headers;
+    }
+
+    private static void assertHead(String expected, HTTPRequestHeadEncoder encoder) {
+        assertArrayEquals(bytes(expected), encoder.toByteArray(), expected);
+        assertArrayEquals(bytes(expected), Arrays.copyOf(encoder.array(), encoder.size()));
+    }
+
+    @Test
+    public void testHead() {
+        HTTPRequestHeadEncoder encoder = new HTTPRequestHeadEncoder();
+        encoder.begin("get", "/a?b=c", "example.com").headers(headers("accept", "*/*", "x-custom", "1", "x-custom", "2", "cookie", "ä=ö")).end();
+        assertHead("GET /a?b=c HTTP/1.1\r\nHost: example.com\r\naccept: */*\r\nx-custom: 1\r\nx-custom: 2\r\ncookie: ä=ö\r\n\r\n", encoder);
+        assertArrayEquals(encoder.toByteArray(), HTTPClientSocket.encodeRequestHead("get", "/a?b=c", "example.com", headers("accept", "*/*", "x-custom", "1", "x-custom", "2", "cookie", "ä=ö")));
+    }
+
+    @Test
+    public void testChangingHost() {
+        HTTPRequestHeadEncoder encoder = new HTTPRequestHeadEncoder();
+        for(String host : new String[]{ "a.example.com", "a.example.com", "b.example.com:8080", "a.example.com", "bücher.example" }) {
+            encoder.begin("GET", "/", host).header("accept", "*/*").end();
+            assertHead("GET / HTTP/1.1\r\nHost: " + host + "\r\naccept: */*\r\n\r\n", encoder);
+        }
+    }
+
+    @Test
+    public void testChangingValues() {
+        HTTPRequestHeadEncoder encoder = new HTTPRequestHeadEncoder();
+        for(String value : new String[]{ "1", "1", "2", "22", "1", new String("1"), "ü" }) {
+            encoder.begin("POST", "/", "example.com").header("content-length", value).header("x-value", value).end();
+            assertHead("POST / HTTP/1.1\r\nHost: example.com\r\ncontent-length: " + value + "\r\nx-value: " + value + "\r\n\r\n", encoder);
+        }
+        // lines too long to be cached
+        char[] chars = new char[2000];
+        for(int i=0; i<3; i++) {
+            Arrays.fill(chars, (char) ('a' + i));
+            String value = new String(chars);
+            encoder.begin("GET", "/", "example.com").header("x-long", value).end();
+            assertHead("GET / HTTP/1.1\r\nHost: example.com\r\nx-long: " + value + "\r\n\r\n", encoder);
+        }
+    }
+
+    @Test
+    public void testManyHeaders() {
+        // more headers than lines are cached, with a value that changes in every round
+        HTTPRequestHeadEncoder encoder = new HTTPRequestHeadEncoder();
+        for(int round=0; round<4; round++) {
+            encoder.begin("GET", "/", "example.com");
+            StringBuilder expected = new StringBuilder("GET / HTTP/1.1\r\nHost: example.com\r\n");
+            for(int i=0; i<150; i++) {
+                String value = i % 3 == 0 ? "round " + round : "static " + i;
+                encoder.header("x-header-" + i, value);
+                expected.append("x-header-").append(i).append(": ").append(value).append("\r\n");
+            }
+            encoder.end();
+            assertHead(expected.append("\r\n").toString(), encoder);
+        }
+    }
+
+    @Test
+    public void testBody() {
+        HTTPRequestHeadEncoder encoder = new HTTPRequestHeadEncoder();
+        String head = "PUT / HTTP/1.1\r\nHost: example.com\r\ncontent-length: ";
+        for(int length : new int[]{ 1, 1000, HTTPRequestHeadEncoder.MAX_COALESCED_BODY, 100000, 0 }) {
+            byte[] body = new byte[length + 10];
+            new Random(length).nextBytes(body);
+            encoder.begin("PUT", "/", "example.com").header("content-length", String.valueOf(length)).end().body(body, 5, length);
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            byte[] expectedHead = bytes(head + length + "\r\n\r\n");
+            expected.write(expectedHead, 0, expectedHead.length);
+            expected.write(body, 5, length);
+            assertArrayEquals(expected.toByteArray(), encoder.toByteArray(), "length " + length);
+        }
+    }
+
+    @Test
+    public void testCoalescedBody() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            String host = "127.0.0.1:" + server.getLocalPort();
+            for(int length : new int[]{ 0, 1, HTTPRequestHeadEncoder.MAX_COALESCED_BODY, HTTPRequestHeadEncoder.MAX_COALESCED_BODY + 1, 100000 }) {
+                for(boolean useChannel : new boolean[]{ true, false }) {
+                    byte[] body = new byte[length];
+                    new Random(length).nextBytes(body);
+                    CompletableFuture<byte[]> received = CompletableFuture.supplyAsync(() -> receive(server));
+                    HTTPClientSocket socket = new HTTPClientSocket("http://" + host + "/upload", false, 5000, useChannel);
+                    socket.setRequestMethod("POST");
+                    socket.setRequestHeader("Content-Length", String.valueOf(length));
+                    try (OutputStream stream = socket.getOutputStream()) {
+                        stream.write(body);
+                    }
+                    assertEquals(204, socket.getResponseStatus());
+                    socket.close();
+
+                    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                    byte[] head = bytes("POST /upload HTTP/1.1\r\nHost: " + host + "\r\ncontent-length: " + length + "\r\n\r\n");
+                    expected.write(head, 0, head.length);
+                    expected.write(body, 0, length);
+                    assertArrayEquals(expected.toByteArray(), received.get(5, TimeUnit.SECONDS), "length " + length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts one connection and returns the raw request.
+     */
+    private static byte[] receive(ServerSocket server) {
+        try (Socket socket = server.accept()) {
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            int matched = 0;
+            while (matched < 4) {
+                int b = in.read();
+                if(b == -1)
+                    throw new IOException("Unexpected end of stream");
+                request.write(b);
+                matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : (b == '\r' ? 1 : 0);
+            }
+            String head = request.toString("US-ASCII");
+            int start = head.indexOf("content-length: ") + 16;
+            int length = Integer.parseInt(head.substring(start, head.indexOf('\r', start)));
+            byte[] buffer = new byte[8192];
+            while (length > 0) {
+                int r = in.read(buffer, 0, Math.min(buffer.length, length));
+                if(r == -1)
+                    throw new IOException("Unexpected end of stream");
+                request.write(buffer, 0, r);
+                length -= r;
+            }
+            socket.getOutputStream().write(bytes("HTTP/1.1 204 No Content\r\n\r\n"));
+            return request.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
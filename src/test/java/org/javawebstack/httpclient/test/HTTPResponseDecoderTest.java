@@ -0,0 +1,118 @@
+package org.javawebstack.httpclient.test;
+
+import org.javawebstack.httpclient.HTTPResponseDecoder;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HTTPResponseDecoderTest {
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private HTTPResponseDecoder decoder(String method) {
+        return new HTTPResponseDecoder(method, Collections.emptyMap(), data -> {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            body.write(bytes);
+        });
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void testContentLength() throws IOException {
+        HTTPResponseDecoder decoder = decoder("GET");
+        ByteBuffer buffer = bytes("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhelloHTTP/1.1");
+        assertTrue(decoder.decode(buffer));
+        assertEquals(HTTPResponseDecoder.Framing.LENGTH, decoder.getFraming());
+        assertEquals("hello", body.toString());
+        assertEquals(8, buffer.remaining());
+        assertTrue(decoder.isKeepAlive());
+    }
+
+    @Test
+    public void testChunkedAcrossPieces() throws IOException {
+        HTTPResponseDecoder decoder = decoder("GET");
+        String response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5;ext=1\r\nhello\r\n6\r\n world\r\n0\r\nX-Trailer: 1\r\n\r\n";
+        for(int i = 0; i < response.length(); i++)
+            assertEquals(i == response.length() - 1, decoder.decode(bytes(response.substring(i, i + 1))));
+        assertEquals(HTTPResponseDecoder.Framing.CHUNKED, decoder.getFraming());
+        assertEquals("hello world", body.toString());
+        assertTrue(decoder.isKeepAlive());
+    }
+
+    @Test
+    public void testNonChunkedTransferEncodingIsReadUntilClose() throws IOException {
+        HTTPResponseDecoder decoder = decoder("GET");
+        assertFalse(decoder.decode(bytes("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked, gzip\r\n\r\nabc")));
+        assertFalse(decoder.decode(bytes("def")));
+        assertEquals(HTTPResponseDecoder.Framing.UNTIL_CLOSE, decoder.getFraming());
+        assertFalse(decoder.isKeepAlive());
+        assertTrue(decoder.endOfInput());
+        assertEquals("abcdef", body.toString());
+    }
+
+    @Test
+    public void testUpgradeHeaderWithoutSwitchingProtocols() throws IOException {
+        HTTPResponseDecoder decoder = decoder("GET");
+        assertTrue(decoder.decode(bytes("HTTP/1.1 200 OK\r\nUpgrade: h2,h2c\r\nConnection: Upgrade\r\nContent-Length: 4\r\n\r\nbody")));
+        assertEquals(HTTPResponseDecoder.Framing.LENGTH, decoder.getFraming());
+        assertEquals("body", body.toString());
+
+        HTTPResponseDecoder untilClose = decoder("GET");
+        body.reset();
+        assertFalse(untilClose.decode(bytes("HTTP/1.1 200 OK\r\nUpgrade: h2c\r\n\r\nbody")));
+        assertTrue(untilClose.endOfInput());
+        assertEquals("body", body.toString());
+    }
+
+    @Test
+    public void testSwitchingProtocolsLeavesRemainingBytes() throws IOException {
+        HTTPResponseDecoder decoder = decoder("GET");
+        ByteBuffer buffer = bytes("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n\r\n\u0081\u0000");
+        assertTrue(decoder.decode(buffer));
+        assertEquals(HTTPResponseDecoder.Framing.UPGRADE, decoder.getFraming());
+        assertFalse(decoder.isKeepAlive());
+        assertEquals(2, buffer.remaining());
+    }
+
+    @Test
+    public void testNoBody() throws IOException {
+        HTTPResponseDecoder head = decoder("HEAD");
+        assertTrue(head.decode(bytes("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n")));
+        assertEquals(HTTPResponseDecoder.Framing.NONE, head.getFraming());
+        assertTrue(head.isKeepAlive());
+
+        HTTPResponseDecoder notModified = decoder("GET");
+        assertTrue(notModified.decode(bytes("HTTP/1.1 304 Not Modified\r\nContent-Length: 10\r\n\r\n")));
+        assertEquals(HTTPResponseDecoder.Framing.NONE, notModified.getFraming());
+        assertEquals(0, body.size());
+    }
+
+    @Test
+    public void testKeepAlive() throws IOException {
+        HTTPResponseDecoder http10 = decoder("GET");
+        http10.decode(bytes("HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n"));
+        assertFalse(http10.isKeepAlive());
+
+        HTTPResponseDecoder close = decoder("GET");
+        close.decode(bytes("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"));
+        assertFalse(close.isKeepAlive());
+    }
+
+    @Test
+    public void testTruncatedBody() throws IOException {
+        HTTPResponseDecoder decoder = decoder("GET");
+        assertFalse(decoder.decode(bytes("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nabc")));
+        assertThrows(IOException.class, decoder::endOfInput);
+    }
+
+}
@@ -0,0 +1,184 @@
+package org.javawebstack.httpclient.test;
+
+import org.javawebstack.httpclient.HTTPClientSocket;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reads responses from a local server through HTTPClientSocket and checks every byte, for single byte reads, bulk
+ * reads of different sizes and a mix of both, with chunk boundaries at all kinds of positions. The throughput
+ * benchmark only runs with -Dbenchmark=true.
+ */
+public class SocketReadTest {
+
+    private static final int SIZE = 300000;
+
+    private static ServerSocket server;
+
+    @BeforeAll
+    public static void startServer() throws IOException {
+        server = new ServerSocket(0);
+        Thread thread = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    Thread connection = new Thread(() -> serve(socket));
+                    connection.setDaemon(true);
+                    connection.start();
+                } catch (IOException ignored) {}
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @AfterAll
+    public static void stopServer() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void testByteByByte() throws IOException {
+        for(String path : new String[] { "/length", "/chunked/1", "/chunked/1000", "/chunked/16383" })
+            read(path, SIZE, 0);
+    }
+
+    @Test
+    public void testBulk() throws IOException {
+        // sizes around the internal buffer of 16KB, larger reads bypass it
+        for(int bufferSize : new int[] { 1, 3, 4095, 16383, 16384, 16385, 100000 }) {
+            read("/length", SIZE, bufferSize);
+            read("/chunked/1000", SIZE, bufferSize);
+            read("/chunked/16384", SIZE, bufferSize);
+            read("/chunked/65536", SIZE, bufferSize);
+        }
+    }
+
+    @Test
+    public void testMixedReads() throws IOException {
+        for(String path : new String[] { "/length", "/chunked/7", "/chunked/5000" })
+            read(path, SIZE, -1);
+    }
+
+    @Test
+    public void testEmptyBody() throws IOException {
+        read("/length", 0, 0);
+        read("/chunked/10", 0, 8192);
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    public void benchmark() throws IOException {
+        for(String path : new String[] { "/length", "/chunked/16384" }) {
+            // warm up both paths before measuring
+            read(path, 4 * 1048576, 0);
+            read(path, 4 * 1048576, 65536);
+            double single = measure(path, 32 * 1048576, 0);
+            double bulk = measure(path, 256 * 1048576, 65536);
+            System.out.printf("%s: read() %.1f MB/s, read(byte[]) %.1f MB/s (%.1fx)%n", path, single, bulk, bulk / single);
+        }
+    }
+
+    private double measure(String path, int size, int bufferSize) throws IOException {
+        long start = System.nanoTime();
+        read(path, size, bufferSize);
+        return (size / 1048576.0) / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Reads the whole body and verifies it. A buffer size of 0 reads byte by byte, -1 alternates between single byte
+     * and bulk reads of changing sizes.
+     */
+    private void read(String path, int size, int bufferSize) throws IOException {
+        HTTPClientSocket socket = new HTTPClientSocket("http://127.0.0.1:" + server.getLocalPort() + path + "?" + size, false, 10000);
+        try {
+            assertEquals(200, socket.getResponseStatus());
+            InputStream stream = socket.getInputStream();
+            byte[] buffer = new byte[Math.max(bufferSize, 20000)];
+            long position = 0;
+            int round = 0;
+            while (true) {
+                int length = bufferSize >= 0 ? bufferSize : (round % 2 == 0 ? 0 : (round * 997) % 20000 + 1);
+                round++;
+                if(length == 0) {
+                    int b = stream.read();
+                    if(b == -1)
+                        break;
+                    if((byte) b != at(position))
+                        fail(path + " differs at " + position);
+                    position++;
+                } else {
+                    // an offset makes sure the data is written where it was asked for
+                    int offset = Math.min(round % 5, buffer.length - length);
+                    int r = stream.read(buffer, offset, length);
+                    if(r == -1)
+                        break;
+                    assertTrue(r > 0 && r <= length);
+                    for(int i=0; i<r; i++) {
+                        if(buffer[offset + i] != at(position + i))
+                            fail(path + " differs at " + (position + i));
+                    }
+                    position += r;
+                }
+            }
+            assertEquals(size, position, path);
+            assertEquals(-1, stream.read());
+            assertTrue(socket.isReusable());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static byte at(long position) {
+        // not periodic in any power of two, so skipped or repeated blocks are noticed
+        return (byte) (position * 31 + (position >> 8) * 7);
+    }
+
+    private static void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            StringBuilder head = new StringBuilder();
+            while (!head.toString().endsWith("\r\n\r\n")) {
+                int b = in.read();
+                if(b == -1)
+                    return;
+                head.append((char) b);
+            }
+            String target = head.toString().split(" ")[1];
+            int size = Integer.parseInt(target.substring(target.indexOf('?') + 1));
+            String path = target.substring(0, target.indexOf('?'));
+            int chunkSize = path.startsWith("/chunked/") ? Integer.parseInt(path.substring(9)) : 0;
+            OutputStream out = s.getOutputStream();
+            out.write(("HTTP/1.1 200 OK\r\n" + (chunkSize > 0 ? "Transfer-Encoding: chunked" : "Content-Length: " + size) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            byte[] block = new byte[65536];
+            int written = 0;
+            while (written < size) {
+                int length = Math.min(chunkSize > 0 ? chunkSize : block.length, Math.min(block.length, size - written));
+                for(int i=0; i<length; i++)
+                    block[i] = at(written + i);
+                if(chunkSize > 0)
+                    out.write((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(block, 0, length);
+                if(chunkSize > 0)
+                    out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                written += length;
+            }
+            if(chunkSize > 0)
+                out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            in.read();
+        } catch (IOException ignored) {}
+    }
+
+}
@@ -0,0 +1,162 @@
+package org.javawebstack.httpclient.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PerMessageDeflateTest {
+
+    private static final byte[] MESSAGE = "{\"symbol\":\"ABC\",\"price\":101,\"size\":250,\"side\":\"buy\",\"exchange\":\"XNYS\"}".getBytes(StandardCharsets.UTF_8);
+
+    private static WebSocketOptions options() {
+        return new WebSocketOptions().compression(true).compressionThreshold(0);
+    }
+
+    private static PerMessageDeflate accept(String extension, WebSocketOptions options) throws IOException {
+        return PerMessageDeflate.accept(Collections.singletonList(extension), options);
+    }
+
+    private static byte[] decompress(PerMessageDeflate deflate, byte[] compressed, long maxLength) throws IOException {
+        ByteBuffer buffer = deflate.decompress(ByteBuffer.wrap(compressed), true, maxLength);
+        try {
+            return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.arrayOffset() + buffer.limit());
+        } finally {
+            WebSocketBufferPool.release(buffer);
+        }
+    }
+
+    @Test
+    public void testOffer() {
+        assertEquals("permessage-deflate; client_max_window_bits", PerMessageDeflate.offer(options()));
+        assertEquals("permessage-deflate; client_max_window_bits; client_no_context_takeover; server_no_context_takeover", PerMessageDeflate.offer(options().clientNoContextTakeover(true).serverNoContextTakeover(true)));
+    }
+
+    @Test
+    public void testNegotiation() throws IOException {
+        assertNull(PerMessageDeflate.accept(Collections.emptyList(), options()));
+        assertNotNull(accept("permessage-deflate", options()));
+        assertNotNull(accept("Permessage-Deflate; server_no_context_takeover; client_no_context_takeover; server_max_window_bits=10; client_max_window_bits=\"15\"", options()));
+
+        assertTrue(accept("permessage-deflate; client_max_window_bits=15", options()).shouldCompress(100));
+        assertTrue(accept("permessage-deflate; client_max_window_bits", options()).shouldCompress(100));
+        // the deflater can't use a smaller window, so nothing is compressed
+        assertFalse(accept("permessage-deflate; client_max_window_bits=10", options()).shouldCompress(100));
+        assertFalse(accept("permessage-deflate", options().compressionThreshold(200)).shouldCompress(100));
+    }
+
+    @Test
+    public void testInvalidNegotiation() {
+        for(String extension : new String[]{
+                "permessage-deflate; foo",
+                "permessage-deflate; server_no_context_takeover=1",
+                "permessage-deflate; client_no_context_takeover=1",
+                "permessage-deflate; server_no_context_takeover; server_no_context_takeover",
+                "permessage-deflate; server_max_window_bits",
+                "permessage-deflate; server_max_window_bits=7",
+                "permessage-deflate; server_max_window_bits=16",
+                "permessage-deflate; client_max_window_bits=abc",
+                "permessage-deflate; client_max_window_bits=15; client_max_window_bits=15",
+                "permessage-deflate, permessage-deflate",
+                "x-webkit-deflate-frame"
+        })
+            assertThrows(IOException.class, () -> accept(extension, options()), extension);
+        assertThrows(IOException.class, () -> accept("permessage-deflate", options().compression(false)));
+    }
+
+    @Test
+    public void testTailIsStripped() throws IOException {
+        byte[] compressed = accept("permessage-deflate", options()).compress(MESSAGE);
+        int n = compressed.length;
+        assertFalse(n >= 4 && compressed[n - 4] == 0 && compressed[n - 3] == 0 && compressed[n - 2] == (byte) 0xFF && compressed[n - 1] == (byte) 0xFF);
+        // the same data compressed by hand ends with the tail
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(MESSAGE);
+        byte[] flushed = new byte[1024];
+        int length = deflater.deflate(flushed, 0, flushed.length, Deflater.SYNC_FLUSH);
+        deflater.end();
+        assertArrayEquals(Arrays.copyOf(flushed, length - 4), compressed);
+    }
+
+    @Test
+    public void testRoundTripWithContextTakeover() throws IOException {
+        PerMessageDeflate sender = accept("permessage-deflate", options());
+        PerMessageDeflate receiver = accept("permessage-deflate", options());
+        byte[] first = sender.compress(MESSAGE);
+        byte[] second = sender.compress(MESSAGE);
+        // the second message refers to the first one
+        assertTrue(second.length < first.length);
+        assertArrayEquals(MESSAGE, decompress(receiver, first, 0));
+        assertArrayEquals(MESSAGE, decompress(receiver, second, 0));
+        for(int i=0; i<20; i++) {
+            byte[] message = Arrays.copyOf(MESSAGE, MESSAGE.length - i);
+            assertArrayEquals(message, decompress(receiver, sender.compress(message), 0));
+        }
+
+        // a receiver that resets its context after every message can't follow
+        PerMessageDeflate resetting = accept("permessage-deflate; server_no_context_takeover", options());
+        assertArrayEquals(MESSAGE, decompress(resetting, first, 0));
+        WebSocketCloseException ex = assertThrows(WebSocketCloseException.class, () -> decompress(resetting, second, 0));
+        assertEquals(WebSocketCloseException.PROTOCOL_ERROR, ex.getCode());
+    }
+
+    @Test
+    public void testRoundTripWithoutContextTakeover() throws IOException {
+        PerMessageDeflate sender = accept("permessage-deflate; client_no_context_takeover", options());
+        PerMessageDeflate receiver = accept("permessage-deflate; server_no_context_takeover", options());
+        byte[] first = sender.compress(MESSAGE);
+        byte[] second = sender.compress(MESSAGE);
+        assertArrayEquals(first, second);
+        for(int i=0; i<5; i++)
+            assertArrayEquals(MESSAGE, decompress(receiver, first, 0));
+
+        // the option has the same effect as the parameter
+        PerMessageDeflate option = accept("permessage-deflate", options().clientNoContextTakeover(true));
+        assertArrayEquals(first, option.compress(MESSAGE));
+        assertArrayEquals(first, option.compress(MESSAGE));
+    }
+
+    @Test
+    public void testDecompressInParts() throws IOException {
+        byte[] message = new byte[300000];
+        for(int i=0; i<message.length; i++)
+            message[i] = (byte) (i % 251 ^ i / 1000);
+        byte[] compressed = accept("permessage-deflate", options()).compress(message);
+        PerMessageDeflate receiver = accept("permessage-deflate", options());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(int offset=0; offset<compressed.length; offset+=1000) {
+            int n = Math.min(1000, compressed.length - offset);
+            ByteBuffer part = receiver.decompress(ByteBuffer.wrap(compressed, offset, n).slice(), offset + n == compressed.length, 0);
+            out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+            WebSocketBufferPool.release(part);
+        }
+        assertArrayEquals(message, out.toByteArray());
+    }
+
+    @Test
+    public void testMaxLength() throws IOException {
+        byte[] zeros = new byte[1048576];
+        PerMessageDeflate sender = accept("permessage-deflate", options());
+        byte[] compressed = sender.compress(zeros);
+        assertTrue(compressed.length < 2048);
+
+        WebSocketCloseException ex = assertThrows(WebSocketCloseException.class, () -> decompress(accept("permessage-deflate", options()), compressed, 65536));
+        assertEquals(WebSocketCloseException.MESSAGE_TOO_BIG, ex.getCode());
+        assertEquals(zeros.length, decompress(accept("permessage-deflate", options()), compressed, zeros.length).length);
+        assertEquals(zeros.length, decompress(accept("permessage-deflate", options()), compressed, 0).length);
+    }
+
+    @Test
+    public void testInvalidData() throws IOException {
+        WebSocketCloseException ex = assertThrows(WebSocketCloseException.class, () -> decompress(accept("permessage-deflate", options()), new byte[]{ (byte) 0xFF, (byte) 0xFF, 0x12, 0x34 }, 0));
+        assertEquals(WebSocketCloseException.PROTOCOL_ERROR, ex.getCode());
+    }
+
+}
@@ -0,0 +1,144 @@
+package org.javawebstack.httpclient.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WebSocketFrameReaderTest {
+
+    private static final byte[] KEY = { 0x11, 0x22, 0x33, 0x44 };
+
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        new Random(length).nextBytes(payload);
+        return payload;
+    }
+
+    /**
+     * Builds a frame with the 8 byte length form, whatever the length is.
+     */
+    private static byte[] longFrame(long length, byte[] payload, byte[] key) {
+        ByteBuffer frame = ByteBuffer.allocate(14 + (payload != null ? payload.length : 0));
+        frame.put((byte) 0x82);
+        frame.put((byte) ((key != null ? 0x80 : 0) | 127));
+        frame.putLong(length);
+        if(key != null)
+            frame.put(key);
+        if(payload != null) {
+            for(int i=0; i<payload.length; i++)
+                frame.put((byte) (payload[i] ^ (key != null ? key[i % 4] : 0)));
+        }
+        return Arrays.copyOf(frame.array(), frame.position());
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.arrayOffset() + buffer.limit());
+    }
+
+    @Test
+    public void testLongLengthForm() throws IOException {
+        // the 8 byte form is valid for small lengths as well
+        for(int length : new int[]{ 5, 300, 70000 }) {
+            byte[] payload = payload(length);
+            WebSocketFrameReader reader = new WebSocketFrameReader(new ByteArrayInputStream(longFrame(length, payload, KEY)));
+            reader.readHeader();
+            assertEquals(length, reader.getLength());
+            assertTrue(reader.isMasked());
+            assertArrayEquals(KEY, reader.getMaskKey());
+            ByteBuffer buffer = reader.readPayload();
+            assertArrayEquals(payload, bytes(buffer));
+            WebSocketBufferPool.release(buffer);
+        }
+    }
+
+    @Test
+    public void testInvalidLengths() throws IOException {
+        WebSocketFrameReader negative = new WebSocketFrameReader(new ByteArrayInputStream(longFrame(Long.MIN_VALUE, null, null)));
+        assertThrows(IOException.class, negative::readHeader);
+        WebSocketFrameReader minusOne = new WebSocketFrameReader(new ByteArrayInputStream(longFrame(-1, null, null)));
+        assertThrows(IOException.class, minusOne::readHeader);
+
+        for(long length : new long[]{ Integer.MAX_VALUE - 7, Integer.MAX_VALUE, 1L << 40, Long.MAX_VALUE }) {
+            WebSocketFrameReader reader = new WebSocketFrameReader(new ByteArrayInputStream(longFrame(length, null, null)));
+            reader.readHeader();
+            assertEquals(length, reader.getLength());
+            assertThrows(IOException.class, reader::readPayload);
+            assertThrows(IOException.class, reader::readPayloadBytes);
+        }
+    }
+
+    @Test
+    public void testUnmaskingInParts() throws IOException {
+        byte[] payload = payload(10007);
+        WebSocketFrameReader reader = new WebSocketFrameReader(new ByteArrayInputStream(longFrame(payload.length, payload, KEY)));
+        reader.readHeader();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long position = 0;
+        // parts that don't start at a multiple of the key length
+        for(int part : new int[]{ 3, 1000, 5, 9000, 999 }) {
+            int n = (int) Math.min(part, payload.length - position);
+            ByteBuffer buffer = reader.readPayload(n, position);
+            out.write(bytes(buffer));
+            WebSocketBufferPool.release(buffer);
+            position += n;
+        }
+        assertEquals(payload.length, position);
+        assertArrayEquals(payload, out.toByteArray());
+    }
+
+    @Test
+    public void testPooledBufferIsReused() throws IOException {
+        // empties the size class, so the next buffer released into it is the only one
+        List<ByteBuffer> held = new ArrayList<>();
+        for(int i=0; i<16; i++)
+            held.add(WebSocketBufferPool.acquire(4096));
+        try {
+            byte[] first = payload(3000);
+            byte[] second = payload(100);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new WebSocketFrame().setFin(true).setOpcode(WebSocketFrame.OP_BINARY).setMaskKey(KEY).setPayload(first).write(out);
+            new WebSocketFrame().setFin(true).setOpcode(WebSocketFrame.OP_PING).setPayload(new byte[]{ 1 }).write(out);
+            new WebSocketFrame().setFin(true).setOpcode(WebSocketFrame.OP_BINARY).setMaskKey(KEY).setPayload(second).write(out);
+            WebSocketFrameReader reader = new WebSocketFrameReader(new ByteArrayInputStream(out.toByteArray()));
+
+            reader.readHeader();
+            ByteBuffer firstBuffer = reader.readPayload();
+            assertArrayEquals(first, bytes(firstBuffer));
+            WebSocketBufferPool.release(firstBuffer);
+
+            reader.readHeader();
+            assertEquals(WebSocketFrame.OP_PING, reader.getOpcode());
+            reader.skipPayload();
+
+            reader.readHeader();
+            ByteBuffer secondBuffer = reader.readPayload();
+            assertSame(firstBuffer, secondBuffer);
+            assertEquals(0, secondBuffer.position());
+            assertEquals(100, secondBuffer.limit());
+            assertArrayEquals(second, bytes(secondBuffer));
+            WebSocketBufferPool.release(secondBuffer);
+        } finally {
+            held.forEach(WebSocketBufferPool::release);
+        }
+    }
+
+    @Test
+    public void testTruncatedPayload() throws IOException {
+        byte[] frame = longFrame(100, payload(100), null);
+        WebSocketFrameReader reader = new WebSocketFrameReader(new ByteArrayInputStream(frame, 0, frame.length - 1));
+        reader.readHeader();
+        assertThrows(IOException.class, reader::readPayload);
+        WebSocketFrameReader header = new WebSocketFrameReader(new ByteArrayInputStream(frame, 0, 5));
+        assertThrows(IOException.class, header::readHeader);
+    }
+
+}
@@ -0,0 +1,131 @@
+package org.javawebstack.httpclient.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WebSocketFrameTest {
+
+    private static final int[] LENGTHS = { 0, 1, 7, 8, 9, 125, 126, 127, 1001, 65535, 65536, 65537, 200003 };
+    private static final byte[] KEY = { (byte) 0x9A, 0x13, (byte) 0xF0, 0x5C };
+
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        new Random(length).nextBytes(payload);
+        return payload;
+    }
+
+    private static int headerLength(int length, boolean masked) {
+        return 2 + (length > 65535 ? 8 : length > 125 ? 2 : 0) + (masked ? 4 : 0);
+    }
+
+    @Test
+    public void testLengthEncoding() throws IOException {
+        for(int length : LENGTHS) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new WebSocketFrame().setFin(true).setOpcode(WebSocketFrame.OP_BINARY).setPayload(payload(length)).write(out);
+            byte[] wire = out.toByteArray();
+            assertEquals(headerLength(length, false) + length, wire.length, "length " + length);
+            assertEquals((byte) 0x82, wire[0]);
+            int lengthByte = wire[1] & 0x7F;
+            assertEquals(0, wire[1] & 0x80);
+            if(length <= 125) {
+                assertEquals(length, lengthByte);
+            } else if(length <= 65535) {
+                assertEquals(126, lengthByte);
+                assertEquals(length, ((wire[2] & 0xFF) << 8) | (wire[3] & 0xFF));
+            } else {
+                assertEquals(127, lengthByte);
+                assertEquals(length, ByteBuffer.wrap(wire, 2, 8).getLong());
+            }
+        }
+    }
+
+    @Test
+    public void testMaskingMatchesRfc() throws IOException {
+        for(int length : LENGTHS) {
+            byte[] payload = payload(length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new WebSocketFrame().setFin(true).setOpcode(WebSocketFrame.OP_TEXT).setMaskKey(KEY).setPayload(payload).write(out);
+            byte[] wire = out.toByteArray();
+            int header = headerLength(length, true);
+            assertEquals(header + length, wire.length);
+            assertNotEquals(0, wire[1] & 0x80);
+            assertArrayEquals(KEY, Arrays.copyOfRange(wire, header - 4, header));
+            // RFC 6455 section 5.3: transformed-octet-i = original-octet-i XOR masking-key-octet-(i MOD 4)
+            for(int i=0; i<length; i++) {
+                if(wire[header + i] != (byte) (payload[i] ^ KEY[i % 4]))
+                    fail("length " + length + " differs at " + i);
+            }
+        }
+    }
+
+    @Test
+    public void testMaskAtAnyPosition() {
+        byte[] source = payload(64);
+        for(int position=0; position<8; position++) {
+            for(int offset=0; offset<4; offset++) {
+                for(int length=0; length<=40; length++) {
+                    byte[] masked = new byte[64];
+                    WebSocketFrame.mask(source, offset, masked, offset + 1, length, KEY, position);
+                    for(int i=0; i<length; i++)
+                        assertEquals((byte) (source[offset + i] ^ KEY[(position + i) % 4]), masked[offset + 1 + i]);
+                    assertEquals(0, masked[offset]);
+                    assertEquals(0, masked[offset + 1 + length]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(int length : LENGTHS) {
+            byte[] payload = payload(length);
+            new WebSocketFrame().setFin(length % 2 == 0).setRsv1(true).setOpcode(WebSocketFrame.OP_BINARY).setMaskKey().setPayload(payload).write(out);
+            // a part of a larger array, unmasked
+            byte[] padded = new byte[length + 10];
+            System.arraycopy(payload, 0, padded, 3, length);
+            new WebSocketFrame().setFin(true).setOpcode(WebSocketFrame.OP_CONTINUATION).setPayload(padded, 3, length).write(out);
+        }
+        WebSocketFrameReader reader = new WebSocketFrameReader(new ByteArrayInputStream(out.toByteArray()));
+        for(int length : LENGTHS) {
+            byte[] payload = payload(length);
+            reader.readHeader();
+            assertEquals(length % 2 == 0, reader.isFin());
+            assertTrue(reader.isRsv1());
+            assertTrue(reader.isMasked());
+            assertEquals(WebSocketFrame.OP_BINARY, reader.getOpcode());
+            assertEquals(length, reader.getLength());
+            ByteBuffer buffer = reader.readPayload();
+            assertEquals(length, buffer.remaining());
+            assertArrayEquals(payload, Arrays.copyOfRange(buffer.array(), buffer.arrayOffset(), buffer.arrayOffset() + length), "length " + length);
+            WebSocketBufferPool.release(buffer);
+
+            reader.readHeader();
+            assertFalse(reader.isMasked());
+            assertEquals(WebSocketFrame.OP_CONTINUATION, reader.getOpcode());
+            assertArrayEquals(payload, reader.readPayloadBytes());
+        }
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new WebSocketFrame().setFin(true).setOpcode(WebSocketFrame.OP_PING).setMaskKey(KEY).setPayload(new byte[]{ 1, 2, 3, 4, 5 }).write(out);
+        WebSocketFrame frame = WebSocketFrame.read(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(frame.isFin());
+        assertFalse(frame.isRsv1());
+        assertEquals(WebSocketFrame.OP_PING, frame.getOpcode());
+        assertArrayEquals(KEY, frame.getMaskKey());
+        assertArrayEquals(new byte[]{ 1, 2, 3, 4, 5 }, frame.getPayload());
+    }
+
+}
@@ -0,0 +1,244 @@
+package org.javawebstack.httpclient.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WebSocketFramingTest {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final Recorder handler = new Recorder();
+
+    private static WebSocketOptions options() {
+        return new WebSocketOptions().compression(true).compressionThreshold(0);
+    }
+
+    private static PerMessageDeflate deflate(WebSocketOptions options) throws IOException {
+        return PerMessageDeflate.accept(Collections.singletonList("permessage-deflate"), options);
+    }
+
+    private WebSocket socket(WebSocketOptions options, boolean compressed, WebSocketHandler handler) throws IOException {
+        return new WebSocket(out, handler, options, compressed ? deflate(options) : null, Runnable::run);
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] frame(boolean fin, boolean rsv1, byte opcode, byte[] payload) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        new WebSocketFrame().setFin(fin).setRsv1(rsv1).setOpcode(opcode).setPayload(payload).write(frame);
+        return frame.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for(byte[] part : parts)
+            bytes.write(part, 0, part.length);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Passes the frames to the socket until it stops reading.
+     */
+    private static void receive(WebSocket socket, byte[] frames) {
+        ByteArrayInputStream in = new ByteArrayInputStream(frames);
+        WebSocketFrameReader reader = new WebSocketFrameReader(in);
+        while (in.available() > 0 && socket.receiveFrame(reader));
+    }
+
+    private List<WebSocketFrame> sentFrames() throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        List<WebSocketFrame> frames = new ArrayList<>();
+        while (in.available() > 0)
+            frames.add(WebSocketFrame.read(in));
+        return frames;
+    }
+
+    private int sentCloseCode() throws IOException {
+        List<WebSocketFrame> frames = sentFrames();
+        WebSocketFrame close = frames.get(frames.size() - 1);
+        assertEquals(WebSocketFrame.OP_CLOSE, close.getOpcode());
+        byte[] payload = close.getPayload();
+        return ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+    }
+
+    @Test
+    public void testCompressedMessageIsSplitIntoFrames() throws IOException {
+        WebSocketOptions options = options().maxFrameSize(1000);
+        WebSocket socket = socket(options, true, handler);
+        byte[] message = random(5000);
+        socket.send(message);
+
+        List<WebSocketFrame> frames = sentFrames();
+        assertTrue(frames.size() > 5);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        for(int i=0; i<frames.size(); i++) {
+            WebSocketFrame frame = frames.get(i);
+            assertEquals(i == 0 ? WebSocketFrame.OP_BINARY : WebSocketFrame.OP_CONTINUATION, frame.getOpcode());
+            // only the first frame of a compressed message has RSV1 set
+            assertEquals(i == 0, frame.isRsv1());
+            assertEquals(i == frames.size() - 1, frame.isFin());
+            assertNotNull(frame.getMaskKey());
+            assertTrue(frame.getPayload().length <= 1000);
+            compressed.write(frame.getPayload());
+        }
+        ByteBuffer decompressed = deflate(options).decompress(ByteBuffer.wrap(compressed.toByteArray()), true, 0);
+        byte[] received = new byte[decompressed.remaining()];
+        decompressed.get(received);
+        WebSocketBufferPool.release(decompressed);
+        assertArrayEquals(message, received);
+    }
+
+    @Test
+    public void testUncompressedMessageIsSplitIntoFrames() throws IOException {
+        WebSocket socket = socket(options().maxFrameSize(1000).compressionThreshold(10000), true, handler);
+        socket.send(new String(new char[2500]).replace('\0', 'a'));
+        List<WebSocketFrame> frames = sentFrames();
+        assertEquals(3, frames.size());
+        assertEquals(WebSocketFrame.OP_TEXT, frames.get(0).getOpcode());
+        for(WebSocketFrame frame : frames)
+            assertFalse(frame.isRsv1());
+        assertEquals(500, frames.get(2).getPayload().length);
+        assertTrue(frames.get(2).isFin());
+    }
+
+    @Test
+    public void testFragmentedMessage() throws IOException {
+        WebSocketOptions options = options();
+        WebSocket socket = socket(options, true, handler);
+        byte[] compressed = deflate(options).compress("hello compressed world".getBytes(StandardCharsets.UTF_8));
+        receive(socket, concat(
+                frame(false, false, WebSocketFrame.OP_TEXT, "hello ".getBytes(StandardCharsets.UTF_8)),
+                // control frames may arrive between the fragments
+                frame(true, false, WebSocketFrame.OP_PING, new byte[]{ 1 }),
+                frame(true, false, WebSocketFrame.OP_CONTINUATION, "world".getBytes(StandardCharsets.UTF_8)),
+                frame(false, true, WebSocketFrame.OP_TEXT, Arrays.copyOf(compressed, 5)),
+                frame(true, false, WebSocketFrame.OP_CONTINUATION, Arrays.copyOfRange(compressed, 5, compressed.length))
+        ));
+        assertEquals(Arrays.asList("hello world", "hello compressed world"), handler.messages);
+        assertNull(handler.closeReason);
+        assertEquals(WebSocketFrame.OP_PONG, sentFrames().get(0).getOpcode());
+    }
+
+    @Test
+    public void testUnexpectedContinuation() throws IOException {
+        WebSocket socket = socket(options(), true, handler);
+        receive(socket, frame(true, false, WebSocketFrame.OP_CONTINUATION, new byte[]{ 1 }));
+        assertEquals(Integer.valueOf(1002), handler.closeCode);
+        assertEquals("Unexpected continuation frame", handler.closeReason);
+        assertEquals(1002, sentCloseCode());
+        assertTrue(socket.isClosed());
+    }
+
+    @Test
+    public void testInvalidFrames() throws IOException {
+        // RSV1 on a continuation frame
+        WebSocket socket = socket(options(), true, handler);
+        receive(socket, concat(frame(false, true, WebSocketFrame.OP_BINARY, new byte[]{ 1 }), frame(true, true, WebSocketFrame.OP_CONTINUATION, new byte[]{ 1 })));
+        assertEquals(Integer.valueOf(1002), handler.closeCode);
+
+        // RSV1 without the extension
+        Recorder uncompressed = new Recorder();
+        receive(socket(options(), false, uncompressed), frame(true, true, WebSocketFrame.OP_BINARY, new byte[]{ 1 }));
+        assertEquals(Integer.valueOf(1002), uncompressed.closeCode);
+
+        // a new message before the previous one has ended
+        Recorder interleaved = new Recorder();
+        receive(socket(options(), false, interleaved), concat(frame(false, false, WebSocketFrame.OP_TEXT, new byte[]{ 'a' }), frame(true, false, WebSocketFrame.OP_TEXT, new byte[]{ 'b' })));
+        assertEquals(Integer.valueOf(1002), interleaved.closeCode);
+        assertTrue(interleaved.messages.isEmpty());
+    }
+
+    @Test
+    public void testMaxMessageSize() throws IOException {
+        WebSocket socket = socket(options().maxMessageSize(1000), true, handler);
+        receive(socket, concat(frame(false, false, WebSocketFrame.OP_BINARY, random(600)), frame(true, false, WebSocketFrame.OP_CONTINUATION, random(600))));
+        assertEquals(Integer.valueOf(1009), handler.closeCode);
+        assertEquals(1009, sentCloseCode());
+        assertTrue(handler.messages.isEmpty());
+    }
+
+    @Test
+    public void testMaxMessageSizeAfterDecompression() throws IOException {
+        WebSocketOptions options = options().maxMessageSize(100000);
+        byte[] compressed = deflate(options).compress(new byte[200000]);
+        assertTrue(compressed.length < 1000);
+        WebSocket socket = socket(options, true, handler);
+        receive(socket, frame(true, true, WebSocketFrame.OP_BINARY, compressed));
+        assertEquals(Integer.valueOf(1009), handler.closeCode);
+        assertEquals(1009, sentCloseCode());
+
+        // the same for a handler that receives the message in parts
+        out.reset();
+        FragmentRecorder fragments = new FragmentRecorder();
+        receive(socket(options, true, fragments), frame(true, true, WebSocketFrame.OP_BINARY, compressed));
+        assertEquals(Integer.valueOf(1009), fragments.closeCode);
+        assertTrue(fragments.received <= 100000);
+        assertEquals(1009, sentCloseCode());
+    }
+
+    @Test
+    public void testFragmentHandler() throws IOException {
+        WebSocketOptions options = options();
+        byte[] message = random(150000);
+        byte[] compressed = deflate(options).compress(message);
+        FragmentRecorder fragments = new FragmentRecorder();
+        WebSocket socket = socket(options, true, fragments);
+        receive(socket, concat(
+                frame(false, true, WebSocketFrame.OP_BINARY, Arrays.copyOf(compressed, 70000)),
+                frame(true, false, WebSocketFrame.OP_CONTINUATION, Arrays.copyOfRange(compressed, 70000, compressed.length))
+        ));
+        assertNull(fragments.closeCode);
+        assertArrayEquals(message, fragments.data.toByteArray());
+        assertEquals(1, fragments.lastCount);
+        assertTrue(fragments.maxFragment <= 65536 * 4);
+    }
+
+    private static class Recorder implements WebSocketHandler {
+        final List<String> messages = new ArrayList<>();
+        Integer closeCode;
+        String closeReason;
+        public void onOpen(WebSocket socket) {}
+        public void onMessage(WebSocket socket, String message) {
+            messages.add(message);
+        }
+        public void onMessage(WebSocket socket, byte[] message) {
+            messages.add("binary:" + message.length);
+        }
+        public void onClose(WebSocket socket, Integer code, String reason) {
+            closeCode = code;
+            closeReason = reason;
+        }
+    }
+
+    private static class FragmentRecorder extends Recorder implements WebSocketFragmentHandler {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        long received;
+        int lastCount;
+        int maxFragment;
+        public void onFragment(WebSocket socket, boolean text, ByteBuffer fragment, boolean last) {
+            received += fragment.remaining();
+            maxFragment = Math.max(maxFragment, fragment.remaining());
+            data.write(fragment.array(), fragment.arrayOffset() + fragment.position(), fragment.remaining());
+            if(last)
+                lastCount++;
+        }
+        public void onMessage(WebSocket socket, String message) {}
+        public void onMessage(WebSocket socket, byte[] message) {}
+    }
+
+}